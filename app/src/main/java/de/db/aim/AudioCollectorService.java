@@ -4,12 +4,16 @@ import android.app.Service;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -17,11 +21,25 @@ import java.util.concurrent.TimeUnit;
 public class AudioCollectorService extends MonitorableService {
 
     private static final String TAG = AudioCollectorService.class.getSimpleName();
+    private static final long CAPTURE_RESTART_DELAY_MILLIS = 5000;
+    // Restarts in a row without capturing anything before giving up
+    private static final int MAX_CAPTURE_RESTARTS = 5;
 
     private final IBinder mBinder = new AudioCollectorBinder();
 
-    private List<AudioCollectorListener> mListeners = new ArrayList<AudioCollectorListener>();
+    // Iterated by the capture thread without locking, registrations replace the snapshot
+    private final List<AudioFrameChannel> mChannels = new CopyOnWriteArrayList<AudioFrameChannel>();
     private ExecutorService mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private int mCaptureRestarts;
+    private final Runnable mRestartCapture = new Runnable() {
+
+        @Override
+        public void run() {
+            Log.i(TAG, "Restarting capture");
+            setupService();
+        }
+    };
 
     private SharedPreferences.OnSharedPreferenceChangeListener mPreferenceChangeListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
 
@@ -29,8 +47,16 @@ public class AudioCollectorService extends MonitorableService {
         public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
             if (getString(R.string.pref_buffer_size_key).equals(key) ||
                     getString(R.string.pref_chunk_size_key).equals(key) ||
-                    getString(R.string.pref_frame_length_key).equals(key)) {
+                    getString(R.string.pref_frame_length_key).equals(key) ||
+                    getString(R.string.pref_frame_hop_key).equals(key) ||
+                    getString(R.string.pref_sample_rate_key).equals(key) ||
+                    getString(R.string.pref_channel_count_key).equals(key) ||
+                    getString(R.string.pref_sample_encoding_key).equals(key) ||
+                    getString(R.string.pref_capture_mode_key).equals(key)) {
                 Log.i(TAG, "A preference has been changed: " + key);
+                synchronized (AudioCollectorService.this) {
+                    mCaptureRestarts = 0;
+                }
                 AudioCollectorService.this.setupService();
             }
         }
@@ -40,6 +66,7 @@ public class AudioCollectorService extends MonitorableService {
     public void onCreate() {
         Log.d(TAG,"Creating service");
         super.onCreate();
+        PreferenceDefaults.apply(this);
         sharedPreferences().registerOnSharedPreferenceChangeListener(mPreferenceChangeListener);
         broadcastStatus("Initializing");
         setupService();
@@ -50,6 +77,11 @@ public class AudioCollectorService extends MonitorableService {
         Log.d(TAG,"Destroying service");
         super.onDestroy();
         stopCapture();
+        mHandler.removeCallbacks(mRestartCapture);
+        for (AudioFrameChannel channel : mChannels) {
+            channel.stop();
+        }
+        mChannels.clear();
         sharedPreferences().unregisterOnSharedPreferenceChangeListener(mPreferenceChangeListener);
         broadcastStatus("Terminated");
     }
@@ -71,34 +103,96 @@ public class AudioCollectorService extends MonitorableService {
         super.onRebind(intent);
     }
 
+    /**
+     * Registers a listener that receives frames on a thread of its own.
+     */
     public void registerAudioCollectorListener(AudioCollectorListener listener) {
         Log.d(TAG, "Adding listener: " + listener.toString());
-        mListeners.add(listener);
+        mChannels.add(new AudioFrameChannel(listener));
+    }
+
+    /**
+     * Registers a listener that receives frames on the given executor. With
+     * {@link DeliveryMode#INLINE} the listener is called on the capture thread and the
+     * executor is not used.
+     */
+    public void registerAudioCollectorListener(AudioCollectorListener listener, Executor executor, DeliveryMode mode) {
+        Log.d(TAG, "Adding listener: " + listener.toString() + " (" + mode + ")");
+        mChannels.add(new AudioFrameChannel(listener, executor, mode));
     }
 
     public void unregisterAudioCollectorListener(AudioCollectorListener listener) {
         Log.d(TAG, "Removing listener: " + listener.toString());
-        mListeners.remove(listener);
+        for (AudioFrameChannel channel : mChannels) {
+            if (channel.getListener() == listener) {
+                mChannels.remove(channel);
+                channel.stop();
+                break;
+            }
+        }
     }
 
-    List<AudioCollectorListener> getAudioCollectorListeners() {
-        return mListeners;
+    List<AudioFrameChannel> getAudioFrameChannels() {
+        return mChannels;
+    }
+
+    public int getQueuedFrames() {
+        int queuedFrames = 0;
+        for (AudioFrameChannel channel : mChannels) {
+            queuedFrames += channel.getQueueDepth();
+        }
+        return queuedFrames;
+    }
+
+    public long getDroppedFrames() {
+        long droppedFrames = 0;
+        for (AudioFrameChannel channel : mChannels) {
+            droppedFrames += channel.getDroppedFrames();
+        }
+        return droppedFrames;
+    }
+
+    /**
+     * Called by the worker on its thread when the recorder has failed and capture has
+     * ended. Capture is restarted with a new recorder after a delay, unless it has failed
+     * {@link #MAX_CAPTURE_RESTARTS} times in a row without capturing anything.
+     */
+    synchronized void onCaptureFailed(String reason, boolean captured) {
+        Log.e(TAG, "Capture failed: " + reason);
+        if (captured) {
+            mCaptureRestarts = 0;
+        }
+        if (mCaptureRestarts >= MAX_CAPTURE_RESTARTS) {
+            Log.e(TAG, "Giving up after " + mCaptureRestarts + " restarts");
+            broadcastStatus("Failed");
+            return;
+        }
+        mCaptureRestarts++;
+        broadcastStatus("Restarting");
+        mHandler.postDelayed(mRestartCapture, CAPTURE_RESTART_DELAY_MILLIS);
     }
 
     private void setupService() {
+        mHandler.removeCallbacks(mRestartCapture);
         Log.d(TAG,"Stopping worker if exists...");
         stopCapture();
         Log.d(TAG,"Stopping worker if exists...Done.");
         int bufferSizeInMilliseconds = integerPreferenceValue(R.string.pref_buffer_size_key);
         int chunkSizeInMilliseconds = integerPreferenceValue(R.string.pref_chunk_size_key);
         int frameLengthInMilliseconds = integerPreferenceValue(R.string.pref_frame_length_key);
+        int frameHopInMilliseconds = integerPreferenceValue(R.string.pref_frame_hop_key);
+        PcmFormat format = pcmFormat();
+        boolean directCapture = "DIRECT".equals(stringPreferenceValue(R.string.pref_capture_mode_key));
         Log.i(TAG, "Starting to capture audio");
         mExecutor = Executors.newSingleThreadExecutor();
         Log.d(TAG,"Executing worker");
         mExecutor.execute(new AudioCollectorWorker(this,
+                format,
+                directCapture,
                 bufferSizeInMilliseconds,
                 chunkSizeInMilliseconds,
-                frameLengthInMilliseconds));
+                frameLengthInMilliseconds,
+                frameHopInMilliseconds));
         broadcastStatus("Capturing");
     }
 
@@ -120,6 +214,21 @@ public class AudioCollectorService extends MonitorableService {
         }
     }
 
+    private PcmFormat pcmFormat() {
+        PcmFormat.Encoding encoding = PcmFormat.Encoding.valueOf(stringPreferenceValue(R.string.pref_sample_encoding_key));
+        if (encoding == PcmFormat.Encoding.PCM_FLOAT && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            Log.w(TAG, "Floating point capture requires Android 6.0, capturing 16 bit samples");
+            encoding = PcmFormat.Encoding.PCM_16BIT;
+        }
+        return new PcmFormat(integerPreferenceValue(R.string.pref_sample_rate_key),
+                integerPreferenceValue(R.string.pref_channel_count_key),
+                encoding);
+    }
+
+    private String stringPreferenceValue(int key) {
+        return sharedPreferences().getString(getString(key), "");
+    }
+
     private int integerPreferenceValue(int key) {
         return Integer.parseInt(sharedPreferences().getString(getString(key), ""));
     }
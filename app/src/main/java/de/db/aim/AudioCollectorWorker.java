@@ -2,88 +2,188 @@ package de.db.aim;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 import android.os.Process;
 
 public class AudioCollectorWorker implements Runnable {
 
     private static final String TAG = AudioCollectorWorker.class.getSimpleName();
+    private static final int FRAME_POOL_SIZE = 16;
+    // Hops a listener may lag behind before the samples of its frames are overwritten
+    private static final int RING_BUFFER_SLACK_HOPS = 8;
 
     private AudioCollectorService mService;
     private AudioRecord mRecorder;
-    private short[] mAudioData;
-    private int mCurrentOffset;
-    private long mTimestamp;
-    private int mSampleRate = 44100;
+    private SampleRingBuffer mRingBuffer;
+    private AudioFramer mFramer;
+    private SampleClock mClock;
+    private PcmFormat mFormat;
+    private float[] mFloatChunk;
+    private boolean mDirectCapture;
     private int mBufferSizeInBytes;
     private int mChunkSizeInMilliseconds;
     private int mFrameLengthInMilliseconds;
+    private int mFrameHopInMilliseconds;
+
+    private final AudioCollectorListener mPublisher = new AudioCollectorListener() {
+
+        @Override
+        public void onNewAudioFrame(AudioFrame frame) {
+            Log.d(TAG, "Frame complete");
+            for (AudioFrameChannel channel : mService.getAudioFrameChannels()) {
+                Log.d(TAG, "Publishing to listener: " + channel.getListener().toString());
+                channel.offer(frame);
+            }
+        }
+    };
 
     AudioCollectorWorker(AudioCollectorService service,
+                         PcmFormat format,
+                         boolean directCapture,
                          int bufferSizeInMilliseconds,
                          int chunkSizeInMilliseconds,
-                         int frameLengthInMilliseconds) {
+                         int frameLengthInMilliseconds,
+                         int frameHopInMilliseconds) {
         this.mService = service;
+        this.mFormat = format;
+        this.mDirectCapture = directCapture;
         this.mChunkSizeInMilliseconds = chunkSizeInMilliseconds;
         this.mFrameLengthInMilliseconds = frameLengthInMilliseconds;
-        this.mBufferSizeInBytes = bufferSizeInMilliseconds * mSampleRate * 2 / 1000;
+        if (frameHopInMilliseconds <= 0 || frameHopInMilliseconds > frameLengthInMilliseconds) {
+            Log.w(TAG, "Frame hop " + frameHopInMilliseconds + " ms is out of range, using frame length");
+            frameHopInMilliseconds = frameLengthInMilliseconds;
+        }
+        this.mFrameHopInMilliseconds = frameHopInMilliseconds;
+        this.mBufferSizeInBytes = Math.max(bufferSizeInMilliseconds * format.getByteRate() / 1000,
+                AudioRecord.getMinBufferSize(format.getSampleRate(), channelConfig(), encoding()));
     }
 
     @Override
     public void run() {
         Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
-        int samplesPerFrame = mSampleRate * mFrameLengthInMilliseconds / 1000;
-        int chunkSizeInSamples = mSampleRate * mChunkSizeInMilliseconds / 1000;
+        int samplesPerFrame = mFormat.millisecondsToFrames(mFrameLengthInMilliseconds);
+        int samplesPerHop = mFormat.millisecondsToFrames(mFrameHopInMilliseconds);
+        int chunkSizeInSamples = mFormat.millisecondsToFrames(mChunkSizeInMilliseconds);
+        Log.i(TAG, "Capturing " + mFormat.toString());
         mRecorder = getRecorder();
-        mCurrentOffset = 0;
-        mAudioData = new short[samplesPerFrame];
+        mRingBuffer = new SampleRingBuffer(mFormat,
+                samplesPerFrame + RING_BUFFER_SLACK_HOPS * samplesPerHop + chunkSizeInSamples,
+                gcd(gcd(samplesPerFrame, samplesPerHop), chunkSizeInSamples),
+                mDirectCapture);
+        if (!mDirectCapture && mFormat.getEncoding() == PcmFormat.Encoding.PCM_FLOAT) {
+            mFloatChunk = new float[chunkSizeInSamples * mFormat.getChannelCount()];
+        }
+        mFramer = new AudioFramer(mRingBuffer,
+                new AudioFramePool(mRingBuffer, FRAME_POOL_SIZE),
+                samplesPerFrame,
+                samplesPerHop);
+        mClock = null;
+        if (mRecorder.getState() != AudioRecord.STATE_INITIALIZED) {
+            mRecorder.release();
+            mService.onCaptureFailed("AudioRecord could not be initialized", false);
+            return;
+        }
         mRecorder.startRecording();
-        //Empty buffer before reading timestamp
-        mRecorder.read(mAudioData, 0, mBufferSizeInBytes);
-        mTimestamp = System.currentTimeMillis();
+        int result = 0;
         while(!Thread.currentThread().isInterrupted()) {
-            capture(samplesPerFrame, chunkSizeInSamples);
+            result = capture(chunkSizeInSamples);
+            if (result < 0) {
+                break;
+            }
+        }
+        try {
+            mRecorder.stop();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Cannot stop AudioRecord: " + e.toString());
         }
-        mRecorder.stop();
         mRecorder.release();
+        if (result < 0) {
+            // The recorder does not recover from any of the read errors, so capture ends
+            // here and the service decides whether to start over with a new recorder
+            mService.onCaptureFailed("Could not read from AudioRecord: " + result, mRingBuffer.getWritePosition() > 0);
+        }
         Log.i(TAG,"End of worker thread");
     }
 
     private AudioRecord getRecorder() {
-        int encoding = AudioFormat.ENCODING_PCM_16BIT;
-        int channelConfig = AudioFormat.CHANNEL_IN_MONO;
         return new AudioRecord(MediaRecorder.AudioSource.MIC,
-                mSampleRate,
-                channelConfig,
-                encoding,
+                mFormat.getSampleRate(),
+                channelConfig(),
+                encoding(),
                 mBufferSizeInBytes);
     }
 
-    void capture(int samplesPerFrame, int chunkSizeInSamples) {
-        int samplesToFrameCompletion = samplesPerFrame - mCurrentOffset;
-        int samplesToCapture;
-        if (samplesToFrameCompletion < chunkSizeInSamples) {
-            samplesToCapture = samplesToFrameCompletion;
-        } else {
-            samplesToCapture = chunkSizeInSamples;
+    private int channelConfig() {
+        return mFormat.getChannelCount() == 2 ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+    }
+
+    private int encoding() {
+        return mFormat.getEncoding() == PcmFormat.Encoding.PCM_FLOAT ? AudioFormat.ENCODING_PCM_FLOAT : AudioFormat.ENCODING_PCM_16BIT;
+    }
+
+    /**
+     * @return the number of samples captured, or the negative error code of the recorder
+     */
+    int capture(int chunkSizeInSamples) {
+        int samplesToCapture = mFramer.samplesToCapture(chunkSizeInSamples);
+        mRingBuffer.claim(samplesToCapture);
+        int samplesCaptured = readSamples(samplesToCapture);
+        if (samplesCaptured < 0) {
+            Log.e(TAG, "Could not read from AudioRecord: " + samplesCaptured);
+            return samplesCaptured;
         }
-        int samplesCaptured = mRecorder.read(mAudioData, mCurrentOffset, samplesToCapture);
-        long newTimestamp = System.currentTimeMillis();
-        Log.d(TAG, "Captured " + samplesToCapture + " samples");
-        mCurrentOffset += samplesCaptured;
-        if (mCurrentOffset >= samplesPerFrame) {
-            Log.d(TAG, "Frame complete, resetting offset");
-            mCurrentOffset = 0;
-            publishToListeners(mTimestamp, mAudioData);
-            mTimestamp = newTimestamp;
+        Log.d(TAG, "Captured " + samplesCaptured + " samples");
+        mRingBuffer.commit(samplesCaptured);
+        long samplesWritten = mRingBuffer.getWritePosition();
+        if (mClock == null && samplesWritten > 0) {
+            mClock = anchorClock(samplesWritten);
         }
+        mFramer.emitCompletedFrames(mClock, mPublisher);
+        return samplesCaptured;
     }
 
-    private void publishToListeners(long timestamp, short[] audioData) {
-        for (AudioCollectorListener listener : mService.getAudioCollectorListeners()) {
-            Log.d(TAG, "Publishing to listener: " + listener.toString());
-            listener.onNewAudioFrame(timestamp, audioData);
+    private int readSamples(int samples) {
+        if (mDirectCapture) {
+            int bytesRead = mRecorder.read(mRingBuffer.writeBuffer(), samples * mFormat.getBytesPerFrame());
+            return bytesRead < 0 ? bytesRead : bytesRead / mFormat.getBytesPerFrame();
         }
+        if (mFormat.getEncoding() == PcmFormat.Encoding.PCM_FLOAT) {
+            int valuesRead = mRecorder.read(mFloatChunk, 0, samples * mFormat.getChannelCount(), AudioRecord.READ_BLOCKING);
+            if (valuesRead < 0) {
+                return valuesRead;
+            }
+            int samplesRead = valuesRead / mFormat.getChannelCount();
+            mRingBuffer.put(mFloatChunk, samplesRead);
+            return samplesRead;
+        }
+        int bytesRead = mRecorder.read(mRingBuffer.array(), mRingBuffer.writeByteOffset(), samples * mFormat.getBytesPerFrame());
+        return bytesRead < 0 ? bytesRead : bytesRead / mFormat.getBytesPerFrame();
+    }
+
+    /**
+     * Determines the time of the first captured sample. This happens once per session,
+     * all frame timestamps are derived from the sample count afterwards.
+     */
+    private SampleClock anchorClock(long samplesWritten) {
+        long nowNanos = SystemClock.elapsedRealtimeNanos();
+        long nowMillis = System.currentTimeMillis();
+        long anchorNanos = nowNanos - SampleClock.samplesToNanos(samplesWritten, mFormat.getSampleRate());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            AudioTimestamp timestamp = new AudioTimestamp();
+            if (mRecorder.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_BOOTTIME) == AudioRecord.SUCCESS) {
+                anchorNanos = timestamp.nanoTime - SampleClock.samplesToNanos(timestamp.framePosition, mFormat.getSampleRate());
+            }
+        }
+        long anchorWallClockMillis = nowMillis - (nowNanos - anchorNanos) / 1000000L;
+        Log.i(TAG, "Sample clock anchored at " + anchorNanos + " ns (" + anchorWallClockMillis + " ms)");
+        return new SampleClock(mFormat.getSampleRate(), anchorNanos, anchorWallClockMillis);
+    }
+
+    private static int gcd(int a, int b) {
+        return b == 0 ? a : gcd(b, a % b);
     }
 }
@@ -1,5 +1,10 @@
 package de.db.aim;
 
 public interface AudioEncoderListener {
-    void onNewEncodedAudioFrame(long timestamp, String path, String filename);
+    /**
+     * @param format the format of the samples in the file, which may differ from the
+     *               captured format, for example 16 bit samples encoded from float capture
+     * @param silent whether the file holds nothing but digital silence
+     */
+    void onNewEncodedAudioFrame(long timestamp, PcmFormat format, String path, String filename, boolean silent);
 }
@@ -1,8 +1,6 @@
 package de.db.aim;
 
 import android.app.Service;
-import android.app.job.JobInfo;
-import android.app.job.JobScheduler;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -25,15 +23,21 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class AudioEncoderService extends MonitorableService implements AudioCollectorListener {
 
     private static final String TAG = AudioEncoderService.class.getSimpleName();
-    private static final int FILE_REMOVER_JOB_ID = 1;
+    private static final int INPUT_QUEUE_CAPACITY = 8;
+    private static final String SEGMENT_INDEX_FILENAME = "segments.idx";
 
     private AudioEncoderBinder mBinder = new AudioEncoderBinder();
     private EncoderCallback mEncoderCallback = new EncoderCallback();
@@ -43,11 +47,56 @@ public class AudioEncoderService extends MonitorableService implements AudioColl
     private String mAudioPath;
     private String mAudioFilename;
     private int mAudioTrackIndex;
+    private AudioFrame mFrame;
     private ByteBuffer mCaptureBuffer;
+    private short[] mConversionBuffer;
+    private int mInputOffset;
+    private int mInputLength;
+    private PcmFormat mFormat;
     private long mTimestamp;
-    private long mPresentationTimestamp;
+    private final Object mEncoderLock = new Object();
+    private boolean mEncoding;
+    private EncoderInputQueue mInputQueue;
+    private volatile StreamingEncoder mStreamingEncoder;
+    // Set by rate control, 0 if the configured bit rate applies
+    private volatile int mBitRateLimit;
+    private volatile BackendEncoder mBackendEncoder;
+    // Wall clock time after the last frame that was not digital silence, plus a
+    // millisecond for rounding. A file starting at or after it holds only silence.
+    private volatile long mSoundEndTimestamp;
+    // Replaced when its preferences change, null if activity detection is off
+    private volatile ActivityDetector mActivityDetector;
+    private boolean mActive = true;
+    private final StreamingEncoder.Callback mSegmentCallback = new StreamingEncoder.Callback() {
+
+        @Override
+        public File createSegmentFile(long timestamp, String extension) {
+            new File(audioDirectory(timestamp)).mkdirs();
+            return new File(audioDirectory(timestamp), audioFilename(timestamp, extension));
+        }
+
+        @Override
+        public void onSegmentComplete(long timestamp, long durationMillis, PcmFormat format, File file) {
+            indexSegment(timestamp, durationMillis, file);
+            notifyListeners(timestamp, format, file.getParent(), file.getName());
+        }
+    };
+    private final Object mArchiveLock = new Object();
+    private PcmArchive mArchive;
+    private SegmentIndex mSegmentIndex;
+    private RetentionEngine mRetentionEngine;
+    private final ScheduledExecutorService mRetentionExecutor = Executors.newSingleThreadScheduledExecutor();
+    private ScheduledFuture<?> mRetentionTask;
+    private AudioCollectorListener mArchiveListener = new AudioCollectorListener() {
+
+        @Override
+        public void onNewAudioFrame(AudioFrame frame) {
+            archiveFrame(frame);
+        }
+    };
     private AudioCollectorService mService;
-    private List<AudioEncoderListener> mListeners = new ArrayList<AudioEncoderListener>();
+    // Iterated by the codec threads without locking, registrations replace the snapshot
+    private final List<EncodedAudioChannel> mChannels = new CopyOnWriteArrayList<EncodedAudioChannel>();
     private boolean mBound = false;
     private ServiceConnection mConnection = new ServiceConnection() {
 
@@ -59,6 +108,7 @@ public class AudioEncoderService extends MonitorableService implements AudioColl
             mService = binder.getService();
             mBound = true;
             mService.registerAudioCollectorListener(AudioEncoderService.this);
+            mService.registerAudioCollectorListener(mArchiveListener);
             broadcastStatus("Processing");
             sharedPreferences().registerOnSharedPreferenceChangeListener(mPreferenceChangeListener);
         }
@@ -66,11 +116,16 @@ public class AudioEncoderService extends MonitorableService implements AudioColl
         @Override
         public void onServiceDisconnected(ComponentName arg0) {
             mService.unregisterAudioCollectorListener(AudioEncoderService.this);
+            mService.unregisterAudioCollectorListener(mArchiveListener);
+            stopStreamingEncoder();
+            stopBackendEncoder();
+            closeArchive();
             if (mCodec != null) {
                 mCodec.flush();
                 mCodec.stop();
                 mCodec.release();
             }
+            mInputQueue.clear();
             broadcastStatus("Idle");
             sharedPreferences().unregisterOnSharedPreferenceChangeListener(mPreferenceChangeListener);
             mBound = false;
@@ -84,14 +139,31 @@ public class AudioEncoderService extends MonitorableService implements AudioColl
         public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
             if (getString(R.string.pref_format_type_key).equals(key)
                     || getString(R.string.pref_bit_rate_key).equals(key)
-                    || getString(R.string.pref_encoder_buffer_size_key).equals(key)) {
+                    || getString(R.string.pref_encoder_buffer_size_key).equals(key)
+                    || getString(R.string.pref_encoder_mode_key).equals(key)) {
                 Log.i(TAG, "An encoder preference has been changed: " + key);
+                stopStreamingEncoder();
+                stopBackendEncoder();
+            }
+            if (getString(R.string.pref_archive_size_key).equals(key)) {
+                Log.i(TAG, "Archive size has been changed");
+                closeArchive();
+            }
+            if (getString(R.string.pref_overload_policy_key).equals(key)) {
+                mInputQueue.setPolicy(overloadPolicy());
             }
             if (getString(R.string.pref_remove_period_key).equals(key)
-                    || getString(R.string.pref_keep_files_key).equals(key)) {
+                    || getString(R.string.pref_keep_files_key).equals(key)
+                    || getString(R.string.pref_max_storage_key).equals(key)
+                    || getString(R.string.pref_max_age_key).equals(key)
+                    || getString(R.string.pref_min_free_space_key).equals(key)) {
                 Log.i(TAG, "A file remover preference has been changed: " + key);
-                cancelFileRemoverJob();
-                scheduleFileRemoverJob();
+                scheduleRetention();
+            }
+            if (getString(R.string.pref_activity_threshold_key).equals(key)
+                    || getString(R.string.pref_activity_hangover_key).equals(key)) {
+                Log.i(TAG, "An activity detection preference has been changed: " + key);
+                mActivityDetector = null;
             }
         }
     };
@@ -99,24 +171,60 @@ public class AudioEncoderService extends MonitorableService implements AudioColl
     @Override
     public void onCreate() {
         super.onCreate();
+        PreferenceDefaults.apply(this);
+        mInputQueue = new EncoderInputQueue(INPUT_QUEUE_CAPACITY, overloadPolicy());
+        File indexFile = new File(getFilesDir(), SEGMENT_INDEX_FILENAME);
+        try {
+            mSegmentIndex = new SegmentIndex(indexFile);
+            Log.i(TAG, "Segment index holds " + mSegmentIndex.size() + " files");
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open segment index: " + e.toString());
+        }
+        if (mSegmentIndex != null) {
+            mRetentionEngine = new RetentionEngine(mSegmentIndex, new File(audioBaseDirectory()));
+            // Files written while the index did not exist or before a damaged part of it
+            if (mSegmentIndex.isIncomplete()) {
+                adoptExistingFiles();
+            }
+        }
         Intent intent = new Intent(this, AudioCollectorService.class);
         broadcastStatus("Initializing");
         Log.d(TAG,"Binding AudioCollectorService");
         bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
         broadcastStatus("Idle");
-        scheduleFileRemoverJob();
+        scheduleRetention();
     }
 
     @Override
     public void onDestroy() {
         sharedPreferences().unregisterOnSharedPreferenceChangeListener(mPreferenceChangeListener);
         unbindService(mConnection);
+        stopStreamingEncoder();
+        stopBackendEncoder();
+        closeArchive();
         if (mCodec != null) {
             mCodec.flush();
             mCodec.stop();
             mCodec.release();
         }
-        cancelFileRemoverJob();
+        mInputQueue.clear();
+        for (EncodedAudioChannel channel : mChannels) {
+            channel.stop();
+        }
+        mChannels.clear();
+        mRetentionExecutor.shutdownNow();
+        try {
+            mRetentionExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mSegmentIndex != null) {
+            try {
+                mSegmentIndex.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot close segment index: " + e.toString());
+            }
+        }
         broadcastStatus("Terminated");
         super.onDestroy();
     }
@@ -134,74 +242,358 @@ public class AudioEncoderService extends MonitorableService implements AudioColl
     }
 
     @Override
-    public void onNewAudioFrame(long timestamp, short[] audioData) {
-        mPresentationTimestamp = 0;
-        mTimestamp = timestamp;
-        Log.d(TAG, "New audio frame with " + String.valueOf(audioData.length) + " samples and timestamp " + timestamp + " received");
+    public void onNewAudioFrame(AudioFrame frame) {
+        Log.d(TAG, "New audio frame with " + String.valueOf(frame.getSampleCount()) + " samples and timestamp " + frame.getTimestamp() + " received");
+        if (!isActive(frame)) {
+            return;
+        }
+        if (!frame.isDigitalSilence()) {
+            long end = frame.getTimestamp() + SampleClock.samplesToNanos(frame.getSampleCount(), frame.getFormat().getSampleRate()) / 1000000L + 1;
+            if (end > mSoundEndTimestamp) {
+                mSoundEndTimestamp = end;
+            }
+        }
+        BackendEncoder backendEncoder = backendEncoder(frame.getFormat(), stringPreferenceValue(R.string.pref_format_type_key));
+        if (backendEncoder != null) {
+            mInputQueue.offer(frame);
+            backendEncoder.feed();
+            return;
+        }
+        if ("CONTINUOUS".equals(stringPreferenceValue(R.string.pref_encoder_mode_key))) {
+            StreamingEncoder encoder = streamingEncoder(frame.getFormat());
+            mInputQueue.offer(frame);
+            encoder.feed();
+            return;
+        }
+        mInputQueue.offer(frame);
+        encodeNextFrame();
+    }
+
+    public int getQueuedFrames() {
+        return mInputQueue.getQueueDepth();
+    }
 
-        prepareCaptureBuffer(audioData);
-        prepareCodec();
-        prepareMuxer(timestamp);
+    public long getEncodedFrames() {
+        return mInputQueue.getEncodedFrames();
+    }
 
-        Log.d(TAG, "Starting codec");
-        mCodec.start();
-        mEndOfStream = false;
+    public long getDroppedFrames() {
+        return mInputQueue.getDroppedFrames();
     }
 
-    private void scheduleFileRemoverJob() {
+    /**
+     * Frames that were not encoded because activity detection found nothing in them.
+     */
+    public long getInactiveFrames() {
+        ActivityDetector detector = mActivityDetector;
+        return detector == null ? 0 : detector.getInactiveFrames();
+    }
+
+    /**
+     * Limits the bit rate of the platform codec below the configured one, or lifts the
+     * limit if {@code bitRate} is 0. A continuous session is restarted with the new bit
+     * rate, otherwise it applies from the next file.
+     */
+    public void setBitRateLimit(int bitRate) {
+        if (bitRate == mBitRateLimit) {
+            return;
+        }
+        Log.i(TAG, "Bit rate limit: " + bitRate);
+        mBitRateLimit = bitRate;
+        stopStreamingEncoder();
+    }
+
+    /**
+     * Runs activity detection on a frame, if enabled. Inactive frames are neither queued
+     * nor encoded. When activity ends in continuous mode, the session is stopped, so the
+     * current file is completed and the next one starts with the next activity instead of
+     * spanning the gap.
+     */
+    private boolean isActive(AudioFrame frame) {
+        int threshold = integerPreferenceValue(R.string.pref_activity_threshold_key);
+        if (threshold == 0) {
+            mActivityDetector = null;
+            mActive = true;
+            return true;
+        }
+        ActivityDetector detector = mActivityDetector;
+        if (detector == null) {
+            detector = new ActivityDetector(threshold, 1000L * integerPreferenceValue(R.string.pref_activity_hangover_key));
+            mActivityDetector = detector;
+        }
+        boolean active = detector.isActive(frame);
+        if (active != mActive) {
+            mActive = active;
+            Log.i(TAG, (active ? "Activity" : "No activity") + " from frame with timestamp " + frame.getTimestamp()
+                    + ", noise floor " + Math.round(detector.getNoiseFloorDbfs()) + " dBFS");
+            if (!active && "CONTINUOUS".equals(stringPreferenceValue(R.string.pref_encoder_mode_key))) {
+                stopStreamingEncoder();
+                stopBackendEncoder();
+            }
+        }
+        return active;
+    }
+
+    /**
+     * Starts encoding the oldest queued frame into its own file, unless the codec is still
+     * busy with the previous one. Called for every new frame and whenever a file is complete.
+     */
+    private void encodeNextFrame() {
+        synchronized (mEncoderLock) {
+            AudioFrame frame;
+            while (!mEncoding && (frame = mInputQueue.poll()) != null) {
+                mTimestamp = frame.getTimestamp();
+                mFormat = frame.getFormat();
+                if (!prepareInput(frame)) {
+                    Log.w(TAG, "Samples of frame with timestamp " + mTimestamp + " have already been overwritten, skipping");
+                    mInputQueue.drop(frame);
+                    continue;
+                }
+                frame.release();
+                prepareCodec(mFormat);
+                prepareMuxer(mTimestamp);
+
+                Log.d(TAG, "Starting codec");
+                mEncoding = true;
+                mEndOfStream = false;
+                mCodec.start();
+            }
+        }
+    }
+
+    /**
+     * Returns the encoder of the current session, starting a new session if there is none
+     * yet or the collector's format has changed.
+     */
+    private StreamingEncoder streamingEncoder(PcmFormat pcmFormat) {
+        StreamingEncoder encoder = mStreamingEncoder;
+        if (encoder != null && encoder.getPcmFormat().equals(pcmFormat)) {
+            return encoder;
+        }
+        stopStreamingEncoder();
+        encoder = new StreamingEncoder(mediaFormat(pcmFormat), pcmFormat, mInputQueue, mSegmentCallback);
+        mStreamingEncoder = encoder;
+        return encoder;
+    }
+
+    private void stopStreamingEncoder() {
+        StreamingEncoder encoder = mStreamingEncoder;
+        mStreamingEncoder = null;
+        if (encoder != null) {
+            Log.d(TAG, "Stopping streaming encoder");
+            encoder.stop();
+        }
+    }
+
+    /**
+     * Software encoders for the format types that have no platform codec, or {@code null}
+     * if {@code mimeType} is encoded with {@link MediaCodec}.
+     */
+    private EncoderBackend encoderBackend(String mimeType) {
+        if (FlacEncoder.MIME_TYPE.equals(mimeType)) {
+            return new FlacEncoder();
+        }
+        if (WavEncoder.MIME_TYPE.equals(mimeType)) {
+            return new WavEncoder();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the backend encoder of the current session, starting a new session if there
+     * is none yet or the collector's format has changed.
+     *
+     * @return the encoder, or {@code null} if {@code mimeType} is not encoded by a backend
+     */
+    private BackendEncoder backendEncoder(PcmFormat pcmFormat, String mimeType) {
+        BackendEncoder encoder = mBackendEncoder;
+        if (encoder != null && encoder.getPcmFormat().equals(pcmFormat)) {
+            return encoder;
+        }
+        EncoderBackend backend = encoderBackend(mimeType);
+        if (backend == null) {
+            return null;
+        }
+        stopBackendEncoder();
+        boolean continuous = "CONTINUOUS".equals(stringPreferenceValue(R.string.pref_encoder_mode_key));
+        encoder = new BackendEncoder(backend, pcmFormat, continuous, mInputQueue, mSegmentCallback);
+        mBackendEncoder = encoder;
+        return encoder;
+    }
+
+    private void stopBackendEncoder() {
+        BackendEncoder encoder = mBackendEncoder;
+        mBackendEncoder = null;
+        if (encoder != null) {
+            Log.d(TAG, "Stopping backend encoder");
+            encoder.stop();
+        }
+    }
+
+    /**
+     * Appends the new samples of a frame to the raw archive, if enabled. The archive is
+     * opened with the format of the first frame and reopened when the format changes.
+     */
+    private void archiveFrame(AudioFrame frame) {
+        long archiveSize = 1024L * 1024L * integerPreferenceValue(R.string.pref_archive_size_key);
+        synchronized (mArchiveLock) {
+            if (archiveSize == 0) {
+                closeArchive();
+                return;
+            }
+            if (mArchive == null || !mArchive.getFormat().equals(frame.getFormat())) {
+                closeArchive();
+                try {
+                    // Outside of the audio directory, which is pruned by the file remover
+                    File file = new File(getExternalFilesDir(Environment.DIRECTORY_MUSIC), "archive.pcm");
+                    mArchive = new PcmArchive(file, frame.getFormat(), archiveSize);
+                    Log.i(TAG, "Opened raw archive with " + mArchive.getCapacity() + " bytes of " + frame.getFormat());
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot open raw archive: " + e.toString());
+                    return;
+                }
+            }
+            if (!mArchive.append(frame)) {
+                Log.w(TAG, "Samples of frame with timestamp " + frame.getTimestamp() + " have been overwritten before they were archived");
+            }
+        }
+    }
+
+    private void closeArchive() {
+        synchronized (mArchiveLock) {
+            if (mArchive == null) {
+                return;
+            }
+            try {
+                mArchive.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot close raw archive: " + e.toString());
+            }
+            mArchive = null;
+        }
+    }
+
+    private synchronized void scheduleRetention() {
+        if (mRetentionEngine == null) {
+            return;
+        }
+        mRetentionEngine.setMaxFiles(integerPreferenceValue(R.string.pref_keep_files_key));
+        mRetentionEngine.setMaxBytes(1024L * 1024L * integerPreferenceValue(R.string.pref_max_storage_key));
+        mRetentionEngine.setMaxAgeMillis(60L * 60L * 1000L * integerPreferenceValue(R.string.pref_max_age_key));
+        mRetentionEngine.setMinFreeBytes(1024L * 1024L * integerPreferenceValue(R.string.pref_min_free_space_key));
+        if (mRetentionTask != null) {
+            mRetentionTask.cancel(false);
+        }
         int removePeriod = integerPreferenceValue(R.string.pref_remove_period_key);
-        Log.d(TAG, "Scheduling file remover job to run every " + String.valueOf(removePeriod) + " minutes");
-        JobScheduler jobScheduler =
-                (JobScheduler) getSystemService(Context.JOB_SCHEDULER_SERVICE);
-        jobScheduler.schedule(new JobInfo.Builder(FILE_REMOVER_JOB_ID,
-                new ComponentName(this, FileRemoverJobService.class))
-                .setPeriodic(60 * 1000 * removePeriod)
-                .build());
+        Log.d(TAG, "Scheduling file removal every " + String.valueOf(removePeriod) + " minutes");
+        mRetentionTask = mRetentionExecutor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                enforceRetention();
+            }
+        }, removePeriod, removePeriod, TimeUnit.MINUTES);
+    }
+
+    private void enforceRetention() {
+        try {
+            int deleted = mRetentionEngine.enforce(System.currentTimeMillis());
+            Log.d(TAG, "Removed " + deleted + " old audio files, " + mSegmentIndex.size() + " files left");
+            int failed = mRetentionEngine.getFailedDeletions();
+            if (failed > 0) {
+                Log.w(TAG, "Could not delete " + failed + " old audio files, dropped them from the segment index");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot remove old audio files: " + e.toString());
+        }
     }
 
-    private void cancelFileRemoverJob() {
-        Log.d(TAG, "Cancelling file remover job");
-        JobScheduler jobScheduler =
-                (JobScheduler) getSystemService(Context.JOB_SCHEDULER_SERVICE);
-        jobScheduler.cancel(FILE_REMOVER_JOB_ID);
+    private void adoptExistingFiles() {
+        mRetentionExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    int added = mRetentionEngine.adopt();
+                    Log.i(TAG, "Added " + added + " existing audio files to segment index");
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot add existing audio files to segment index: " + e.toString());
+                }
+            }
+        });
     }
 
-    private void prepareCaptureBuffer(short[] audioData) {
+    /**
+     * 16 bit frames are fed to the codec straight from the collector's ring buffer. Frames
+     * in other encodings are converted once into the capture buffer, as the encoder always
+     * consumes 16 bit PCM.
+     */
+    private boolean prepareInput(AudioFrame frame) {
+        releaseFrame();
+        mInputOffset = 0;
+        mInputLength = frame.getSampleCount();
+        if (frame.getFormat().getEncoding() == PcmFormat.Encoding.PCM_16BIT) {
+            mFrame = frame.retain();
+            return true;
+        }
+        int valueCount = frame.getSampleCount() * frame.getFormat().getChannelCount();
         if (mCaptureBuffer == null) {
-            mCaptureBuffer = ByteBuffer.allocate(2 * audioData.length);
-        } else if (mCaptureBuffer.capacity() != 2 * audioData.length) {
-            mCaptureBuffer = ByteBuffer.allocate(2 * audioData.length);
+            mCaptureBuffer = ByteBuffer.allocate(2 * valueCount);
+        } else if (mCaptureBuffer.capacity() != 2 * valueCount) {
+            mCaptureBuffer = ByteBuffer.allocate(2 * valueCount);
         } else {
             mCaptureBuffer.clear();
         }
         mCaptureBuffer.order(ByteOrder.nativeOrder());
-        mCaptureBuffer.asShortBuffer().put(audioData);
-        mCaptureBuffer.position(2 * audioData.length);
-        mCaptureBuffer.flip();
+        if (mConversionBuffer == null || mConversionBuffer.length != valueCount) {
+            mConversionBuffer = new short[valueCount];
+        }
+        if (!frame.read(mConversionBuffer, 0)) {
+            return false;
+        }
+        mCaptureBuffer.asShortBuffer().put(mConversionBuffer);
+        return true;
+    }
+
+    private void releaseFrame() {
+        if (mFrame != null) {
+            mFrame.release();
+            mFrame = null;
+        }
     }
 
-    private void prepareCodec() {
+    private void prepareCodec(PcmFormat pcmFormat) {
         if (mCodec != null) {
             mCodec.stop();
             mCodec.release();
         }
-        MediaFormat format = MediaFormat.createAudioFormat(stringPreferenceValue(R.string.pref_format_type_key), 44100, 1);
-        format.setInteger(MediaFormat.KEY_BIT_RATE, integerPreferenceValue(R.string.pref_bit_rate_key));
-        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, integerPreferenceValue(R.string.pref_encoder_buffer_size_key));
-        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
         try {
             mCodec = MediaCodec.createEncoderByType(stringPreferenceValue(R.string.pref_format_type_key));
             mCodec.setCallback(mEncoderCallback);
-            mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mCodec.configure(mediaFormat(pcmFormat), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         } catch (IOException e) {
             throw new RuntimeException("Cannot create codec");
         }
     }
 
+    private MediaFormat mediaFormat(PcmFormat pcmFormat) {
+        MediaFormat format = MediaFormat.createAudioFormat(stringPreferenceValue(R.string.pref_format_type_key),
+                pcmFormat.getSampleRate(),
+                pcmFormat.getChannelCount());
+        int bitRate = integerPreferenceValue(R.string.pref_bit_rate_key);
+        if (mBitRateLimit > 0) {
+            bitRate = Math.min(bitRate, mBitRateLimit);
+        }
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mInputQueue.bitRate(bitRate));
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, integerPreferenceValue(R.string.pref_encoder_buffer_size_key));
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        return format;
+    }
+
     private void prepareMuxer(long timestamp) {
         new File(audioDirectory(timestamp)).mkdirs();
         mAudioPath = audioDirectory(timestamp);
-        mAudioFilename = audioFilename(timestamp);
+        mAudioFilename = audioFilename(timestamp, "m4a");
         Log.d(TAG, "Output file: " + mAudioFilename);
         try {
             mMuxer = new MediaMuxer(mAudioPath + "/" + mAudioFilename, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
@@ -210,6 +602,10 @@ public class AudioEncoderService extends MonitorableService implements AudioColl
         }
     }
 
+    private String audioBaseDirectory() {
+        return Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC).getAbsolutePath() + "/AIM";
+    }
+
     private String audioDirectory(long timestamp) {
         Date date = new Date(timestamp);
         SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
@@ -218,15 +614,19 @@ public class AudioEncoderService extends MonitorableService implements AudioColl
         format = new SimpleDateFormat("HH");
         format.setTimeZone(TimeZone.getTimeZone("UTC"));
         String hour = format.format(date);
-        return Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC).getAbsolutePath() + "/AIM/" + formattedDate + "/" + hour;
+        return audioBaseDirectory() + "/" + formattedDate + "/" + hour;
     }
 
-    private String audioFilename(long timestamp) {
+    private String audioFilename(long timestamp, String extension) {
         Date date = new Date(timestamp);
         SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'Z'HH-mm-ss'.'SSS");
         format.setTimeZone(TimeZone.getTimeZone("UTC"));
         String formattedTimestamp = format.format(date);
-        return stringPreferenceValue(R.string.pref_file_prefix_key) + "_" + formattedTimestamp + ".m4a";
+        return stringPreferenceValue(R.string.pref_file_prefix_key) + "_" + formattedTimestamp + "." + extension;
+    }
+
+    private EncoderInputQueue.OverloadPolicy overloadPolicy() {
+        return EncoderInputQueue.OverloadPolicy.valueOf(stringPreferenceValue(R.string.pref_overload_policy_key));
     }
 
     private String stringPreferenceValue(int key) {
@@ -241,14 +641,68 @@ public class AudioEncoderService extends MonitorableService implements AudioColl
         return PreferenceManager.getDefaultSharedPreferences(this);
     }
 
+    /**
+     * Registers a listener that is notified about new files on a thread of its own.
+     */
     public void registerAudioEncoderListener(AudioEncoderListener listener) {
         Log.d(TAG, "Adding listener: " + listener.toString());
-        mListeners.add(listener);
+        mChannels.add(new EncodedAudioChannel(listener));
+    }
+
+    /**
+     * Registers a listener that is notified about new files on the given executor. With
+     * {@link DeliveryMode#INLINE} the listener is called on the codec thread and the
+     * executor is not used.
+     */
+    public void registerAudioEncoderListener(AudioEncoderListener listener, Executor executor, DeliveryMode mode) {
+        Log.d(TAG, "Adding listener: " + listener.toString() + " (" + mode + ")");
+        mChannels.add(new EncodedAudioChannel(listener, executor, mode));
     }
 
     public void unregisterAudioEncoderListener(AudioEncoderListener listener) {
         Log.d(TAG, "Removing listener: " + listener.toString());
-        mListeners.remove(listener);
+        for (EncodedAudioChannel channel : mChannels) {
+            if (channel.getListener() == listener) {
+                mChannels.remove(channel);
+                channel.stop();
+                break;
+            }
+        }
+    }
+
+    /**
+     * The index of all audio files written by this service, or {@code null} if it could
+     * not be opened.
+     */
+    SegmentIndex getSegmentIndex() {
+        return mSegmentIndex;
+    }
+
+    private void indexSegment(long timestamp, long durationMillis, File file) {
+        if (mSegmentIndex == null) {
+            return;
+        }
+        try {
+            mSegmentIndex.add(new AudioSegment(timestamp,
+                    durationMillis,
+                    file.getAbsolutePath(),
+                    file.length(),
+                    stringPreferenceValue(R.string.pref_format_type_key)));
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot add " + file.getName() + " to segment index: " + e.toString());
+        }
+    }
+
+    /**
+     * Hands a completed file to the listeners. Frames are offered to the encoder before
+     * they are encoded, so a file that contains sound is never reported as silent; a
+     * silent file may be reported as not silent if frames with sound are already queued.
+     */
+    private void notifyListeners(long timestamp, PcmFormat format, String path, String filename) {
+        boolean silent = timestamp >= mSoundEndTimestamp;
+        for (EncodedAudioChannel channel : mChannels) {
+            channel.offer(timestamp, format, path, filename, silent);
+        }
     }
 
     class AudioEncoderBinder extends Binder {
@@ -268,23 +722,32 @@ public class AudioEncoderService extends MonitorableService implements AudioColl
                 return;
             }
             ByteBuffer inputBuffer = mediaCodec.getInputBuffer(i);
+            int bytesPerSample = 2 * mFormat.getChannelCount();
+            long presentationTimeUs = SampleClock.samplesToNanos(mInputOffset, mFormat.getSampleRate()) / 1000;
+            int samples = Math.min(mInputLength - mInputOffset, inputBuffer.remaining() / bytesPerSample);
             int flags = 0;
-            byte[] subFrame;
-            if (mCaptureBuffer.limit() != mCaptureBuffer.position()) {
-                int inputBufferAvailableBytes = inputBuffer.limit() - inputBuffer.position();
-                int captureBufferAvailableBytes = mCaptureBuffer.limit() - mCaptureBuffer.position();
-                subFrame = new byte[Math.min(inputBufferAvailableBytes, captureBufferAvailableBytes)];
-                mCaptureBuffer.get(subFrame);
-            } else{
+            if (samples > 0 && !fillInputBuffer(inputBuffer, samples, bytesPerSample)) {
+                Log.w(TAG, "Samples have been overwritten before they were encoded, ending stream");
+                inputBuffer.clear();
+                samples = 0;
+            }
+            if (samples == 0) {
                 flags = MediaCodec.BUFFER_FLAG_END_OF_STREAM;
-                inputBuffer.put(ByteBuffer.allocate(0));
-                subFrame = new byte[0];
                 Log.d(TAG, "Setting end of stream flag");
                 mEndOfStream = true;
+                releaseFrame();
+            }
+            mediaCodec.queueInputBuffer(i, 0, samples * bytesPerSample, presentationTimeUs, flags);
+            mInputOffset += samples;
+        }
+
+        private boolean fillInputBuffer(ByteBuffer inputBuffer, int samples, int bytesPerSample) {
+            if (mFrame != null) {
+                return mFrame.copyTo(mInputOffset, inputBuffer, samples);
             }
-            inputBuffer.put(subFrame);
-            mediaCodec.queueInputBuffer(i, 0, subFrame.length, mPresentationTimestamp, flags);
-            mPresentationTimestamp += 1000000L * (long) subFrame.length / (2L * 44100L);
+            mCaptureBuffer.limit((mInputOffset + samples) * bytesPerSample).position(mInputOffset * bytesPerSample);
+            inputBuffer.put(mCaptureBuffer);
+            return true;
         }
 
         @Override
@@ -301,9 +764,15 @@ public class AudioEncoderService extends MonitorableService implements AudioColl
                 mMuxer.stop();
                 mMuxer.release();
                 mMuxer = null;
-                for (AudioEncoderListener listener : mListeners) {
-                    listener.onNewEncodedAudioFrame(mTimestamp, mAudioPath, mAudioFilename);
+                indexSegment(mTimestamp,
+                        SampleClock.samplesToNanos(mInputLength, mFormat.getSampleRate()) / 1000000L,
+                        new File(mAudioPath, mAudioFilename));
+                notifyListeners(mTimestamp, mFormat.withEncoding(PcmFormat.Encoding.PCM_16BIT), mAudioPath, mAudioFilename);
+                mInputQueue.markEncoded();
+                synchronized (mEncoderLock) {
+                    mEncoding = false;
                 }
+                encodeNextFrame();
             }
         }
 
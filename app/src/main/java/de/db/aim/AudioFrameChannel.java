@@ -0,0 +1,94 @@
+package de.db.aim;
+
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Delivers audio frames to a single {@link AudioCollectorListener} according to its
+ * {@link DeliveryMode}. The capture thread only enqueues; if the listener falls behind,
+ * frames are dropped and counted instead of stalling the capture loop.
+ */
+class AudioFrameChannel extends DispatchChannel {
+
+    private static final String TAG = AudioFrameChannel.class.getSimpleName();
+    private static final int QUEUE_CAPACITY = 8;
+
+    private final AudioCollectorListener mListener;
+    private final SpscQueue<AudioFrame> mQueue = new SpscQueue<AudioFrame>(QUEUE_CAPACITY);
+    private final AtomicReference<AudioFrame> mLatest = new AtomicReference<AudioFrame>();
+    // Only written by the capture thread
+    private volatile long mDroppedFrames;
+
+    AudioFrameChannel(AudioCollectorListener listener) {
+        super(TAG + "-" + listener.getClass().getSimpleName());
+        this.mListener = listener;
+    }
+
+    AudioFrameChannel(AudioCollectorListener listener, Executor executor, DeliveryMode mode) {
+        super(executor, mode);
+        this.mListener = listener;
+    }
+
+    AudioCollectorListener getListener() {
+        return mListener;
+    }
+
+    /**
+     * Called by the capture thread for every frame.
+     */
+    boolean offer(AudioFrame frame) {
+        switch (getDeliveryMode()) {
+            case INLINE:
+                if (!isStopped()) {
+                    mListener.onNewAudioFrame(frame);
+                }
+                return true;
+            case LATEST_ONLY:
+                AudioFrame replaced = mLatest.getAndSet(frame.retain());
+                if (replaced != null) {
+                    replaced.release();
+                    mDroppedFrames++;
+                }
+                schedule();
+                return replaced == null;
+            default:
+                if (!mQueue.offer(frame.retain())) {
+                    frame.release();
+                    mDroppedFrames++;
+                    Log.w(TAG, "Queue of " + mListener.toString() + " is full, dropped frame with timestamp " + frame.getTimestamp());
+                    return false;
+                }
+                schedule();
+                return true;
+        }
+    }
+
+    int getQueueDepth() {
+        return mQueue.size() + (mLatest.get() != null ? 1 : 0);
+    }
+
+    long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    @Override
+    void deliverPending(boolean discard) {
+        AudioFrame frame;
+        while ((frame = mQueue.poll()) != null || (frame = mLatest.getAndSet(null)) != null) {
+            try {
+                if (!discard && !isStopped()) {
+                    mListener.onNewAudioFrame(frame);
+                }
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    @Override
+    boolean hasPending() {
+        return mQueue.size() > 0 || mLatest.get() != null;
+    }
+}
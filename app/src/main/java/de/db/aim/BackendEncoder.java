@@ -0,0 +1,193 @@
+package de.db.aim;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Encodes queued frames with an {@link EncoderBackend} on a dedicated thread.
+ * <p>
+ * In continuous mode the audio of the whole session is encoded once and rotated into a
+ * new file at multiples of the length of the first frame from the start of the session,
+ * like {@link StreamingEncoder} does; overlapping frames only contribute the samples that
+ * have not been encoded yet. The backends are sample exact, so consecutive files hold
+ * consecutive samples; a gap in the input, or samples that were overwritten before they
+ * could be encoded, end the current file early instead of leaving a hole in it. Otherwise
+ * every frame is encoded into its own file.
+ */
+class BackendEncoder {
+
+    private static final String TAG = BackendEncoder.class.getSimpleName();
+
+    private final EncoderBackend mBackend;
+    private final PcmFormat mPcmFormat;
+    private final boolean mContinuous;
+    private final EncoderInputQueue mInputQueue;
+    private final StreamingEncoder.Callback mCallback;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private volatile boolean mStopped;
+    private final Runnable mDrainTask = new Runnable() {
+
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    // Only accessed on the encoder thread
+    private File mFile;
+    private long mFileTimestamp;
+    private long mEncodedUpTo = -1;
+    private long mNextBoundarySample;
+    private int mSegmentSamples;
+
+    BackendEncoder(EncoderBackend backend, PcmFormat pcmFormat, boolean continuous, EncoderInputQueue inputQueue, StreamingEncoder.Callback callback) {
+        this.mBackend = backend;
+        this.mPcmFormat = pcmFormat;
+        this.mContinuous = continuous;
+        this.mInputQueue = inputQueue;
+        this.mCallback = callback;
+    }
+
+    PcmFormat getPcmFormat() {
+        return mPcmFormat;
+    }
+
+    /**
+     * Encodes the frames in the input queue.
+     */
+    void feed() {
+        try {
+            mExecutor.execute(mDrainTask);
+        } catch (RejectedExecutionException e) {
+            // Stopped, the frames stay queued for the next session
+        }
+    }
+
+    /**
+     * Finishes the current file. Frames that are still queued are left for the next
+     * session.
+     */
+    void stop() {
+        mStopped = true;
+        mExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    finishFile();
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot finish " + mFile + ": " + e.toString());
+                    abortFile();
+                }
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    private void drain() {
+        AudioFrame frame;
+        while (!mStopped && (frame = mInputQueue.poll()) != null) {
+            if (!frame.getFormat().equals(mPcmFormat)) {
+                Log.w(TAG, "Frame with timestamp " + frame.getTimestamp() + " does not match the format of the session");
+                mInputQueue.drop(frame);
+                continue;
+            }
+            try {
+                if (mContinuous ? encodeContinuous(frame) : encodeSingle(frame)) {
+                    mInputQueue.markEncoded();
+                    frame.release();
+                } else {
+                    Log.w(TAG, "Samples of frame with timestamp " + frame.getTimestamp() + " have been overwritten before they were encoded");
+                    mInputQueue.drop(frame);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot encode frame with timestamp " + frame.getTimestamp() + ": " + e.toString());
+                mInputQueue.drop(frame);
+                abortFile();
+            }
+        }
+    }
+
+    private boolean encodeSingle(AudioFrame frame) throws IOException {
+        startFile(frame.getTimestamp());
+        if (!mBackend.encode(frame, 0, frame.getSampleCount())) {
+            abortFile();
+            return false;
+        }
+        finishFile();
+        return true;
+    }
+
+    private boolean encodeContinuous(AudioFrame frame) throws IOException {
+        long start = frame.getStartSampleIndex();
+        if (mEncodedUpTo < 0) {
+            mEncodedUpTo = start;
+            mSegmentSamples = frame.getSampleCount();
+            mNextBoundarySample = start + mSegmentSamples;
+        } else if (start > mEncodedUpTo) {
+            Log.w(TAG, "Gap of " + (start - mEncodedUpTo) + " samples before frame with timestamp " + frame.getTimestamp());
+            finishFile();
+            mEncodedUpTo = start;
+        }
+        int offset = (int) (mEncodedUpTo - start);
+        while (offset < frame.getSampleCount()) {
+            long sampleIndex = start + offset;
+            if (sampleIndex >= mNextBoundarySample) {
+                // Boundaries that fall into a gap are skipped
+                mNextBoundarySample += (sampleIndex - mNextBoundarySample) / mSegmentSamples * mSegmentSamples + mSegmentSamples;
+                finishFile();
+            }
+            if (mFile == null) {
+                startFile(frame.getTimestamp() + SampleClock.samplesToNanos(offset, mPcmFormat.getSampleRate()) / 1000000L);
+            }
+            int length = (int) Math.min(frame.getSampleCount() - offset, mNextBoundarySample - sampleIndex);
+            long encoded = mBackend.getSampleCount();
+            boolean complete = mBackend.encode(frame, offset, length);
+            // A failed call may have encoded some of the samples, the file continues after them
+            mEncodedUpTo = sampleIndex + mBackend.getSampleCount() - encoded;
+            if (!complete) {
+                return false;
+            }
+            offset += length;
+        }
+        return true;
+    }
+
+    private void startFile(long timestamp) throws IOException {
+        mFile = mCallback.createSegmentFile(timestamp, mBackend.getFileExtension());
+        mFileTimestamp = timestamp;
+        Log.d(TAG, "Output file: " + mFile.getName());
+        mBackend.start(mFile, mPcmFormat);
+    }
+
+    private void finishFile() throws IOException {
+        if (mFile == null) {
+            return;
+        }
+        long durationMillis = SampleClock.samplesToNanos(mBackend.getSampleCount(), mPcmFormat.getSampleRate()) / 1000000L;
+        mBackend.finish();
+        File file = mFile;
+        mFile = null;
+        mCallback.onSegmentComplete(mFileTimestamp, durationMillis, mBackend.getOutputFormat(mPcmFormat), file);
+    }
+
+    private void abortFile() {
+        if (mFile == null) {
+            return;
+        }
+        try {
+            mBackend.finish();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot close " + mFile.getName() + ": " + e.toString());
+        }
+        if (!mFile.delete()) {
+            Log.w(TAG, "Cannot delete " + mFile.getName());
+        }
+        mFile = null;
+    }
+}
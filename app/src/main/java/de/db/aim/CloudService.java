@@ -5,16 +5,15 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
-import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
 
 import org.eclipse.paho.android.service.MqttAndroidClient;
-import org.eclipse.paho.client.mqttv3.DisconnectedBufferOptions;
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
@@ -27,17 +26,83 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class CloudService extends MonitorableService implements AudioEncoderListener {
 
     private static final String TAG = CloudService.class.getSimpleName();
+    private static final int MAX_INFLIGHT = 10;
+    private static final String SPOOL_DIRECTORY = "spool";
+    private static final long SPOOL_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final long SPOOL_MAX_SIZE = 256 * 1024 * 1024;
+    private static final String CHUNK_TOPIC_SUFFIX = "/chunks";
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+    private static final long RATE_CONTROL_INTERVAL_SECONDS = 60;
+    private static final String RATE_CONTROL_TOPIC_COMPONENT = "RATE_CONTROL";
+    private static final int CONTENT_HASH_CACHE_SIZE = 64;
+    private static final String FEATURE_TOPIC_COMPONENT = "FEATURES";
 
     private CloudBinder mBinder = new CloudBinder();
     private AudioEncoderService mService;
     private boolean mBound = false;
+    private AudioCollectorService mCollectorService;
+    private boolean mCollectorBound = false;
+    // Only used on the thread of the feature listener's channel
+    private final FeatureExtractor mFeatureExtractor = new FeatureExtractor();
+    private final Payload mFeaturePayload = new Payload();
+    private final AudioCollectorListener mFeatureListener = new AudioCollectorListener() {
+
+        @Override
+        public void onNewAudioFrame(AudioFrame frame) {
+            publishFeatures(frame);
+        }
+    };
     private MqttAndroidClient mMqttClient;
     private long mLastAudioPublishTimestamp;
+    private volatile MessageSpool mSpool;
+    // Publish pipeline: up to MAX_INFLIGHT audio files are read in parallel, and the
+    // reorder buffer hands them to the single serialize worker in the order they were
+    // encoded, so they are appended to the spool in that order and the spool is drained
+    // in order by the spool executor. The read stage queues every file; a full serialize
+    // stage blocks the readers.
+    private final ThreadPoolExecutor mReadExecutor = publishStageExecutor(MAX_INFLIGHT, new LinkedBlockingQueue<Runnable>(), new ThreadPoolExecutor.AbortPolicy());
+    private final ThreadPoolExecutor mSerializeExecutor = publishStageExecutor(1, new LinkedBlockingQueue<Runnable>(MAX_INFLIGHT), new BlockWhenFullPolicy());
+    private final ReorderBuffer mSerializeOrder = new ReorderBuffer(mSerializeExecutor, 2 * MAX_INFLIGHT);
+    private final ExecutorService mSpoolExecutor = Executors.newSingleThreadExecutor();
+    // Hashes of recently uploaded audio files, to send a reference instead of a repeat
+    private final ContentHashCache mContentHashes = new ContentHashCache(CONTENT_HASH_CACHE_SIZE);
+    // Travels with its token as user context, as the delivery can complete before publish returns
+    private final Set<InflightMessage> mInflight = Collections.newSetFromMap(new ConcurrentHashMap<InflightMessage, Boolean>());
+    // Null while the publish period and bit rate are static
+    private volatile RateController mRateController;
+    private final ScheduledExecutorService mRateControlExecutor = Executors.newSingleThreadScheduledExecutor();
+    private ScheduledFuture<?> mRateControl;
+    // Only used on the rate control executor
+    private final Payload mRateControlPayload = new Payload();
+    private volatile PayloadBatcher mBatcher;
+    // Publishes batches whose linger time is over
+    private final ScheduledExecutorService mBatchExecutor = Executors.newSingleThreadScheduledExecutor();
+    private ScheduledFuture<?> mBatchFlush;
+    private final PayloadBatcher.Sink mBatchSink = new PayloadBatcher.Sink() {
+
+        @Override
+        public void publish(String topic, byte[] message, int offset, int length) {
+            spoolMessage(topic, Arrays.copyOfRange(message, offset, offset + length));
+        }
+    };
 
     private ServiceConnection mConnection = new ServiceConnection() {
 
@@ -49,6 +114,8 @@ public class CloudService extends MonitorableService implements AudioEncoderList
             mService = binder.getService();
             mBound = true;
             mService.registerAudioEncoderListener(CloudService.this);
+            RateController rateController = mRateController;
+            mService.setBitRateLimit(rateController == null ? 0 : rateController.getBitRate());
         }
 
         @Override
@@ -58,6 +125,24 @@ public class CloudService extends MonitorableService implements AudioEncoderList
         }
     };
 
+    private ServiceConnection mCollectorConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName className,
+                                       IBinder service) {
+            AudioCollectorService.AudioCollectorBinder binder = (AudioCollectorService.AudioCollectorBinder) service;
+            mCollectorService = binder.getService();
+            mCollectorBound = true;
+            mCollectorService.registerAudioCollectorListener(mFeatureListener);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName arg0) {
+            mCollectorService.unregisterAudioCollectorListener(mFeatureListener);
+            mCollectorBound = false;
+        }
+    };
+
     private SharedPreferences.OnSharedPreferenceChangeListener mPreferenceChangeListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
 
         @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
@@ -71,6 +156,19 @@ public class CloudService extends MonitorableService implements AudioEncoderList
                     getString(R.string.pref_audio_publish_period_key).equals(key)){
                 Log.i(TAG, "An encoder preference has been changed: " + key);
                 setupService();
+            } else if (getString(R.string.pref_metric_batch_size_key).equals(key) ||
+                    getString(R.string.pref_metric_batch_linger_key).equals(key)) {
+                Log.i(TAG, "A batch preference has been changed: " + key);
+                setupBatcher();
+            }
+            if (getString(R.string.pref_audio_rate_control_key).equals(key) ||
+                    getString(R.string.pref_min_audio_publish_period_key).equals(key) ||
+                    getString(R.string.pref_max_audio_publish_period_key).equals(key) ||
+                    getString(R.string.pref_min_bit_rate_key).equals(key) ||
+                    getString(R.string.pref_bit_rate_key).equals(key) ||
+                    getString(R.string.pref_audio_publish_period_key).equals(key)) {
+                Log.i(TAG, "A rate control preference has been changed: " + key);
+                setupRateControl();
             }
         }
     };
@@ -78,11 +176,22 @@ public class CloudService extends MonitorableService implements AudioEncoderList
     @Override
     public void onCreate() {
         super.onCreate();
+        PreferenceDefaults.apply(this);
+        try {
+            mSpool = new MessageSpool(new File(getFilesDir(), SPOOL_DIRECTORY), SPOOL_SEGMENT_SIZE, SPOOL_MAX_SIZE);
+            Log.i(TAG, "Spool holds " + mSpool.getPendingMessages() + " unsent messages");
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open spool: " + e.toString());
+        }
         Intent intent = new Intent(this, AudioEncoderService.class);
         Log.d(TAG,"Binding AudioEncoderService");
         bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+        Log.d(TAG,"Binding AudioCollectorService");
+        bindService(new Intent(this, AudioCollectorService.class), mCollectorConnection, Context.BIND_AUTO_CREATE);
         sharedPreferences().registerOnSharedPreferenceChangeListener(mPreferenceChangeListener);
         broadcastStatus("Initializing");
+        setupBatcher();
+        setupRateControl();
         setupService();
     }
 
@@ -91,6 +200,25 @@ public class CloudService extends MonitorableService implements AudioEncoderList
         sharedPreferences().unregisterOnSharedPreferenceChangeListener(mPreferenceChangeListener);
         Log.d(TAG,"Unbinding AudioEncoderService");
         unbindService(mConnection);
+        if (mCollectorBound) {
+            mCollectorService.unregisterAudioCollectorListener(mFeatureListener);
+            mCollectorBound = false;
+        }
+        Log.d(TAG,"Unbinding AudioCollectorService");
+        unbindService(mCollectorConnection);
+        mReadExecutor.shutdownNow();
+        mSerializeExecutor.shutdownNow();
+        mRateControlExecutor.shutdownNow();
+        mBatchExecutor.shutdownNow();
+        mBatcher.flushAll();
+        mSpoolExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                closeSpool();
+            }
+        });
+        mSpoolExecutor.shutdown();
         broadcastStatus("Terminated");
         super.onDestroy();
     }
@@ -102,25 +230,560 @@ public class CloudService extends MonitorableService implements AudioEncoderList
     }
 
     @Override
-    public void onNewEncodedAudioFrame(long timestamp, String path, String filename) {
+    public void onNewEncodedAudioFrame(long timestamp, PcmFormat format, String path, String filename, boolean silent) {
         Log.d(TAG, "Received encoded audio filename " + filename + " with timestamp " + timestamp);
         long now = System.currentTimeMillis();
-        if (now >= mLastAudioPublishTimestamp + 1000 * integerPreferenceValue(R.string.pref_audio_publish_period_key)) {
+        if (now >= mLastAudioPublishTimestamp + 1000 * audioPublishPeriod()) {
             Log.d(TAG, "Audio publish period is elapsed");
             mLastAudioPublishTimestamp = now;
-            new AudioPublisherTask().execute(new AudioPublisherTaskParams(mMqttClient, getTopic(), timestamp, new String(path), new String(filename)));
+            publishAudioFile(getTopic(), timestamp, format, path, filename, silent);
+        }
+    }
+
+    /**
+     * Queues the file for the read stage of the publish pipeline, after reserving its
+     * place in the order of the serialize stage. Does not block.
+     */
+    private void publishAudioFile(final String topic, final long timestamp, final PcmFormat format, final String path, final String filename, final boolean silent) {
+        final int chunkSize = integerPreferenceValue(R.string.pref_audio_upload_chunk_size_key);
+        final PayloadFormat payloadFormat = payloadFormat(R.string.pref_audio_payload_format_key);
+        final long sequence = mSerializeOrder.reserve();
+        try {
+            mReadExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    serialize(sequence, filename, readAudioFile(topic, payloadFormat, timestamp, format, path, filename, silent, chunkSize));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Service is shutting down, skipping " + filename);
         }
     }
 
+    /**
+     * Read stage of the publish pipeline. Loads or hashes the file and prepares the
+     * serialize stage task that spools the whole file, its chunked transfer or a marker.
+     * Files of digital silence and files whose content has been spooled recently are
+     * replaced by a marker on the audio topic. Only FLAC and WAV files are compared by
+     * content, as an m4a file written by MediaMuxer holds its creation time, so equal
+     * audio never gives equal files.
+     *
+     * @return the task, or null if the file cannot be read
+     */
+    private Runnable readAudioFile(final String topic, final PayloadFormat payloadFormat, final long timestamp, final PcmFormat format, String path, String filename, boolean silent, int chunkSize) {
+        if (silent) {
+            Log.d(TAG, filename + " is digital silence, sending marker");
+            final Payload marker = audioPayload(timestamp, format, path, filename);
+            marker.addMetric("content", "silent");
+            return new Runnable() {
+
+                @Override
+                public void run() {
+                    appendMarker(topic, payloadFormat, marker);
+                }
+            };
+        }
+        File file = new File(path, filename);
+        try {
+            byte[] bytes = chunkSize > 0 ? null : loadFile(file);
+            byte[] hash = null;
+            if (hasStableContent(filename)) {
+                hash = bytes == null ? ContentHashCache.hash(file) : ContentHashCache.hash(bytes, 0, bytes.length);
+            }
+            return spoolAudioFileTask(topic, payloadFormat, timestamp, format, file, chunkSize, bytes, hash);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read audio file " + filename + ": " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Hands the task of a file to the serialize stage of the publish pipeline, which
+     * appends to the spool, once the tasks of all files encoded before it have been handed
+     * over. Blocks the read stage while the serialize stage is full.
+     *
+     * @param task null if there is nothing to spool for the file
+     */
+    private void serialize(long sequence, String filename, Runnable task) {
+        try {
+            mSerializeOrder.complete(sequence, task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.d(TAG, "Service is shutting down, skipping " + filename);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Service is shutting down, skipping " + filename);
+        }
+    }
+
+    /**
+     * Spools a file whole, if its bytes have been loaded, or as a chunked transfer. A file
+     * whose content hash is known is replaced by a marker. The hash is only remembered
+     * once the file has been spooled completely, so a failed upload is not referenced.
+     */
+    private Runnable spoolAudioFileTask(final String topic, final PayloadFormat payloadFormat, final long timestamp, final PcmFormat format, final File file, final int chunkSize, final byte[] bytes, final byte[] hash) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                String path = file.getParent();
+                String filename = file.getName();
+                String previous = hash == null ? null : mContentHashes.get(hash);
+                if (previous != null) {
+                    Log.d(TAG, filename + " has the same content as " + previous + ", sending marker");
+                    Payload marker = audioPayload(timestamp, format, path, filename);
+                    marker.addMetric("content", "unchanged");
+                    marker.addMetric("same_as", previous);
+                    marker.addMetric("content_hash", hash);
+                    appendMarker(topic, payloadFormat, marker);
+                    return;
+                }
+                boolean spooled;
+                if (bytes == null) {
+                    Log.d(TAG, "Spooling " + filename + " in chunks of " + chunkSize + " bytes");
+                    spooled = spoolChunks(topic + CHUNK_TOPIC_SUFFIX, timestamp, format, file, chunkSize);
+                } else {
+                    Payload payload = audioPayload(timestamp, format, path, filename);
+                    payload.addMetric("compressed_audio_data", bytes);
+                    byte[] message = payloadFormat.encode(payload);
+                    Log.d(TAG, "Spooling " + filename + " as " + payloadFormat.getContentType());
+                    spooled = appendToSpool(topic, message, 0, message.length);
+                    if (spooled) {
+                        scheduleDrain(false);
+                    }
+                }
+                if (spooled && hash != null) {
+                    mContentHashes.put(hash, filename);
+                }
+            }
+        };
+    }
+
+    /**
+     * Whether equal audio gives equal files, so files can be compared by content.
+     */
+    private static boolean hasStableContent(String filename) {
+        return filename.endsWith(".flac") || filename.endsWith(".wav");
+    }
+
+    private Payload audioPayload(long timestamp, PcmFormat format, String path, String filename) {
+        Payload payload = new Payload();
+        payload.setTimestamp(timestamp);
+        payload.addMetric("path", path);
+        payload.addMetric("filename", filename);
+        payload.addMetric("channels", format.getChannelCount());
+        payload.addMetric("sample_rate", format.getSampleRate());
+        payload.addMetric("sample_size", format.getBitsPerSample());
+        return payload;
+    }
+
+    private void appendMarker(String topic, PayloadFormat payloadFormat, Payload marker) {
+        byte[] message = payloadFormat.encode(marker);
+        if (appendToSpool(topic, message, 0, message.length)) {
+            scheduleDrain(false);
+        }
+    }
+
+    private static ThreadPoolExecutor publishStageExecutor(int threads, BlockingQueue<Runnable> queue, RejectedExecutionHandler handler) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                30, TimeUnit.SECONDS,
+                queue,
+                handler);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Waits for room in the queue instead of rejecting a task, unless the executor has
+     * been shut down.
+     */
+    private static class BlockWhenFullPolicy implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Publish stage has been shut down");
+            }
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for the publish stage");
+            }
+        }
+    }
+
+    private byte[] loadFile(File file) throws IOException {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("File is too large");
+        }
+        byte[] bytes = new byte[(int)length];
+
+        InputStream is = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int numRead = 0;
+            while (offset < bytes.length
+                    && (numRead=is.read(bytes, offset, bytes.length-offset)) >= 0) {
+                offset += numRead;
+            }
+
+            if (offset < bytes.length) {
+                throw new IOException("Could not completely read file "+file.getName());
+            }
+        } finally {
+            is.close();
+        }
+        return bytes;
+    }
+
     private String getTopic() {
+        return getTopic(stringPreferenceValue(R.string.pref_topic_level_component_audio_key));
+    }
+
+    private String getTopic(String component) {
         return stringPreferenceValue(R.string.pref_topic_level_principal_key) + "/" +
                 Build.SERIAL + "/" +
                 stringPreferenceValue(R.string.pref_topic_level_application_key) + "/" +
-                stringPreferenceValue(R.string.pref_topic_level_component_audio_key);
+                component;
+    }
+
+    private int audioPublishPeriod() {
+        RateController rateController = mRateController;
+        if (rateController != null) {
+            return rateController.getPublishPeriodSeconds();
+        }
+        return integerPreferenceValue(R.string.pref_audio_publish_period_key);
+    }
+
+    /**
+     * Starts adaptive rate control if it is enabled, with the bounds from the preferences,
+     * or returns to the configured publish period and bit rate.
+     */
+    private synchronized void setupRateControl() {
+        if (mRateControl != null) {
+            mRateControl.cancel(false);
+            mRateControl = null;
+        }
+        RateController rateController = null;
+        if ("ADAPTIVE".equals(stringPreferenceValue(R.string.pref_audio_rate_control_key))) {
+            int maxPeriod = integerPreferenceValue(R.string.pref_max_audio_publish_period_key);
+            int minPeriod = Math.min(maxPeriod, integerPreferenceValue(R.string.pref_min_audio_publish_period_key));
+            int maxBitRate = integerPreferenceValue(R.string.pref_bit_rate_key);
+            int minBitRate = Math.min(maxBitRate, integerPreferenceValue(R.string.pref_min_bit_rate_key));
+            rateController = new RateController(integerPreferenceValue(R.string.pref_audio_publish_period_key),
+                    minPeriod, maxPeriod, minBitRate, maxBitRate);
+            Log.i(TAG, "Adaptive rate control between " + minPeriod + " and " + maxPeriod + " s and between " +
+                    minBitRate + " and " + maxBitRate + " bit/s");
+        }
+        mRateController = rateController;
+        if (mBound) {
+            mService.setBitRateLimit(rateController == null ? 0 : rateController.getBitRate());
+        }
+        if (rateController == null) {
+            return;
+        }
+        try {
+            mRateControl = mRateControlExecutor.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    controlRate();
+                }
+            }, 0, RATE_CONTROL_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Service is shutting down, no rate control");
+        }
+    }
+
+    /**
+     * Runs a rate control step, applies the bit rate and publishes the controller's state.
+     * Runs on the rate control executor.
+     */
+    private void controlRate() {
+        RateController rateController = mRateController;
+        MessageSpool spool = mSpool;
+        if (rateController == null) {
+            return;
+        }
+        long backlogMessages = spool == null ? 0 : spool.getPendingMessages();
+        long backlogBytes = spool == null ? 0 : spool.getSize();
+        RateController.Decision decision = rateController.update(SystemClock.elapsedRealtime(), backlogMessages, backlogBytes);
+        if (decision != RateController.Decision.HOLD) {
+            Log.i(TAG, "Rate control " + decision + ": publish period " + rateController.getPublishPeriodSeconds() +
+                    " s, bit rate " + rateController.getBitRate() + " bit/s");
+        }
+        if (mBound) {
+            mService.setBitRateLimit(rateController.getBitRate());
+        }
+        mRateControlPayload.removeAllMetrics();
+        mRateControlPayload.setTimestamp(System.currentTimeMillis());
+        rateController.addMetrics(mRateControlPayload);
+        publishMetrics(getTopic(RATE_CONTROL_TOPIC_COMPONENT), PayloadFormat.JSON, mRateControlPayload);
+    }
+
+    /**
+     * Appends a message to the spool and publishes it once the messages before it have
+     * been published.
+     */
+    private void spoolMessage(final String topic, final byte[] payload) {
+        try {
+            mSpoolExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (appendToSpool(topic, payload, 0, payload.length)) {
+                        drainSpool();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Service is shutting down, dropping message on topic " + topic);
+        }
+    }
+
+    /**
+     * Appends a message to the spool on the calling thread.
+     *
+     * @return false if the message could not be spooled
+     */
+    private boolean appendToSpool(String topic, byte[] payload, int offset, int length) {
+        MessageSpool spool = mSpool;
+        if (spool == null) {
+            Log.e(TAG, "No spool, dropping message on topic " + topic);
+            return false;
+        }
+        try {
+            spool.append(topic, 1, payload, offset, length);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot spool message: " + e.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Appends a file to the spool as a {@link ChunkedFileTransfer}, one chunk at a time,
+     * on the calling thread. Chunks are published as soon as they are spooled, and after a
+     * reconnect the transfer resumes from the first chunk whose delivery has not completed.
+     *
+     * @return whether all chunks have been spooled
+     */
+    private boolean spoolChunks(String topic, long timestamp, PcmFormat format, File file, int chunkSize) {
+        ChunkedFileTransfer transfer = null;
+        try {
+            transfer = new ChunkedFileTransfer(file, timestamp, format, chunkSize);
+            Log.d(TAG, "Spooling " + file.getName() + " as transfer " + transfer.getTransferId() +
+                    " with " + transfer.getChunkCount() + " chunks");
+            for (int i = 0; i < transfer.getChunkCount(); i++) {
+                int length = transfer.writeChunk(i);
+                if (!appendToSpool(topic, transfer.getBuffer(), 0, length)) {
+                    return false;
+                }
+                scheduleDrain(false);
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot spool transfer of " + file.getName() + ": " + e.toString());
+            return false;
+        } finally {
+            if (transfer != null) {
+                try {
+                    transfer.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Cannot close " + file.getName() + ": " + e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * Publishes the acoustic features of a frame as metrics, if enabled. Frames overlap,
+     * so consecutive payloads cover the audio without gaps.
+     */
+    private void publishFeatures(AudioFrame frame) {
+        String format = stringPreferenceValue(R.string.pref_feature_payload_format_key);
+        if ("OFF".equals(format)) {
+            return;
+        }
+        if (!mFeatureExtractor.extract(frame)) {
+            Log.w(TAG, "Samples of frame with timestamp " + frame.getTimestamp() + " have been overwritten before features were extracted");
+            return;
+        }
+        mFeaturePayload.removeAllMetrics();
+        mFeaturePayload.setTimestamp(frame.getTimestamp());
+        mFeatureExtractor.addMetrics(mFeaturePayload);
+        publishMetrics(getTopic(FEATURE_TOPIC_COMPONENT), payloadFormat(R.string.pref_feature_payload_format_key), mFeaturePayload);
+    }
+
+    /**
+     * Adds a small payload to the batch of its topic. The payload is serialized
+     * immediately and may be reused.
+     */
+    public void publishMetrics(String topic, PayloadFormat format, Payload payload) {
+        try {
+            mBatcher.add(topic, format, payload, System.currentTimeMillis());
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot serialize payload for topic " + topic + ": " + e.toString());
+            return;
+        }
+        scheduleBatchFlush();
+    }
+
+    /**
+     * Makes sure the batcher is checked for expired batches at the next deadline.
+     */
+    private synchronized void scheduleBatchFlush() {
+        if (mBatchFlush != null && !mBatchFlush.isDone()) {
+            return;
+        }
+        long deadline = mBatcher.nextDeadline();
+        if (deadline < 0) {
+            return;
+        }
+        try {
+            mBatchFlush = mBatchExecutor.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    mBatcher.flushExpired(System.currentTimeMillis());
+                    synchronized (CloudService.this) {
+                        mBatchFlush = null;
+                    }
+                    scheduleBatchFlush();
+                }
+            }, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Service is shutting down, batches are published on destroy");
+        }
+    }
+
+    /**
+     * Creates the batcher from the preferences, publishing the batches of the previous one.
+     */
+    private void setupBatcher() {
+        PayloadBatcher previous = mBatcher;
+        mBatcher = new PayloadBatcher(integerPreferenceValue(R.string.pref_metric_batch_size_key),
+                MAX_BATCH_BYTES,
+                1000L * integerPreferenceValue(R.string.pref_metric_batch_linger_key),
+                mBatchSink);
+        if (previous != null) {
+            previous.flushAll();
+        }
+    }
+
+    private void scheduleDrain(final boolean rewind) {
+        try {
+            mSpoolExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (rewind && mSpool != null) {
+                        try {
+                            mSpool.rewind();
+                        } catch (IOException e) {
+                            Log.e(TAG, "Cannot rewind spool: " + e.toString());
+                        }
+                    }
+                    drainSpool();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Service is shutting down, not draining spool");
+        }
+    }
+
+    /**
+     * Publishes spooled messages in order while the client is connected and fewer than
+     * {@link #MAX_INFLIGHT} messages are waiting for their delivery to complete. Runs on
+     * the spool executor.
+     */
+    private void drainSpool() {
+        MqttAndroidClient mqttClient = mMqttClient;
+        if (mSpool == null || mqttClient == null) {
+            return;
+        }
+        try {
+            while (mqttClient.isConnected() && mInflight.size() < MAX_INFLIGHT) {
+                MessageSpool.Message message = mSpool.next();
+                if (message == null) {
+                    return;
+                }
+                InflightMessage inflight = new InflightMessage(message.getSequence(), message.getPayload().length);
+                mInflight.add(inflight);
+                boolean published = false;
+                try {
+                    mqttClient.publish(message.getTopic(),
+                            message.getPayload(),
+                            message.getQos(),
+                            false,
+                            inflight,
+                            null);
+                    published = true;
+                } finally {
+                    if (!published) {
+                        mInflight.remove(inflight);
+                    }
+                }
+            }
+        } catch (MqttException e) {
+            Log.e(TAG, "Could not publish message: " + e.toString());
+            // The message that failed is read again after the next reconnect
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read spool: " + e.toString());
+        } catch (IllegalArgumentException e) {
+            // Thrown by MqttAndroidClient when the service connection is gone
+            Log.e(TAG, "Could not publish message: " + e.toString());
+        }
+    }
+
+    private void acknowledge(final IMqttDeliveryToken token) {
+        Object context = token.getUserContext();
+        // Deliveries of messages sent before the last reconnect are not tracked anymore
+        if (!(context instanceof InflightMessage) || !mInflight.remove(context)) {
+            return;
+        }
+        final InflightMessage message = (InflightMessage) context;
+        RateController rateController = mRateController;
+        if (rateController != null) {
+            rateController.onDelivered(message.bytes, SystemClock.elapsedRealtime() - message.publishedAt);
+        }
+        try {
+            mSpoolExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (mSpool == null) {
+                        return;
+                    }
+                    try {
+                        mSpool.ack(message.sequence);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Cannot acknowledge spooled message: " + e.toString());
+                    }
+                    drainSpool();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Service is shutting down, message will be sent again");
+        }
+    }
+
+    private void closeSpool() {
+        if (mSpool == null) {
+            return;
+        }
+        try {
+            mSpool.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot close spool: " + e.toString());
+        }
+        mSpool = null;
     }
 
     void setupService() {
-        mLastAudioPublishTimestamp = System.currentTimeMillis() - 1000 * integerPreferenceValue(R.string.pref_audio_publish_period_key);
+        mLastAudioPublishTimestamp = System.currentTimeMillis() - 1000 * audioPublishPeriod();
         if (mMqttClient != null) {
             try {
                 Log.d(TAG, "Disconnecting MQTT client...");
@@ -142,7 +805,7 @@ public class CloudService extends MonitorableService implements AudioEncoderList
         connectOptions.setCleanSession(false);
         connectOptions.setConnectionTimeout(30);
         connectOptions.setKeepAliveInterval(60);
-        connectOptions.setMaxInflight(10);
+        connectOptions.setMaxInflight(MAX_INFLIGHT);
         connectOptions.setMqttVersion(MqttConnectOptions.MQTT_VERSION_DEFAULT);
 
         try {
@@ -158,6 +821,17 @@ public class CloudService extends MonitorableService implements AudioEncoderList
         return sharedPreferences().getString(getString(key), "");
     }
 
+    /**
+     * Payload format of the topic whose format is set by the given preference.
+     */
+    private PayloadFormat payloadFormat(int key) {
+        try {
+            return PayloadFormat.valueOf(stringPreferenceValue(key));
+        } catch (IllegalArgumentException e) {
+            return PayloadFormat.JSON;
+        }
+    }
+
     private int integerPreferenceValue(int key) {
         return Integer.parseInt(sharedPreferences().getString(getString(key), ""));
     }
@@ -166,6 +840,17 @@ public class CloudService extends MonitorableService implements AudioEncoderList
         return PreferenceManager.getDefaultSharedPreferences(this);
     }
 
+    private static class InflightMessage {
+        final long sequence;
+        final int bytes;
+        final long publishedAt = SystemClock.elapsedRealtime();
+
+        InflightMessage(long sequence, int bytes) {
+            this.sequence = sequence;
+            this.bytes = bytes;
+        }
+    }
+
     class CloudBinder extends Binder {
         CloudService getService() {
             // Return this instance of LocalService so clients can call public methods
@@ -185,6 +870,9 @@ public class CloudService extends MonitorableService implements AudioEncoderList
                 Log.d(TAG, "Connect to " + serverURI + " complete");
             }
             broadcastStatus("Connected");
+            // Messages that were in flight when the connection was lost are sent again
+            mInflight.clear();
+            scheduleDrain(true);
         }
 
         @Override
@@ -201,6 +889,7 @@ public class CloudService extends MonitorableService implements AudioEncoderList
         @Override
         public void deliveryComplete(IMqttDeliveryToken token) {
             Log.d(TAG, "Message delivery complete: " + token.toString());
+            acknowledge(token);
         }
     }
 
@@ -211,12 +900,6 @@ public class CloudService extends MonitorableService implements AudioEncoderList
         @Override
         public void onSuccess(IMqttToken asyncActionToken) {
             Log.d(TAG, "MQTT connect action successful");
-            DisconnectedBufferOptions disconnectedBufferOptions = new DisconnectedBufferOptions();
-            disconnectedBufferOptions.setBufferEnabled(true);
-            disconnectedBufferOptions.setBufferSize(100);
-            disconnectedBufferOptions.setPersistBuffer(false);
-            disconnectedBufferOptions.setDeleteOldestMessages(false);
-            mMqttClient.setBufferOpts(disconnectedBufferOptions);
         }
 
         @Override
@@ -224,103 +907,4 @@ public class CloudService extends MonitorableService implements AudioEncoderList
             Log.d(TAG, "MQTT connect action unsuccessful: "  + exception.toString());
         }
     }
-
-    private class AudioPublisherTaskParams {
-        MqttAndroidClient mqttClient;
-        String topic;
-        long timestamp;
-        String path;
-        String filename;
-
-        AudioPublisherTaskParams(MqttAndroidClient mqttClient, String topic, long timestamp, String path, String filename) {
-            this.mqttClient = mqttClient;
-            this.topic = topic;
-            this.timestamp = timestamp;
-            this.path = path;
-            this.filename = filename;
-        }
-    }
-
-    private static class AudioPublisherTask extends AsyncTask<AudioPublisherTaskParams, Void, Void> {
-
-        private static final String TAG = AudioPublisherTask.class.getSimpleName();
-
-        @Override
-        protected Void doInBackground(AudioPublisherTaskParams... audioPublisherTaskParams) {
-            Log.d(TAG, "AudioPublisherTask starting to publish " +
-                    audioPublisherTaskParams[0].filename +
-                    " with timestamp " +
-                    audioPublisherTaskParams[0].timestamp +
-                    " on topic " +
-                    audioPublisherTaskParams[0].topic);
-            publishAudioFile(audioPublisherTaskParams[0].mqttClient,
-                    audioPublisherTaskParams[0].topic,
-                    audioPublisherTaskParams[0].timestamp,
-                    audioPublisherTaskParams[0].path,
-                    audioPublisherTaskParams[0].filename);
-            return null;
-        }
-
-        @Override
-        protected void onPostExecute(Void aVoid) {
-            super.onPostExecute(aVoid);
-            Log.d(TAG, "AudioPublisherTask finished");
-        }
-
-        private void publishAudioFile(MqttAndroidClient mqttClient, String topic, long timestamp, String path, String filename) {
-            try {
-                Log.d(TAG, "Publishing audio file");
-                MqttMessage message = new MqttMessage();
-                message.setPayload(getPayload(timestamp, path, filename));
-                message.setQos(1);
-                message.setRetained(false);
-                mqttClient.publish(topic, message);
-            } catch (MqttException e) {
-                Log.e(TAG, "Could not publish message: " + e.toString());
-            }
-        }
-
-        private byte[] getPayload(long timestamp, String path, String filename) {
-            Payload payload = new Payload();
-            payload.setTimestamp(timestamp);
-            File file = new File(path + "/" + filename);
-            try {
-                byte[] bytes = loadFile(file);
-                String encoded = android.util.Base64.encodeToString(bytes, android.util.Base64.DEFAULT);
-                payload.addMetric("path", path);
-                payload.addMetric("filename", filename);
-                payload.addMetric("channels", new Integer(1));
-                payload.addMetric("sample_rate", new Integer(44100));
-                payload.addMetric("sample_size", new Integer(16));
-                payload.addMetric("compressed_audio_data", encoded);
-            } catch (IOException e) {
-                Log.e(TAG, "Could not read audio file");
-            }
-            return payload.toJson().getBytes(StandardCharsets.UTF_8);
-        }
-
-        private byte[] loadFile(File file) throws IOException {
-            InputStream is = new FileInputStream(file);
-
-            long length = file.length();
-            if (length > Integer.MAX_VALUE) {
-                throw new RuntimeException("File is too large");
-            }
-            byte[] bytes = new byte[(int)length];
-
-            int offset = 0;
-            int numRead = 0;
-            while (offset < bytes.length
-                    && (numRead=is.read(bytes, offset, bytes.length-offset)) >= 0) {
-                offset += numRead;
-            }
-
-            if (offset < bytes.length) {
-                throw new IOException("Could not completely read file "+file.getName());
-            }
-
-            is.close();
-            return bytes;
-        }
-    }
 }
@@ -0,0 +1,13 @@
+package de.db.aim;
+
+/**
+ * How events are handed to a registered listener.
+ */
+public enum DeliveryMode {
+    /** Calls the listener on the producing thread. Only for listeners that return immediately. */
+    INLINE,
+    /** Queues every event and calls the listener on its executor, in order. */
+    ASYNC,
+    /** Calls the listener on its executor with the most recent event only, older pending events are skipped. */
+    LATEST_ONLY
+}
@@ -0,0 +1,99 @@
+package de.db.aim;
+
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers the pending events of one listener on that listener's {@link Executor}.
+ * At most one delivery task per channel is scheduled at any time, so listeners are never
+ * called concurrently and events are drained by a single consumer, even on a shared pool.
+ */
+abstract class DispatchChannel {
+
+    private static final String TAG = DispatchChannel.class.getSimpleName();
+
+    private final Executor mExecutor;
+    private final ExecutorService mDedicatedExecutor;
+    private final DeliveryMode mMode;
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private volatile boolean mStopped;
+
+    private final Runnable mDeliveryTask = new Runnable() {
+
+        @Override
+        public void run() {
+            do {
+                deliverPending(mStopped);
+                mScheduled.set(false);
+            } while (hasPending() && mScheduled.compareAndSet(false, true));
+        }
+    };
+
+    DispatchChannel(Executor executor, DeliveryMode mode) {
+        this.mExecutor = executor;
+        this.mDedicatedExecutor = null;
+        this.mMode = mode;
+    }
+
+    /**
+     * Delivers asynchronously on a thread of its own, which is shut down when the channel
+     * is stopped.
+     */
+    DispatchChannel(final String threadName) {
+        this.mDedicatedExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, threadName);
+            }
+        });
+        this.mExecutor = mDedicatedExecutor;
+        this.mMode = DeliveryMode.ASYNC;
+    }
+
+    DeliveryMode getDeliveryMode() {
+        return mMode;
+    }
+
+    boolean isStopped() {
+        return mStopped;
+    }
+
+    /**
+     * Discards pending events and shuts down the dedicated executor, if any.
+     */
+    void stop() {
+        mStopped = true;
+        schedule();
+        if (mDedicatedExecutor != null) {
+            mDedicatedExecutor.shutdown();
+        }
+    }
+
+    void schedule() {
+        if (!mScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            mExecutor.execute(mDeliveryTask);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Executor rejected delivery, discarding pending events");
+            // Holding the scheduled flag makes this thread the only consumer
+            deliverPending(true);
+            mScheduled.set(false);
+        }
+    }
+
+    /**
+     * Hands all pending events to the listener, or releases them if {@code discard} is set.
+     */
+    abstract void deliverPending(boolean discard);
+
+    abstract boolean hasPending();
+}
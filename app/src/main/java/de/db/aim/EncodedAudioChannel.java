@@ -0,0 +1,81 @@
+package de.db.aim;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Delivers completed audio files to a single {@link AudioEncoderListener} according to
+ * its {@link DeliveryMode}, so a slow listener does not hold up the codec or other listeners.
+ */
+class EncodedAudioChannel extends DispatchChannel {
+
+    private static final String TAG = EncodedAudioChannel.class.getSimpleName();
+
+    private final AudioEncoderListener mListener;
+    private final ConcurrentLinkedQueue<EncodedAudio> mQueue = new ConcurrentLinkedQueue<EncodedAudio>();
+    private final AtomicReference<EncodedAudio> mLatest = new AtomicReference<EncodedAudio>();
+
+    EncodedAudioChannel(AudioEncoderListener listener) {
+        super(TAG + "-" + listener.getClass().getSimpleName());
+        this.mListener = listener;
+    }
+
+    EncodedAudioChannel(AudioEncoderListener listener, Executor executor, DeliveryMode mode) {
+        super(executor, mode);
+        this.mListener = listener;
+    }
+
+    AudioEncoderListener getListener() {
+        return mListener;
+    }
+
+    void offer(long timestamp, PcmFormat format, String path, String filename, boolean silent) {
+        switch (getDeliveryMode()) {
+            case INLINE:
+                if (!isStopped()) {
+                    mListener.onNewEncodedAudioFrame(timestamp, format, path, filename, silent);
+                }
+                break;
+            case LATEST_ONLY:
+                mLatest.set(new EncodedAudio(timestamp, format, path, filename, silent));
+                schedule();
+                break;
+            default:
+                mQueue.add(new EncodedAudio(timestamp, format, path, filename, silent));
+                schedule();
+        }
+    }
+
+    @Override
+    void deliverPending(boolean discard) {
+        EncodedAudio audio;
+        while ((audio = mQueue.poll()) != null || (audio = mLatest.getAndSet(null)) != null) {
+            if (!discard && !isStopped()) {
+                mListener.onNewEncodedAudioFrame(audio.timestamp, audio.format, audio.path, audio.filename, audio.silent);
+            }
+        }
+    }
+
+    @Override
+    boolean hasPending() {
+        return !mQueue.isEmpty() || mLatest.get() != null;
+    }
+
+    private static class EncodedAudio {
+
+        final long timestamp;
+        final PcmFormat format;
+        final String path;
+        final String filename;
+        final boolean silent;
+
+        EncodedAudio(long timestamp, PcmFormat format, String path, String filename, boolean silent) {
+            this.timestamp = timestamp;
+            this.format = format;
+            this.path = path;
+            this.filename = filename;
+            this.silent = silent;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package de.db.aim;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue between frame delivery and the encoder. What happens when the encoder
+ * falls behind and the queue is full is decided by the {@link OverloadPolicy}.
+ * Frames are retained while they are queued; whoever polls a frame owns that reference.
+ */
+class EncoderInputQueue {
+
+    private static final String TAG = EncoderInputQueue.class.getSimpleName();
+    private static final long BLOCK_TIMEOUT_MILLISECONDS = 5000;
+    private static final int MAX_DEGRADATION_LEVEL = 3;
+    private static final int MIN_BIT_RATE = 32000;
+    // How long the queue has to stay below the low watermark before the level is lowered
+    private static final long RECOVERY_MILLISECONDS = 10000;
+
+    enum OverloadPolicy {
+        /** Waits for the encoder to make room, but drops the frame if it has stalled */
+        BLOCK,
+        /** Drops the oldest queued frame */
+        DROP_OLDEST,
+        /** Drops the frame that has just arrived */
+        DROP_NEWEST,
+        /**
+         * Halves the bit rate while the queue is backing up, drops the oldest frame when full.
+         * The bit rate is raised again step by step while the queue stays short.
+         */
+        DEGRADE_BITRATE
+    }
+
+    private final ArrayBlockingQueue<AudioFrame> mFrames;
+    private final int mCapacity;
+    private final int mHighWatermark;
+    private final int mLowWatermark;
+    private volatile OverloadPolicy mPolicy;
+    // Raised by the delivery thread, lowered by the codec thread
+    private final AtomicInteger mDegradationLevel = new AtomicInteger();
+    // Only touched by the thread that polls, 0 while the queue is above the low watermark
+    private long mBelowLowWatermarkSince;
+    // Counters are updated from the delivery and the codec threads
+    private final AtomicLong mDroppedFrames = new AtomicLong();
+    private final AtomicLong mEncodedFrames = new AtomicLong();
+
+    EncoderInputQueue(int capacity, OverloadPolicy policy) {
+        this.mFrames = new ArrayBlockingQueue<AudioFrame>(capacity);
+        this.mCapacity = capacity;
+        this.mHighWatermark = capacity / 2;
+        this.mLowWatermark = Math.max(1, capacity / 4);
+        this.mPolicy = policy;
+    }
+
+    void setPolicy(OverloadPolicy policy) {
+        Log.i(TAG, "Overload policy: " + policy);
+        mPolicy = policy;
+        if (policy != OverloadPolicy.DEGRADE_BITRATE) {
+            mDegradationLevel.set(0);
+        }
+    }
+
+    OverloadPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Enqueues a frame according to the overload policy.
+     *
+     * @return false if the frame has been dropped
+     */
+    boolean offer(AudioFrame frame) {
+        frame.retain();
+        switch (mPolicy) {
+            case BLOCK:
+                try {
+                    if (mFrames.offer(frame, BLOCK_TIMEOUT_MILLISECONDS, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                drop(frame);
+                return false;
+            case DROP_NEWEST:
+                if (mFrames.offer(frame)) {
+                    return true;
+                }
+                drop(frame);
+                return false;
+            case DEGRADE_BITRATE:
+                if (mFrames.size() >= mHighWatermark) {
+                    int level = mDegradationLevel.get();
+                    if (level < MAX_DEGRADATION_LEVEL && mDegradationLevel.compareAndSet(level, level + 1)) {
+                        Log.w(TAG, "Encoder is falling behind, degradation level " + (level + 1));
+                    }
+                }
+                // Fall through
+            default:
+                while (!mFrames.offer(frame)) {
+                    AudioFrame oldest = mFrames.poll();
+                    if (oldest != null) {
+                        drop(oldest);
+                    }
+                }
+                return true;
+        }
+    }
+
+    /**
+     * Takes the oldest frame. The caller has to release it, or pass it to
+     * {@link #drop(AudioFrame)}.
+     */
+    AudioFrame poll() {
+        AudioFrame frame = mFrames.poll();
+        recover();
+        return frame;
+    }
+
+    /**
+     * Lowers the degradation level by one once the queue has stayed below the low watermark
+     * for {@link #RECOVERY_MILLISECONDS}, and starts over for the next step. A queue that
+     * drains for a moment does not change the bit rate.
+     */
+    private void recover() {
+        if (mFrames.size() >= mLowWatermark) {
+            mBelowLowWatermarkSince = 0;
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (mBelowLowWatermarkSince == 0) {
+            mBelowLowWatermarkSince = now;
+        } else if (now - mBelowLowWatermarkSince >= RECOVERY_MILLISECONDS) {
+            mBelowLowWatermarkSince = now;
+            int level = mDegradationLevel.get();
+            if (level > 0 && mDegradationLevel.compareAndSet(level, level - 1)) {
+                Log.i(TAG, "Encoder has caught up, degradation level " + (level - 1));
+            }
+        }
+    }
+
+    /**
+     * Releases a frame that will not be encoded and counts it as dropped.
+     */
+    void drop(AudioFrame frame) {
+        mDroppedFrames.incrementAndGet();
+        Log.w(TAG, "Dropped frame with timestamp " + frame.getTimestamp());
+        frame.release();
+    }
+
+    void markEncoded() {
+        mEncodedFrames.incrementAndGet();
+    }
+
+    void clear() {
+        AudioFrame frame;
+        while ((frame = mFrames.poll()) != null) {
+            frame.release();
+        }
+    }
+
+    /**
+     * Applies the current degradation level to the configured bit rate.
+     */
+    int bitRate(int configuredBitRate) {
+        return Math.max(Math.min(configuredBitRate, MIN_BIT_RATE), configuredBitRate >> mDegradationLevel.get());
+    }
+
+    int getQueueDepth() {
+        return mFrames.size();
+    }
+
+    int getDegradationLevel() {
+        return mDegradationLevel.get();
+    }
+
+    long getDroppedFrames() {
+        return mDroppedFrames.get();
+    }
+
+    long getEncodedFrames() {
+        return mEncodedFrames.get();
+    }
+}
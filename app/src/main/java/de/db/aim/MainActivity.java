@@ -131,10 +131,7 @@ public class MainActivity extends AppCompatActivity {
             PreferenceManager.getDefaultSharedPreferences(this).edit().clear().apply();
         }
 
-        PreferenceManager.setDefaultValues(this, R.xml.pref_audio_collector, readAgain);
-        PreferenceManager.setDefaultValues(this, R.xml.pref_file_remover, readAgain);
-        PreferenceManager.setDefaultValues(this, R.xml.pref_audio_encoder, readAgain);
-        PreferenceManager.setDefaultValues(this, R.xml.pref_cloud, readAgain);
+        PreferenceDefaults.apply(this);
     }
 
     private int integerPreferenceValue(int key) {
@@ -1,27 +0,0 @@
-package de.db.aim;
-
-import android.app.job.JobParameters;
-import android.app.job.JobService;
-import android.content.Intent;
-import android.os.IBinder;
-import android.support.v4.content.LocalBroadcastManager;
-
-public class MonitorableJobService extends JobService {
-
-    protected void broadcastStatus(String status) {
-        Intent intent = new Intent("service-status");
-        intent.putExtra("service", this.getClass().getSimpleName());
-        intent.putExtra("status", status);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
-    }
-
-    @Override
-    public boolean onStartJob(JobParameters jobParameters) {
-        return false;
-    }
-
-    @Override
-    public boolean onStopJob(JobParameters jobParameters) {
-        return false;
-    }
-}
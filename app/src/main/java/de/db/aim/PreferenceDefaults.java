@@ -0,0 +1,26 @@
+package de.db.aim;
+
+import android.content.Context;
+import android.preference.PreferenceManager;
+
+/**
+ * Writes the default value of every preference that has no value yet.
+ * <p>
+ * {@link PreferenceManager#setDefaultValues(Context, int, boolean)} without re-reading
+ * only runs on the very first start, so preferences added by an update would stay unset
+ * and their readers would fail. Re-reading keeps the values the user has set and only
+ * fills in the missing ones, so it is done whenever the app or one of its services
+ * starts, before any preference is read.
+ */
+final class PreferenceDefaults {
+
+    private PreferenceDefaults() {
+    }
+
+    static synchronized void apply(Context context) {
+        PreferenceManager.setDefaultValues(context, R.xml.pref_audio_collector, true);
+        PreferenceManager.setDefaultValues(context, R.xml.pref_file_remover, true);
+        PreferenceManager.setDefaultValues(context, R.xml.pref_audio_encoder, true);
+        PreferenceManager.setDefaultValues(context, R.xml.pref_cloud, true);
+    }
+}
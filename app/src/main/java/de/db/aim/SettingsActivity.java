@@ -164,6 +164,11 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_buffer_size_key)));
             bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_chunk_size_key)));
             bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_frame_length_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_frame_hop_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_sample_rate_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_channel_count_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_sample_encoding_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_capture_mode_key)));
         }
 
         @Override
@@ -195,6 +200,9 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             // guidelines.
             bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_remove_period_key)));
             bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_keep_files_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_max_storage_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_max_age_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_min_free_space_key)));
         }
 
         @Override
@@ -228,6 +236,11 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_format_type_key)));
             bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_bit_rate_key)));
             bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_encoder_buffer_size_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_encoder_mode_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_overload_policy_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_activity_threshold_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_activity_hangover_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_archive_size_key)));
         }
 
         @Override
@@ -263,6 +276,15 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_topic_level_application_key)));
             bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_topic_level_component_audio_key)));
             bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_audio_publish_period_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_audio_upload_chunk_size_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_audio_payload_format_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_feature_payload_format_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_metric_batch_size_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_metric_batch_linger_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_audio_rate_control_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_min_audio_publish_period_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_max_audio_publish_period_key)));
+            bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_min_bit_rate_key)));
         }
 
         @Override
@@ -0,0 +1,310 @@
+package de.db.aim;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * Encodes the audio of a whole capture session with a single {@link MediaCodec} and
+ * rotates the output into a new file every frame length.
+ * <p>
+ * Presentation times are derived from the sample index relative to the start of the
+ * session, so they are continuous across files. Overlapping frames only contribute the
+ * samples that have not been encoded yet. Files are cut at multiples of the length of the
+ * first frame from the start of the session, which are frame starts as long as the frame
+ * length is a multiple of the hop. Each encoded access unit goes to exactly one file; a
+ * file starts with the first access unit at or after its boundary and its timestamps are
+ * rebased to zero.
+ * <p>
+ * The codec keeps running across files, so a file has no priming samples of its own: its
+ * first access unit overlaps the last one of the previous file and decodes to a short
+ * transient when the file is played on its own.
+ */
+class StreamingEncoder extends MediaCodec.Callback {
+
+    private static final String TAG = StreamingEncoder.class.getSimpleName();
+
+    interface Callback {
+        File createSegmentFile(long timestamp, String extension);
+
+        void onSegmentComplete(long timestamp, long durationMillis, PcmFormat format, File file);
+    }
+
+    private final PcmFormat mPcmFormat;
+    private final Callback mCallback;
+    private final MediaCodec mCodec;
+    private final EncoderInputQueue mInputQueue;
+    private final int mBytesPerSample;
+
+    private final Object mInputLock = new Object();
+    private final ArrayDeque<Integer> mInputBuffers = new ArrayDeque<Integer>();
+    private final ArrayDeque<Long> mSegmentBoundaries = new ArrayDeque<Long>();
+    private AudioFrame mCurrentFrame;
+    private int mCurrentOffset;
+    private short[] mConversionBuffer;
+    private long mSessionStartSample = -1;
+    private long mSessionStartTimestamp;
+    private long mEncodedUpTo;
+    private long mNextBoundarySample;
+    private int mSegmentSamples;
+    private boolean mEndOfStreamRequested;
+    private boolean mEndOfStreamQueued;
+
+    private final MediaCodec.BufferInfo mMuxerBufferInfo = new MediaCodec.BufferInfo();
+    private MediaFormat mOutputFormat;
+    private MediaMuxer mMuxer;
+    private int mTrackIndex;
+    private File mSegmentFile;
+    private long mSegmentTimestamp;
+    private long mSegmentStartPresentationTimeUs;
+    private long mLastPresentationTimeUs;
+    private long mAccessUnitDurationUs;
+
+    StreamingEncoder(MediaFormat format, PcmFormat pcmFormat, EncoderInputQueue inputQueue, Callback callback) {
+        this.mPcmFormat = pcmFormat;
+        this.mInputQueue = inputQueue;
+        this.mCallback = callback;
+        this.mBytesPerSample = 2 * pcmFormat.getChannelCount();
+        try {
+            mCodec = MediaCodec.createEncoderByType(format.getString(MediaFormat.KEY_MIME));
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot create codec");
+        }
+        mCodec.setCallback(this);
+        mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        Log.d(TAG, "Starting codec");
+        mCodec.start();
+    }
+
+    PcmFormat getPcmFormat() {
+        return mPcmFormat;
+    }
+
+    /**
+     * Feeds frames from the input queue to the codec as far as input buffers are available.
+     * Called after a frame has been queued.
+     */
+    void feed() {
+        synchronized (mInputLock) {
+            feedCodec();
+        }
+    }
+
+    /**
+     * Encodes the rest of the current frame, finishes the current file and releases the
+     * codec. Frames that are still queued are left to the next session.
+     */
+    void stop() {
+        synchronized (mInputLock) {
+            mEndOfStreamRequested = true;
+            feedCodec();
+        }
+    }
+
+    @Override
+    public void onInputBufferAvailable(MediaCodec mediaCodec, int index) {
+        synchronized (mInputLock) {
+            mInputBuffers.add(index);
+            feedCodec();
+        }
+    }
+
+    private void feedCodec() {
+        while (!mInputBuffers.isEmpty() && !mEndOfStreamQueued) {
+            if (mCurrentFrame == null && !nextFrame()) {
+                if (mEndOfStreamRequested) {
+                    Log.d(TAG, "Setting end of stream flag");
+                    mCodec.queueInputBuffer(mInputBuffers.poll(), 0, 0, presentationTimeUs(mEncodedUpTo), MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    mEndOfStreamQueued = true;
+                }
+                return;
+            }
+            int index = mInputBuffers.poll();
+            ByteBuffer inputBuffer = mCodec.getInputBuffer(index);
+            long sampleIndex = mCurrentFrame.getStartSampleIndex() + mCurrentOffset;
+            markSegmentBoundary(sampleIndex);
+            // An input buffer never spans a segment boundary
+            int samples = (int) Math.min(Math.min(mCurrentFrame.getSampleCount() - mCurrentOffset, inputBuffer.remaining() / mBytesPerSample),
+                    mNextBoundarySample - sampleIndex);
+            if (!fillInputBuffer(inputBuffer, samples)) {
+                Log.w(TAG, "Samples of frame with timestamp " + mCurrentFrame.getTimestamp() + " have been overwritten before they were encoded");
+                inputBuffer.clear();
+                mInputBuffers.addFirst(index);
+                mEncodedUpTo = mCurrentFrame.getStartSampleIndex() + mCurrentFrame.getSampleCount();
+                mInputQueue.drop(mCurrentFrame);
+                mCurrentFrame = null;
+                continue;
+            }
+            mCodec.queueInputBuffer(index, 0, samples * mBytesPerSample, presentationTimeUs(sampleIndex), 0);
+            mCurrentOffset += samples;
+            mEncodedUpTo = sampleIndex + samples;
+            if (mCurrentOffset == mCurrentFrame.getSampleCount()) {
+                mInputQueue.markEncoded();
+                releaseCurrentFrame();
+            }
+        }
+    }
+
+    /**
+     * Takes the next queued frame and skips the samples that have already been encoded
+     * as part of a previous, overlapping frame.
+     */
+    private boolean nextFrame() {
+        if (mEndOfStreamRequested) {
+            return false;
+        }
+        while ((mCurrentFrame = mInputQueue.poll()) != null) {
+            if (!mCurrentFrame.getFormat().equals(mPcmFormat)) {
+                Log.w(TAG, "Frame with timestamp " + mCurrentFrame.getTimestamp() + " does not match the format of the session");
+                mInputQueue.drop(mCurrentFrame);
+                continue;
+            }
+            long start = mCurrentFrame.getStartSampleIndex();
+            if (mSessionStartSample < 0) {
+                mSessionStartSample = start;
+                mSessionStartTimestamp = mCurrentFrame.getTimestamp();
+                mEncodedUpTo = start;
+                mSegmentSamples = mCurrentFrame.getSampleCount();
+                mNextBoundarySample = start + mSegmentSamples;
+            } else if (start > mEncodedUpTo) {
+                Log.w(TAG, "Gap of " + (start - mEncodedUpTo) + " samples before frame with timestamp " + mCurrentFrame.getTimestamp());
+            }
+            mCurrentOffset = (int) Math.max(0, mEncodedUpTo - start);
+            if (mCurrentOffset >= mCurrentFrame.getSampleCount()) {
+                mInputQueue.markEncoded();
+                releaseCurrentFrame();
+                continue;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Starts a new file if the sample at the given index is at or after the next segment
+     * boundary. Boundaries that fall into a gap are skipped.
+     */
+    private void markSegmentBoundary(long sampleIndex) {
+        if (sampleIndex < mNextBoundarySample) {
+            return;
+        }
+        long boundary = mNextBoundarySample + (sampleIndex - mNextBoundarySample) / mSegmentSamples * mSegmentSamples;
+        synchronized (mSegmentBoundaries) {
+            mSegmentBoundaries.add(presentationTimeUs(boundary));
+        }
+        mNextBoundarySample = boundary + mSegmentSamples;
+    }
+
+    private boolean fillInputBuffer(ByteBuffer inputBuffer, int samples) {
+        if (mPcmFormat.getEncoding() == PcmFormat.Encoding.PCM_16BIT) {
+            return mCurrentFrame.copyTo(mCurrentOffset, inputBuffer, samples);
+        }
+        int values = samples * mPcmFormat.getChannelCount();
+        if (mConversionBuffer == null || mConversionBuffer.length < values) {
+            mConversionBuffer = new short[inputBuffer.capacity() / 2];
+        }
+        if (!mCurrentFrame.read(mCurrentOffset, mConversionBuffer, 0, samples)) {
+            return false;
+        }
+        inputBuffer.order(ByteOrder.nativeOrder());
+        for (int i = 0; i < values; i++) {
+            inputBuffer.putShort(mConversionBuffer[i]);
+        }
+        return true;
+    }
+
+    private void releaseCurrentFrame() {
+        mCurrentFrame.release();
+        mCurrentFrame = null;
+    }
+
+    private long presentationTimeUs(long sampleIndex) {
+        return SampleClock.samplesToNanos(sampleIndex - mSessionStartSample, mPcmFormat.getSampleRate()) / 1000;
+    }
+
+    @Override
+    public void onOutputBufferAvailable(MediaCodec mediaCodec, int index, MediaCodec.BufferInfo bufferInfo) {
+        ByteBuffer outputBuffer = mediaCodec.getOutputBuffer(index);
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && bufferInfo.size > 0) {
+            boolean crossesBoundary = crossesSegmentBoundary(bufferInfo.presentationTimeUs);
+            if (mMuxer == null || crossesBoundary) {
+                finishSegment();
+                startSegment(bufferInfo.presentationTimeUs);
+            }
+            mMuxerBufferInfo.set(bufferInfo.offset,
+                    bufferInfo.size,
+                    bufferInfo.presentationTimeUs - mSegmentStartPresentationTimeUs,
+                    bufferInfo.flags & ~MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mMuxer.writeSampleData(mTrackIndex, outputBuffer, mMuxerBufferInfo);
+            if (bufferInfo.presentationTimeUs > mLastPresentationTimeUs) {
+                mAccessUnitDurationUs = bufferInfo.presentationTimeUs - mLastPresentationTimeUs;
+            }
+            mLastPresentationTimeUs = bufferInfo.presentationTimeUs;
+        }
+        mediaCodec.releaseOutputBuffer(index, false);
+
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            Log.d(TAG, "Received end of stream flag");
+            finishSegment();
+            mCodec.stop();
+            mCodec.release();
+        }
+    }
+
+    private boolean crossesSegmentBoundary(long presentationTimeUs) {
+        boolean crosses = false;
+        synchronized (mSegmentBoundaries) {
+            while (!mSegmentBoundaries.isEmpty() && presentationTimeUs >= mSegmentBoundaries.peek()) {
+                mSegmentBoundaries.poll();
+                crosses = true;
+            }
+        }
+        return crosses;
+    }
+
+    private void startSegment(long presentationTimeUs) {
+        mSegmentTimestamp = mSessionStartTimestamp + presentationTimeUs / 1000;
+        mSegmentStartPresentationTimeUs = presentationTimeUs;
+        mLastPresentationTimeUs = presentationTimeUs;
+        mSegmentFile = mCallback.createSegmentFile(mSegmentTimestamp, "m4a");
+        Log.d(TAG, "Output file: " + mSegmentFile.getName());
+        try {
+            mMuxer = new MediaMuxer(mSegmentFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot create Muxer: " + e.toString());
+        }
+        mTrackIndex = mMuxer.addTrack(mOutputFormat);
+        mMuxer.start();
+    }
+
+    private void finishSegment() {
+        if (mMuxer == null) {
+            return;
+        }
+        mMuxer.stop();
+        mMuxer.release();
+        mMuxer = null;
+        // The last access unit lasts as long as the one before it
+        long durationUs = mLastPresentationTimeUs + mAccessUnitDurationUs - mSegmentStartPresentationTimeUs;
+        // The codec is always fed 16 bit samples
+        mCallback.onSegmentComplete(mSegmentTimestamp, durationUs / 1000, mPcmFormat.withEncoding(PcmFormat.Encoding.PCM_16BIT), mSegmentFile);
+    }
+
+    @Override
+    public void onError(MediaCodec mediaCodec, MediaCodec.CodecException e) {
+        Log.d(TAG, "CodecException: " + e.toString());
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaCodec mediaCodec, MediaFormat mediaFormat) {
+        Log.d(TAG, "Output format has been changed");
+        mOutputFormat = mediaFormat;
+    }
+}
@@ -0,0 +1,76 @@
+package de.db.aim;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extracting the acoustic features of a one second frame of 16 bit audio and adding them
+ * to a reused payload. The signal is a tone with noise.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FeatureExtractorBenchmark {
+
+    private static final int SAMPLE_RATE = 48000;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    private AudioFrame mFrame;
+    private FeatureExtractor mExtractor;
+    private Payload mPayload;
+
+    @Setup
+    public void setup() {
+        PcmFormat format = new PcmFormat(SAMPLE_RATE, channels, PcmFormat.Encoding.PCM_16BIT);
+        int samples = format.millisecondsToFrames(1000);
+        SampleRingBuffer ringBuffer = new SampleRingBuffer(format, 2 * samples, samples, false);
+        AudioFramer framer = new AudioFramer(ringBuffer, new AudioFramePool(ringBuffer, 2), samples, samples);
+        ringBuffer.claim(samples);
+        ByteBuffer target = ByteBuffer.wrap(ringBuffer.array(), ringBuffer.writeByteOffset(), samples * format.getBytesPerFrame())
+                .order(ByteOrder.nativeOrder());
+        Random random = new Random(42);
+        for (int i = 0; i < samples; i++) {
+            double tone = 8000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE);
+            for (int c = 0; c < channels; c++) {
+                target.putShort((short) (tone + 200 * random.nextGaussian()));
+            }
+        }
+        ringBuffer.commit(samples);
+        framer.emitCompletedFrames(new SampleClock(SAMPLE_RATE, 0, 0), new AudioCollectorListener() {
+
+            @Override
+            public void onNewAudioFrame(AudioFrame frame) {
+                mFrame = frame.retain();
+            }
+        });
+        mExtractor = new FeatureExtractor();
+        mPayload = new Payload();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFrame.release();
+    }
+
+    @Benchmark
+    public Payload extract() {
+        mExtractor.extract(mFrame);
+        mPayload.removeAllMetrics();
+        mExtractor.addMetrics(mPayload);
+        return mPayload;
+    }
+}
@@ -0,0 +1,69 @@
+package de.db.aim;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding ten seconds of 16 bit audio into a FLAC file. The signal is a tone with noise,
+ * so prediction and Rice coding have something to do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FlacEncoderBenchmark {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int SECONDS = 10;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    @Param({"1152", "4096"})
+    public int blockSize;
+
+    private PcmFormat mFormat;
+    private short[] mSamples;
+    private FlacEncoder mEncoder;
+    private File mFile;
+
+    @Setup
+    public void setup() throws IOException {
+        mFormat = new PcmFormat(SAMPLE_RATE, channels, PcmFormat.Encoding.PCM_16BIT);
+        int samples = SAMPLE_RATE * SECONDS;
+        mSamples = new short[samples * channels];
+        Random random = new Random(42);
+        for (int i = 0; i < samples; i++) {
+            double tone = 8000 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE);
+            for (int c = 0; c < channels; c++) {
+                mSamples[i * channels + c] = (short) (tone + 200 * random.nextGaussian());
+            }
+        }
+        mEncoder = new FlacEncoder(blockSize);
+        mFile = File.createTempFile("benchmark", ".flac");
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public File encode() throws IOException {
+        mEncoder.start(mFile, mFormat);
+        mEncoder.encode(mSamples, 0, mSamples.length / channels);
+        mEncoder.finish();
+        return mFile;
+    }
+}
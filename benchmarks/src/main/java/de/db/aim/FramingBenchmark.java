@@ -0,0 +1,86 @@
+package de.db.aim;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Capture loop without the recorder: copies one chunk into the ring buffer the way
+ * {@code AudioCollectorWorker} does and emits the frames it completes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FramingBenchmark {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    @Param({"PCM_16BIT", "PCM_FLOAT"})
+    public PcmFormat.Encoding encoding;
+
+    @Param({"false", "true"})
+    public boolean direct;
+
+    @Param({"100"})
+    public int chunkMilliseconds;
+
+    private SampleRingBuffer mRingBuffer;
+    private AudioFramer mFramer;
+    private SampleClock mClock;
+    private int mChunkSizeInSamples;
+    private byte[] mByteChunk;
+    private float[] mFloatChunk;
+    private Blackhole mBlackhole;
+
+    private final AudioCollectorListener mListener = new AudioCollectorListener() {
+
+        @Override
+        public void onNewAudioFrame(AudioFrame frame) {
+            mBlackhole.consume(frame.getTimestampNanos());
+        }
+    };
+
+    @Setup
+    public void setup() {
+        PcmFormat format = new PcmFormat(SAMPLE_RATE, 1, encoding);
+        int samplesPerFrame = format.millisecondsToFrames(10000);
+        int samplesPerHop = format.millisecondsToFrames(5000);
+        mChunkSizeInSamples = format.millisecondsToFrames(chunkMilliseconds);
+        mRingBuffer = new SampleRingBuffer(format, samplesPerFrame + 8 * samplesPerHop + mChunkSizeInSamples, mChunkSizeInSamples, direct);
+        mFramer = new AudioFramer(mRingBuffer, new AudioFramePool(mRingBuffer, 16), samplesPerFrame, samplesPerHop);
+        mClock = new SampleClock(SAMPLE_RATE, 0, 0);
+        mByteChunk = new byte[mChunkSizeInSamples * format.getBytesPerFrame()];
+        mFloatChunk = new float[mChunkSizeInSamples];
+        for (int i = 0; i < mFloatChunk.length; i++) {
+            mFloatChunk[i] = (float) Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE);
+        }
+    }
+
+    @Benchmark
+    public int captureChunk(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        int samples = mFramer.samplesToCapture(mChunkSizeInSamples);
+        mRingBuffer.claim(samples);
+        int bytes = samples * mRingBuffer.getFormat().getBytesPerFrame();
+        if (direct) {
+            ByteBuffer target = mRingBuffer.writeBuffer();
+            target.clear();
+            target.put(mByteChunk, 0, bytes);
+        } else if (encoding == PcmFormat.Encoding.PCM_FLOAT) {
+            mRingBuffer.put(mFloatChunk, samples);
+        } else {
+            System.arraycopy(mByteChunk, 0, mRingBuffer.array(), mRingBuffer.writeByteOffset(), bytes);
+        }
+        mRingBuffer.commit(samples);
+        return mFramer.emitCompletedFrames(mClock, mListener);
+    }
+}
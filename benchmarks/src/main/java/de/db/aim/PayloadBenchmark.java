@@ -0,0 +1,90 @@
+package de.db.aim;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the MQTT message for an encoded audio file, as {@code CloudService} does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PayloadBenchmark {
+
+    // Roughly 10 s of AAC at 64 and 256 kbit/s
+    @Param({"80000", "320000"})
+    public int fileSize;
+
+    private byte[] mFile;
+    private Payload mPayload;
+    private ByteArrayOutputStream mOut;
+
+    @Setup
+    public void setup() {
+        mFile = new byte[fileSize];
+        new Random(42).nextBytes(mFile);
+        mPayload = new Payload();
+        mOut = new ByteArrayOutputStream(Base64.encodedLength(fileSize) + 1024);
+    }
+
+    @Benchmark
+    public String base64() {
+        return Base64.encodeToString(mFile);
+    }
+
+    @Benchmark
+    public byte[] audioPayload() {
+        Payload payload = new Payload();
+        payload.setTimestamp(1546300800000L);
+        payload.addMetric("path", "/storage/emulated/0/Music/AIM/2019-01-01/00");
+        payload.addMetric("filename", "AIM_2019-01-01Z00-00-00.000.m4a");
+        payload.addMetric("channels", 1);
+        payload.addMetric("sample_rate", 44100);
+        payload.addMetric("sample_size", 16);
+        payload.addMetric("compressed_audio_data", Base64.encodeToString(mFile));
+        return payload.toJson().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] audioPayloadCbor() {
+        Payload payload = new Payload();
+        payload.setTimestamp(1546300800000L);
+        payload.addMetric("path", "/storage/emulated/0/Music/AIM/2019-01-01/00");
+        payload.addMetric("filename", "AIM_2019-01-01Z00-00-00.000.m4a");
+        payload.addMetric("channels", 1);
+        payload.addMetric("sample_rate", 44100);
+        payload.addMetric("sample_size", 16);
+        payload.addMetric("compressed_audio_data", mFile);
+        return PayloadFormat.CBOR.encode(payload);
+    }
+
+    /**
+     * A reused payload streamed into a reused buffer, which does not allocate.
+     */
+    @Benchmark
+    public int audioPayloadReused() throws IOException {
+        mPayload.removeAllMetrics();
+        mPayload.setTimestamp(1546300800000L);
+        mPayload.addMetric("path", "/storage/emulated/0/Music/AIM/2019-01-01/00");
+        mPayload.addMetric("filename", "AIM_2019-01-01Z00-00-00.000.m4a");
+        mPayload.addMetric("channels", 1);
+        mPayload.addMetric("sample_rate", 44100);
+        mPayload.addMetric("sample_size", 16);
+        mPayload.addMetric("compressed_audio_data", mFile);
+        mOut.reset();
+        mPayload.writeJson(mOut);
+        return mOut.size();
+    }
+}
@@ -0,0 +1,82 @@
+package de.db.aim;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a complete frame out of the ring buffer in the representations listeners use.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SampleConversionBenchmark {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    @Param({"PCM_16BIT", "PCM_FLOAT"})
+    public PcmFormat.Encoding encoding;
+
+    @Param({"1000", "10000"})
+    public int frameMilliseconds;
+
+    private AudioFrame mFrame;
+    private short[] mShorts;
+    private float[] mFloats;
+    private ByteBuffer mBytes;
+
+    @Setup
+    public void setup() {
+        PcmFormat format = new PcmFormat(SAMPLE_RATE, 1, encoding);
+        int samples = format.millisecondsToFrames(frameMilliseconds);
+        SampleRingBuffer ringBuffer = new SampleRingBuffer(format, samples, 1, false);
+        float[] source = new float[samples];
+        for (int i = 0; i < samples; i++) {
+            source[i] = (float) Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE);
+        }
+        ringBuffer.claim(samples);
+        if (encoding == PcmFormat.Encoding.PCM_FLOAT) {
+            ringBuffer.put(source, samples);
+        } else {
+            ByteBuffer target = ByteBuffer.wrap(ringBuffer.array()).order(ByteOrder.nativeOrder());
+            for (int i = 0; i < samples; i++) {
+                target.putShort(SampleRingBuffer.toShort(source[i]));
+            }
+        }
+        ringBuffer.commit(samples);
+        mFrame = new AudioFramePool(ringBuffer, 1).acquire();
+        mFrame.setTime(0, new SampleClock(SAMPLE_RATE, 0, 0));
+        mFrame.setSampleCount(samples);
+        mShorts = new short[samples];
+        mFloats = new float[samples];
+        mBytes = ByteBuffer.allocateDirect(samples * format.getBytesPerFrame()).order(ByteOrder.nativeOrder());
+    }
+
+    @Benchmark
+    public short[] readShorts() {
+        mFrame.read(mShorts, 0);
+        return mShorts;
+    }
+
+    @Benchmark
+    public float[] readFloats() {
+        mFrame.read(mFloats, 0);
+        return mFloats;
+    }
+
+    @Benchmark
+    public ByteBuffer copyBytes() {
+        mBytes.clear();
+        mFrame.copyTo(mBytes);
+        return mBytes;
+    }
+}
@@ -0,0 +1,54 @@
+package de.db.aim;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a frame of 16 bit samples to a WAV file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class WavWriterBenchmark {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    @Param({"1000", "10000"})
+    public int frameMilliseconds;
+
+    private PcmFormat mFormat;
+    private short[] mSamples;
+    private File mFile;
+
+    @Setup
+    public void setup() throws IOException {
+        mFormat = new PcmFormat(SAMPLE_RATE, 1, PcmFormat.Encoding.PCM_16BIT);
+        mSamples = new short[mFormat.millisecondsToFrames(frameMilliseconds)];
+        for (int i = 0; i < mSamples.length; i++) {
+            mSamples[i] = (short) (Short.MAX_VALUE * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE));
+        }
+        mFile = File.createTempFile("benchmark", ".wav");
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Benchmark
+    public File writeWavFile() throws IOException {
+        AudioUtils.writeWavFile(mFile.getPath(), mFormat, mSamples);
+        return mFile;
+    }
+}
@@ -0,0 +1,169 @@
+package de.db.aim;
+
+/**
+ * Decides whether a frame holds sound worth encoding, by comparing the short-term energy
+ * of the samples with an adaptive estimate of the background noise.
+ * <p>
+ * The samples are analyzed in blocks of {@link #BLOCK_MILLIS}. The noise floor follows
+ * the block energy quickly when it falls and slowly when it rises, so a steady background
+ * like a fan is learned as noise within seconds, while an event stands out against it. A
+ * block is active if its energy exceeds the noise floor by the threshold and is above
+ * {@link #MIN_ACTIVE_DBFS}. After an active block, the following blocks count as active
+ * for the hangover time, so the decaying end of an event and short pauses are kept.
+ * <p>
+ * Frames overlap, so each sample is analyzed only once, when the first frame holding it
+ * arrives. A frame is active if any of its samples is active or within the hangover.
+ * Frames have to be passed in the order they were captured. A detector is not thread
+ * safe.
+ */
+public class ActivityDetector {
+
+    static final int BLOCK_MILLIS = 10;
+    static final double MIN_ACTIVE_DBFS = -60;
+    // Weights of a new block energy in the noise floor, per block. Falling, the floor
+    // settles within a few blocks; rising, it takes about 5 seconds.
+    private static final double FLOOR_FALL = 0.2;
+    private static final double FLOOR_RISE = 0.002;
+    private static final double FULL_SCALE_ENERGY = 32768.0 * 32768.0;
+    // Keeps the floor above zero after digital silence, about -90 dBFS
+    private static final double MIN_FLOOR_ENERGY = 1.0;
+
+    private final double mThresholdRatio;
+    private final long mHangoverMillis;
+    private final double mMinActiveEnergy;
+
+    private PcmFormat mFormat;
+    private int mBlockSamples;
+    private long mHangoverSamples;
+    private short[] mBuffer;
+    private long mAnalyzedUpTo = -1;
+    private long mActiveUntil = -1;
+    private double mBlockEnergy;
+    private int mBlockFill;
+    private double mNoiseFloor = -1;
+    private long mActiveFrames;
+    private long mInactiveFrames;
+
+    /**
+     * @param thresholdDb    how far the energy of a block has to exceed the noise floor
+     * @param hangoverMillis how long the samples after an active block count as active
+     */
+    public ActivityDetector(double thresholdDb, long hangoverMillis) {
+        if (thresholdDb < 0 || hangoverMillis < 0) {
+            throw new IllegalArgumentException("Invalid activity detection parameters");
+        }
+        this.mThresholdRatio = Math.pow(10, thresholdDb / 10);
+        this.mHangoverMillis = hangoverMillis;
+        this.mMinActiveEnergy = FULL_SCALE_ENERGY * Math.pow(10, MIN_ACTIVE_DBFS / 10);
+    }
+
+    /**
+     * Analyzes the samples of a frame that have not been analyzed with an earlier frame.
+     *
+     * @return whether the frame is active; frames whose samples have been overwritten
+     * before they could be analyzed count as active
+     */
+    public boolean isActive(AudioFrame frame) {
+        PcmFormat format = frame.getFormat();
+        if (!format.equals(mFormat)) {
+            reset(format);
+        }
+        long start = frame.getStartSampleIndex();
+        long end = start + frame.getSampleCount();
+        if (mAnalyzedUpTo < start) {
+            // A gap, the partial block before it is incomplete
+            mAnalyzedUpTo = start;
+            mBlockEnergy = 0;
+            mBlockFill = 0;
+        }
+        boolean active = true;
+        if (end <= mAnalyzedUpTo || analyze(frame, (int) (mAnalyzedUpTo - start), (int) (end - mAnalyzedUpTo))) {
+            active = start < mActiveUntil;
+        }
+        if (active) {
+            mActiveFrames++;
+        } else {
+            mInactiveFrames++;
+        }
+        return active;
+    }
+
+    /**
+     * The current noise floor in dB relative to full scale, or negative infinity if
+     * nothing has been analyzed yet.
+     */
+    public double getNoiseFloorDbfs() {
+        return mNoiseFloor < 0 ? Double.NEGATIVE_INFINITY : 10 * Math.log10(mNoiseFloor / FULL_SCALE_ENERGY);
+    }
+
+    public long getActiveFrames() {
+        return mActiveFrames;
+    }
+
+    public long getInactiveFrames() {
+        return mInactiveFrames;
+    }
+
+    /**
+     * @return false if the samples have been overwritten
+     */
+    private boolean analyze(AudioFrame frame, int offset, int samples) {
+        int channels = mFormat.getChannelCount();
+        int chunkSamples = mBuffer.length / channels;
+        while (samples > 0) {
+            int count = Math.min(samples, chunkSamples);
+            if (!frame.read(offset, mBuffer, 0, count)) {
+                mAnalyzedUpTo += samples;
+                mBlockEnergy = 0;
+                mBlockFill = 0;
+                return false;
+            }
+            int values = count * channels;
+            int i = 0;
+            while (i < values) {
+                int blockEnd = Math.min(values, i + (mBlockSamples - mBlockFill) * channels);
+                int blockSamples = (blockEnd - i) / channels;
+                double sum = 0;
+                for (; i < blockEnd; i++) {
+                    double value = mBuffer[i];
+                    sum += value * value;
+                }
+                mBlockEnergy += sum;
+                mBlockFill += blockSamples;
+                mAnalyzedUpTo += blockSamples;
+                if (mBlockFill == mBlockSamples) {
+                    endBlock(mAnalyzedUpTo);
+                }
+            }
+            offset += count;
+            samples -= count;
+        }
+        return true;
+    }
+
+    private void endBlock(long blockEnd) {
+        double energy = mBlockEnergy / (mBlockSamples * mFormat.getChannelCount());
+        mBlockEnergy = 0;
+        mBlockFill = 0;
+        if (mNoiseFloor < 0) {
+            mNoiseFloor = Math.max(MIN_FLOOR_ENERGY, energy);
+        }
+        if (energy > mNoiseFloor * mThresholdRatio && energy > mMinActiveEnergy) {
+            mActiveUntil = blockEnd + mHangoverSamples;
+        }
+        double weight = energy < mNoiseFloor ? FLOOR_FALL : FLOOR_RISE;
+        mNoiseFloor = Math.max(MIN_FLOOR_ENERGY, mNoiseFloor + weight * (energy - mNoiseFloor));
+    }
+
+    private void reset(PcmFormat format) {
+        mFormat = format;
+        mBlockSamples = Math.max(1, format.getSampleRate() * BLOCK_MILLIS / 1000);
+        mHangoverSamples = format.getSampleRate() * mHangoverMillis / 1000;
+        mBuffer = new short[mBlockSamples * format.getChannelCount() * 16];
+        mAnalyzedUpTo = -1;
+        mActiveUntil = -1;
+        mBlockEnergy = 0;
+        mBlockFill = 0;
+        mNoiseFloor = -1;
+    }
+}
@@ -0,0 +1,5 @@
+package de.db.aim;
+
+public interface AudioCollectorListener {
+    void onNewAudioFrame(AudioFrame frame);
+}
@@ -0,0 +1,145 @@
+package de.db.aim;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A window of captured PCM samples handed out by an {@link AudioFramePool}.
+ * <p>
+ * A frame does not own its samples, it is a view onto the collector's
+ * {@link SampleRingBuffer}, so overlapping frames share the same samples. A sample holds
+ * one value per channel of the frame's {@link PcmFormat}, interleaved. Samples are read
+ * with {@link #read(short[], int)}, {@link #read(float[], int)} or {@link #copyTo(ByteBuffer)},
+ * which convert to the requested type where necessary and return {@code false} if a
+ * consumer lagged so far behind that the samples have been overwritten.
+ * <p>
+ * Frames are reference counted. A listener may use a frame for the duration of
+ * {@link AudioCollectorListener#onNewAudioFrame(AudioFrame)}; to keep it beyond that call
+ * it has to {@link #retain()} the frame and {@link #release()} it when done, after
+ * which the frame goes back to its pool.
+ */
+public class AudioFrame {
+
+    private final AudioFramePool mPool;
+    private final SampleRingBuffer mRingBuffer;
+    private final AtomicInteger mReferenceCount = new AtomicInteger();
+    private int mSampleCount;
+    private long mStartSampleIndex;
+    private long mTimestampNanos;
+    private long mTimestamp;
+    private boolean mDigitalSilence;
+
+    AudioFrame(AudioFramePool pool, SampleRingBuffer ringBuffer) {
+        this.mPool = pool;
+        this.mRingBuffer = ringBuffer;
+    }
+
+    public boolean read(short[] destination, int destinationOffset) {
+        return read(0, destination, destinationOffset, mSampleCount);
+    }
+
+    public boolean read(int offset, short[] destination, int destinationOffset, int length) {
+        if (offset < 0 || length < 0 || offset + length > mSampleCount) {
+            throw new IndexOutOfBoundsException("Cannot read " + length + " samples at " + offset);
+        }
+        return mRingBuffer.read(mStartSampleIndex + offset, destination, destinationOffset, length);
+    }
+
+    public boolean read(float[] destination, int destinationOffset) {
+        return read(0, destination, destinationOffset, mSampleCount);
+    }
+
+    public boolean read(int offset, float[] destination, int destinationOffset, int length) {
+        if (offset < 0 || length < 0 || offset + length > mSampleCount) {
+            throw new IndexOutOfBoundsException("Cannot read " + length + " samples at " + offset);
+        }
+        return mRingBuffer.read(mStartSampleIndex + offset, destination, destinationOffset, length);
+    }
+
+    /**
+     * Copies the samples in the frame's encoding and native byte order.
+     */
+    public boolean copyTo(ByteBuffer destination) {
+        return copyTo(0, destination, mSampleCount);
+    }
+
+    public boolean copyTo(int offset, ByteBuffer destination, int length) {
+        if (offset < 0 || length < 0 || offset + length > mSampleCount) {
+            throw new IndexOutOfBoundsException("Cannot copy " + length + " samples at " + offset);
+        }
+        return mRingBuffer.read(mStartSampleIndex + offset, destination, length);
+    }
+
+    public PcmFormat getFormat() {
+        return mRingBuffer.getFormat();
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Index of the first sample of this frame, counted from the start of the capture session.
+     */
+    public long getStartSampleIndex() {
+        return mStartSampleIndex;
+    }
+
+    /**
+     * Time of the first sample in the {@code SystemClock.elapsedRealtimeNanos()} time base.
+     */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    /**
+     * Wall clock time of the first sample in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     * Whether every sample of the frame is zero, as delivered by a muted or failed
+     * microphone. Determined while capturing, so it costs nothing to ask.
+     */
+    public boolean isDigitalSilence() {
+        return mDigitalSilence;
+    }
+
+    void setDigitalSilence(boolean digitalSilence) {
+        this.mDigitalSilence = digitalSilence;
+    }
+
+    void setSampleCount(int sampleCount) {
+        this.mSampleCount = sampleCount;
+    }
+
+    void setTime(long startSampleIndex, SampleClock clock) {
+        this.mStartSampleIndex = startSampleIndex;
+        this.mTimestampNanos = clock.nanosAt(startSampleIndex);
+        this.mTimestamp = clock.wallClockMillisAt(startSampleIndex);
+    }
+
+    public AudioFrame retain() {
+        if (mReferenceCount.getAndIncrement() <= 0) {
+            mReferenceCount.getAndDecrement();
+            throw new IllegalStateException("Frame has already been released");
+        }
+        return this;
+    }
+
+    public void release() {
+        int referenceCount = mReferenceCount.decrementAndGet();
+        if (referenceCount == 0) {
+            mPool.recycle(this);
+        } else if (referenceCount < 0) {
+            mReferenceCount.incrementAndGet();
+            throw new IllegalStateException("Frame has already been released");
+        }
+    }
+
+    void acquired() {
+        mReferenceCount.set(1);
+    }
+}
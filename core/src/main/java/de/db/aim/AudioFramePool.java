@@ -0,0 +1,50 @@
+package de.db.aim;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Recycles {@link AudioFrame} views onto a ring buffer so that capturing does not allocate
+ * in steady state. If all pooled frames are in use a new one is allocated; frames in
+ * excess of the pool size are left to the garbage collector when released.
+ */
+class AudioFramePool {
+
+    private final SampleRingBuffer mRingBuffer;
+    private final ArrayBlockingQueue<AudioFrame> mFreeFrames;
+    private volatile long mAllocatedFrames;
+
+    AudioFramePool(SampleRingBuffer ringBuffer, int poolSize) {
+        this.mRingBuffer = ringBuffer;
+        this.mFreeFrames = new ArrayBlockingQueue<AudioFrame>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            mFreeFrames.offer(new AudioFrame(this, ringBuffer));
+            mAllocatedFrames++;
+        }
+    }
+
+    /**
+     * Returns a frame holding a single reference that belongs to the caller.
+     * Must only be called from the capture thread.
+     */
+    AudioFrame acquire() {
+        AudioFrame frame = mFreeFrames.poll();
+        if (frame == null) {
+            frame = new AudioFrame(this, mRingBuffer);
+            mAllocatedFrames++;
+        }
+        frame.acquired();
+        return frame;
+    }
+
+    void recycle(AudioFrame frame) {
+        mFreeFrames.offer(frame);
+    }
+
+    int getFreeFrames() {
+        return mFreeFrames.size();
+    }
+
+    long getAllocatedFrames() {
+        return mAllocatedFrames;
+    }
+}
@@ -0,0 +1,58 @@
+package de.db.aim;
+
+/**
+ * Cuts the samples committed to a {@link SampleRingBuffer} into overlapping frames of a
+ * fixed length, one every hop. Frames are views onto the ring buffer and are taken from
+ * an {@link AudioFramePool}, so framing does not copy or allocate.
+ */
+class AudioFramer {
+
+    private final SampleRingBuffer mRingBuffer;
+    private final AudioFramePool mFramePool;
+    private final int mSamplesPerFrame;
+    private final int mSamplesPerHop;
+    private long mNextFrameEnd;
+
+    AudioFramer(SampleRingBuffer ringBuffer, AudioFramePool framePool, int samplesPerFrame, int samplesPerHop) {
+        this.mRingBuffer = ringBuffer;
+        this.mFramePool = framePool;
+        this.mSamplesPerFrame = samplesPerFrame;
+        this.mSamplesPerHop = samplesPerHop;
+        this.mNextFrameEnd = samplesPerFrame;
+    }
+
+    /**
+     * Number of samples to capture next: at most one chunk, and never beyond the end of the
+     * next frame or the end of the ring buffer.
+     */
+    int samplesToCapture(int chunkSizeInSamples) {
+        long samplesToFrameCompletion = mNextFrameEnd - mRingBuffer.getWritePosition();
+        return (int) Math.min(Math.min(chunkSizeInSamples, samplesToFrameCompletion),
+                mRingBuffer.contiguousWritableSamples());
+    }
+
+    /**
+     * Hands every frame that has been completed by the committed samples to the listener.
+     * The frame is only valid during the call unless the listener retains it.
+     *
+     * @return the number of frames emitted
+     */
+    int emitCompletedFrames(SampleClock clock, AudioCollectorListener listener) {
+        long samplesWritten = mRingBuffer.getWritePosition();
+        int frames = 0;
+        while (samplesWritten >= mNextFrameEnd) {
+            AudioFrame frame = mFramePool.acquire();
+            frame.setTime(mNextFrameEnd - mSamplesPerFrame, clock);
+            frame.setSampleCount(mSamplesPerFrame);
+            frame.setDigitalSilence(mRingBuffer.isSilentFrom(mNextFrameEnd - mSamplesPerFrame));
+            try {
+                listener.onNewAudioFrame(frame);
+            } finally {
+                frame.release();
+            }
+            mNextFrameEnd += mSamplesPerHop;
+            frames++;
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,64 @@
+package de.db.aim;
+
+/**
+ * A finished audio file as recorded in the {@link SegmentIndex}.
+ */
+public class AudioSegment {
+
+    private final long mStartMillis;
+    private final long mDurationMillis;
+    private final String mPath;
+    private final long mSize;
+    private final String mCodec;
+    boolean mRemoved;
+
+    /**
+     * @param startMillis    wall clock time of the first sample in milliseconds since the epoch
+     * @param durationMillis duration of the audio in the file
+     * @param path           absolute path of the file
+     * @param size           size of the file in bytes
+     * @param codec          MIME type of the encoded audio
+     */
+    public AudioSegment(long startMillis, long durationMillis, String path, long size, String codec) {
+        this.mStartMillis = startMillis;
+        this.mDurationMillis = durationMillis;
+        this.mPath = path;
+        this.mSize = size;
+        this.mCodec = codec;
+    }
+
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+
+    public long getDurationMillis() {
+        return mDurationMillis;
+    }
+
+    public long getEndMillis() {
+        return mStartMillis + mDurationMillis;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public String getCodec() {
+        return mCodec;
+    }
+
+    @Override
+    public String toString() {
+        return "AudioSegment{" +
+                "start=" + mStartMillis +
+                ", duration=" + mDurationMillis +
+                ", path='" + mPath + '\'' +
+                ", size=" + mSize +
+                ", codec='" + mCodec + '\'' +
+                '}';
+    }
+}
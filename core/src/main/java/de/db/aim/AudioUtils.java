@@ -0,0 +1,25 @@
+package de.db.aim;
+
+import java.io.File;
+import java.io.IOException;
+
+public class AudioUtils {
+
+    public static void writeWavFile(String pathName, PcmFormat format, short[] audioData) throws IOException {
+        WavWriter writer = new WavWriter(new File(pathName), format);
+        try {
+            writer.write(audioData, 0, audioData.length);
+        } finally {
+            writer.close();
+        }
+    }
+
+    public static void writeWavFile(String pathName, PcmFormat format, float[] audioData) throws IOException {
+        WavWriter writer = new WavWriter(new File(pathName), format);
+        try {
+            writer.write(audioData, 0, audioData.length);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package de.db.aim;
+
+/**
+ * RFC 4648 base64 encoding with padding and without line breaks. Stands in for
+ * {@code java.util.Base64}, which is not available before Android API level 26.
+ */
+public final class Base64 {
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final byte[] ALPHABET_BYTES = new byte[ALPHABET.length];
+
+    static {
+        for (int i = 0; i < ALPHABET.length; i++) {
+            ALPHABET_BYTES[i] = (byte) ALPHABET[i];
+        }
+    }
+
+    private Base64() {
+    }
+
+    public static int encodedLength(int length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    public static String encodeToString(byte[] data) {
+        char[] encoded = new char[encodedLength(data.length)];
+        encode(data, 0, data.length, encoded, 0);
+        return new String(encoded);
+    }
+
+    /**
+     * Encodes {@code length} bytes of {@code data} into {@code out}, which needs room for
+     * {@link #encodedLength(int)} characters.
+     *
+     * @return the number of characters written
+     */
+    public static int encode(byte[] data, int offset, int length, char[] out, int outOffset) {
+        int end = offset + length;
+        int fullGroupsEnd = offset + length / 3 * 3;
+        int o = outOffset;
+        int i = offset;
+        while (i < fullGroupsEnd) {
+            int bits = (data[i++] & 0xff) << 16 | (data[i++] & 0xff) << 8 | (data[i++] & 0xff);
+            out[o++] = ALPHABET[bits >>> 18];
+            out[o++] = ALPHABET[(bits >>> 12) & 0x3f];
+            out[o++] = ALPHABET[(bits >>> 6) & 0x3f];
+            out[o++] = ALPHABET[bits & 0x3f];
+        }
+        if (i < end) {
+            int bits = (data[i++] & 0xff) << 16;
+            boolean two = i < end;
+            if (two) {
+                bits |= (data[i] & 0xff) << 8;
+            }
+            out[o++] = ALPHABET[bits >>> 18];
+            out[o++] = ALPHABET[(bits >>> 12) & 0x3f];
+            out[o++] = two ? ALPHABET[(bits >>> 6) & 0x3f] : '=';
+            out[o++] = '=';
+        }
+        return o - outOffset;
+    }
+
+    /**
+     * Like {@link #encode(byte[], int, int, char[], int)}, but writes ASCII bytes.
+     */
+    public static int encode(byte[] data, int offset, int length, byte[] out, int outOffset) {
+        int end = offset + length;
+        int fullGroupsEnd = offset + length / 3 * 3;
+        int o = outOffset;
+        int i = offset;
+        while (i < fullGroupsEnd) {
+            int bits = (data[i++] & 0xff) << 16 | (data[i++] & 0xff) << 8 | (data[i++] & 0xff);
+            out[o++] = ALPHABET_BYTES[bits >>> 18];
+            out[o++] = ALPHABET_BYTES[(bits >>> 12) & 0x3f];
+            out[o++] = ALPHABET_BYTES[(bits >>> 6) & 0x3f];
+            out[o++] = ALPHABET_BYTES[bits & 0x3f];
+        }
+        if (i < end) {
+            int bits = (data[i++] & 0xff) << 16;
+            boolean two = i < end;
+            if (two) {
+                bits |= (data[i] & 0xff) << 8;
+            }
+            out[o++] = ALPHABET_BYTES[bits >>> 18];
+            out[o++] = ALPHABET_BYTES[(bits >>> 12) & 0x3f];
+            out[o++] = two ? ALPHABET_BYTES[(bits >>> 6) & 0x3f] : (byte) '=';
+            out[o++] = '=';
+        }
+        return o - outOffset;
+    }
+}
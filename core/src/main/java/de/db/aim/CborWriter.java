@@ -0,0 +1,159 @@
+package de.db.aim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes CBOR (RFC 7049) data items to a stream without allocating. Only the item types
+ * needed for a {@link Payload} are supported.
+ */
+class CborWriter {
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+
+    /** Marks the data as CBOR, encoded as D9 D9 F7. */
+    static final int TAG_SELF_DESCRIBE = 55799;
+
+    private OutputStream mOut;
+    private final byte[] mScratch = new byte[9];
+
+    CborWriter(OutputStream out) {
+        this.mOut = out;
+    }
+
+    /**
+     * Writes to {@code out} from now on.
+     */
+    void reset(OutputStream out) {
+        this.mOut = out;
+    }
+
+    void writeTag(long tag) throws IOException {
+        writeHead(MAJOR_TAG, tag);
+    }
+
+    void writeArrayStart(int size) throws IOException {
+        writeHead(MAJOR_ARRAY, size);
+    }
+
+    void writeMapStart(int size) throws IOException {
+        writeHead(MAJOR_MAP, size);
+    }
+
+    void writeLong(long value) throws IOException {
+        if (value >= 0) {
+            writeHead(MAJOR_UNSIGNED, value);
+        } else {
+            writeHead(MAJOR_NEGATIVE, -1 - value);
+        }
+    }
+
+    void writeFloat(float value) throws IOException {
+        mOut.write(0xfa);
+        writeBigEndian(Float.floatToIntBits(value), 4);
+    }
+
+    void writeDouble(double value) throws IOException {
+        mOut.write(0xfb);
+        writeBigEndian(Double.doubleToLongBits(value), 8);
+    }
+
+    void writeBoolean(boolean value) throws IOException {
+        mOut.write(value ? 0xf5 : 0xf4);
+    }
+
+    void writeNull() throws IOException {
+        mOut.write(0xf6);
+    }
+
+    /**
+     * Writes a text string. Unpaired surrogates are replaced with a question mark.
+     */
+    void writeString(String value) throws IOException {
+        int length = value.length();
+        writeHead(MAJOR_TEXT, utf8Length(value));
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                mOut.write(c);
+            } else if (c < 0x800) {
+                mOut.write(0xc0 | c >> 6);
+                mOut.write(0x80 | c & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    mOut.write(0xf0 | codePoint >> 18);
+                    mOut.write(0x80 | codePoint >> 12 & 0x3f);
+                    mOut.write(0x80 | codePoint >> 6 & 0x3f);
+                    mOut.write(0x80 | codePoint & 0x3f);
+                } else {
+                    mOut.write('?');
+                }
+            } else {
+                mOut.write(0xe0 | c >> 12);
+                mOut.write(0x80 | c >> 6 & 0x3f);
+                mOut.write(0x80 | c & 0x3f);
+            }
+        }
+    }
+
+    void writeBytes(byte[] value, int offset, int length) throws IOException {
+        writeHead(MAJOR_BYTES, length);
+        mOut.write(value, offset, length);
+    }
+
+    private void writeHead(int major, long value) throws IOException {
+        int type = major << 5;
+        if (value < 24) {
+            mOut.write(type | (int) value);
+        } else if (value < 0x100L) {
+            mOut.write(type | 24);
+            writeBigEndian(value, 1);
+        } else if (value < 0x10000L) {
+            mOut.write(type | 25);
+            writeBigEndian(value, 2);
+        } else if (value < 0x100000000L) {
+            mOut.write(type | 26);
+            writeBigEndian(value, 4);
+        } else {
+            mOut.write(type | 27);
+            writeBigEndian(value, 8);
+        }
+    }
+
+    private static int utf8Length(String value) {
+        int length = value.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    bytes += 4;
+                    i++;
+                } else {
+                    bytes += 1;
+                }
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private void writeBigEndian(long value, int bytes) throws IOException {
+        for (int i = 0; i < bytes; i++) {
+            mScratch[i] = (byte) (value >>> (8 * (bytes - 1 - i)));
+        }
+        mOut.write(mScratch, 0, bytes);
+    }
+}
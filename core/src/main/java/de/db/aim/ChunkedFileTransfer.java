@@ -0,0 +1,167 @@
+package de.db.aim;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Splits an audio file into chunk messages of a fixed size, so it can be sent as a
+ * sequence of small messages and reassembled by the receiver.
+ * <p>
+ * Every chunk is self-describing. It starts with a big endian header:
+ * <pre>
+ * int    magic "AIMC"
+ * byte   version
+ * short  length of the transfer id, followed by the id in UTF-8
+ * short  length of the file name, followed by the name in UTF-8
+ * long   timestamp of the first sample in milliseconds since the epoch
+ * int    sample rate
+ * short  channel count
+ * short  bits per sample
+ * long   size of the file
+ * int    CRC32 of the file
+ * int    chunk size
+ * int    sequence number of the chunk, starting at 0
+ * int    number of chunks
+ * int    length of the data in this chunk
+ * int    CRC32 of the data in this chunk
+ * </pre>
+ * followed by the data. The transfer id is derived from the file's path, size and
+ * modification time, so a file that is sent again gets the same id and the receiver can
+ * discard duplicate chunks.
+ * <p>
+ * Chunks are built one at a time in a buffer owned by the transfer, so memory use is
+ * one chunk regardless of the file size.
+ */
+public class ChunkedFileTransfer implements Closeable {
+
+    public static final int MAGIC = 0x41494d43; // "AIMC"
+    public static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile mFile;
+    private final String mTransferId;
+    private final byte[] mTransferIdBytes;
+    private final byte[] mFilenameBytes;
+    private final long mTimestamp;
+    private final PcmFormat mFormat;
+    private final int mChunkSize;
+    private final long mSize;
+    private final int mChunkCount;
+    private final int mChecksum;
+    private final byte[] mBuffer;
+    private final ByteBuffer mHeader;
+    private final int mHeaderLength;
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * Opens the file and computes its checksum.
+     */
+    public ChunkedFileTransfer(File file, long timestamp, PcmFormat format, int chunkSize) throws IOException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+        this.mFile = new RandomAccessFile(file, "r");
+        this.mTimestamp = timestamp;
+        this.mFormat = format;
+        this.mChunkSize = chunkSize;
+        this.mTransferId = UUID.nameUUIDFromBytes(
+                (file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified()).getBytes(UTF_8)).toString();
+        this.mTransferIdBytes = mTransferId.getBytes(UTF_8);
+        this.mFilenameBytes = file.getName().getBytes(UTF_8);
+        this.mHeaderLength = 4 + 1 + 2 + mTransferIdBytes.length + 2 + mFilenameBytes.length
+                + 8 + 4 + 2 + 2 + 8 + 4 + 4 + 4 + 4 + 4 + 4;
+        this.mBuffer = new byte[mHeaderLength + chunkSize];
+        this.mHeader = ByteBuffer.wrap(mBuffer);
+        try {
+            this.mSize = mFile.length();
+            this.mChunkCount = (int) Math.max(1, (mSize + chunkSize - 1) / chunkSize);
+            this.mChecksum = checksum();
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    public String getTransferId() {
+        return mTransferId;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public int getChunkCount() {
+        return mChunkCount;
+    }
+
+    /**
+     * CRC32 of the whole file.
+     */
+    public int getChecksum() {
+        return mChecksum;
+    }
+
+    /**
+     * Builds the chunk with the given sequence number in {@link #getBuffer()}.
+     *
+     * @return the length of the chunk message
+     */
+    public int writeChunk(int sequence) throws IOException {
+        if (sequence < 0 || sequence >= mChunkCount) {
+            throw new IndexOutOfBoundsException("Chunk " + sequence + " of " + mChunkCount);
+        }
+        long offset = (long) sequence * mChunkSize;
+        int length = (int) Math.min(mChunkSize, mSize - offset);
+        mFile.seek(offset);
+        mFile.readFully(mBuffer, mHeaderLength, length);
+        mCrc.reset();
+        mCrc.update(mBuffer, mHeaderLength, length);
+
+        mHeader.clear();
+        mHeader.putInt(MAGIC);
+        mHeader.put((byte) VERSION);
+        mHeader.putShort((short) mTransferIdBytes.length).put(mTransferIdBytes);
+        mHeader.putShort((short) mFilenameBytes.length).put(mFilenameBytes);
+        mHeader.putLong(mTimestamp);
+        mHeader.putInt(mFormat.getSampleRate());
+        mHeader.putShort((short) mFormat.getChannelCount());
+        mHeader.putShort((short) mFormat.getBitsPerSample());
+        mHeader.putLong(mSize);
+        mHeader.putInt(mChecksum);
+        mHeader.putInt(mChunkSize);
+        mHeader.putInt(sequence);
+        mHeader.putInt(mChunkCount);
+        mHeader.putInt(length);
+        mHeader.putInt((int) mCrc.getValue());
+        return mHeaderLength + length;
+    }
+
+    /**
+     * The buffer {@link #writeChunk(int)} builds chunks in. It is overwritten by the next call.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    private int checksum() throws IOException {
+        mCrc.reset();
+        mFile.seek(0);
+        int read;
+        while ((read = mFile.read(mBuffer, 0, mBuffer.length)) > 0) {
+            mCrc.update(mBuffer, 0, read);
+        }
+        return (int) mCrc.getValue();
+    }
+}
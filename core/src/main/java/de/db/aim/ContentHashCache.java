@@ -0,0 +1,86 @@
+package de.db.aim;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the content hashes of the most recently uploaded files, so a file whose
+ * content has been uploaded before can be replaced by a reference to the earlier upload.
+ * Holds at most a fixed number of hashes and forgets the least recently seen first.
+ * <p>
+ * Only files whose bytes depend on nothing but the audio can be matched this way; a
+ * container that stores its creation time differs even for equal audio.
+ */
+public class ContentHashCache {
+
+    private static final String ALGORITHM = "SHA-1";
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final Map<ByteBuffer, String> mNames;
+
+    public ContentHashCache(final int capacity) {
+        this.mNames = new LinkedHashMap<ByteBuffer, String>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, String> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the name content with this hash has been remembered under, or null if it is
+     * new
+     */
+    public synchronized String get(byte[] hash) {
+        return mNames.get(ByteBuffer.wrap(hash));
+    }
+
+    /**
+     * Remembers content by its hash under a name, once it has been uploaded. Content that
+     * is remembered already keeps its earlier name.
+     */
+    public synchronized void put(byte[] hash, String name) {
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        if (!mNames.containsKey(key)) {
+            mNames.put(key, name);
+        }
+    }
+
+    public static byte[] hash(byte[] data, int offset, int length) {
+        MessageDigest digest = messageDigest();
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    public static byte[] hash(File file) throws IOException {
+        MessageDigest digest = messageDigest();
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest messageDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+}
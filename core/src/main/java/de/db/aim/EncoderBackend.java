@@ -0,0 +1,54 @@
+package de.db.aim;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An encoder that turns PCM samples into an audio file synchronously, on the calling
+ * thread. One backend writes one file at a time; {@link #start(File, PcmFormat)} and
+ * {@link #finish()} may be called any number of times on the same instance, so buffers
+ * can be reused across files.
+ */
+public interface EncoderBackend {
+
+    /**
+     * MIME type of the files written by this backend.
+     */
+    String getMimeType();
+
+    /**
+     * Extension of the files written by this backend, without the dot.
+     */
+    String getFileExtension();
+
+    /**
+     * Format of the samples in the files written for input in {@code format}, which
+     * differs from it if the backend converts the samples.
+     */
+    PcmFormat getOutputFormat(PcmFormat format);
+
+    /**
+     * Starts a new file, which is truncated if it exists.
+     */
+    void start(File file, PcmFormat format) throws IOException;
+
+    /**
+     * Encodes {@code length} samples of a frame in the format passed to
+     * {@link #start(File, PcmFormat)}, starting at sample {@code offset}.
+     *
+     * @return false if the samples had already been overwritten, in which case some of
+     * them may have been encoded
+     */
+    boolean encode(AudioFrame frame, int offset, int length) throws IOException;
+
+    /**
+     * Number of samples in the current file so far, including those of an
+     * {@link #encode(AudioFrame, int, int)} call that returned false.
+     */
+    long getSampleCount();
+
+    /**
+     * Encodes any buffered samples and closes the file.
+     */
+    void finish() throws IOException;
+}
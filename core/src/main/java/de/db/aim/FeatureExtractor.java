@@ -0,0 +1,229 @@
+package de.db.aim;
+
+/**
+ * Computes acoustic features of a frame: RMS, peak and level in dBFS over all channels,
+ * and zero-crossing rate, spectral centroid and octave band levels of the mix of the
+ * channels.
+ * <p>
+ * The spectrum is the average power spectrum of consecutive Hann windowed segments of
+ * {@link #FFT_SIZE} samples; a frame shorter than one segment is zero padded. Octave
+ * bands are the standard bands from 31.5 Hz to 16 kHz, as far as they lie below half the
+ * sample rate, and their levels are on the same scale as the level of the frame, so a
+ * frame whose energy lies in one band has about the same level in that band. Levels are
+ * relative to a full scale square wave and never below {@link #MIN_DBFS}.
+ * <p>
+ * All buffers are kept and only grow when a longer frame arrives, so extracting features
+ * of frames of the same size does not allocate. An extractor is not thread safe.
+ */
+public class FeatureExtractor {
+
+    public static final int FFT_SIZE = 1024;
+    static final double MIN_DBFS = -120;
+    private static final double[] OCTAVE_BAND_CENTERS = {
+            31.5, 63, 125, 250, 500, 1000, 2000, 4000, 8000, 16000
+    };
+    private static final String[] OCTAVE_BAND_NAMES = {
+            "octave_31_5", "octave_63", "octave_125", "octave_250", "octave_500",
+            "octave_1000", "octave_2000", "octave_4000", "octave_8000", "octave_16000"
+    };
+
+    private final RealFft mFft = new RealFft(FFT_SIZE);
+    private final float[] mWindow = new float[FFT_SIZE];
+    private final double mWindowEnergy;
+    private final float[] mSegment = new float[FFT_SIZE];
+    private final float[] mPower = new float[FFT_SIZE / 2 + 1];
+    private final double[] mSpectrum = new double[FFT_SIZE / 2 + 1];
+    private final double[] mBandLevels = new double[OCTAVE_BAND_CENTERS.length];
+    private float[] mSamples = new float[0];
+
+    private int mBandCount;
+    private int mSampleCount;
+    private int mSampleRate;
+    private double mRms;
+    private double mPeak;
+    private double mZeroCrossingRate;
+    private double mSpectralCentroid;
+
+    public FeatureExtractor() {
+        double energy = 0;
+        for (int i = 0; i < FFT_SIZE; i++) {
+            mWindow[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / FFT_SIZE));
+            energy += mWindow[i] * mWindow[i];
+        }
+        this.mWindowEnergy = energy;
+    }
+
+    /**
+     * Computes the features of a frame.
+     *
+     * @return false if the samples have been overwritten before they could be read, in
+     * which case the features of the previous frame are kept
+     */
+    public boolean extract(AudioFrame frame) {
+        int channels = frame.getFormat().getChannelCount();
+        int samples = frame.getSampleCount();
+        if (mSamples.length < samples * channels) {
+            mSamples = new float[samples * channels];
+        }
+        if (!frame.read(mSamples, 0)) {
+            return false;
+        }
+        mSampleCount = samples;
+        mSampleRate = frame.getFormat().getSampleRate();
+        measureLevels(samples * channels);
+        mixDown(samples, channels);
+        measureZeroCrossings(samples);
+        measureSpectrum(samples);
+        return true;
+    }
+
+    public double getRms() {
+        return mRms;
+    }
+
+    public double getPeak() {
+        return mPeak;
+    }
+
+    public double getDbfs() {
+        return dbfs(mRms * mRms);
+    }
+
+    /**
+     * Sign changes per pair of consecutive samples, between 0 and 1.
+     */
+    public double getZeroCrossingRate() {
+        return mZeroCrossingRate;
+    }
+
+    /**
+     * The power weighted mean frequency in Hz, or 0 for a frame without signal.
+     */
+    public double getSpectralCentroid() {
+        return mSpectralCentroid;
+    }
+
+    /**
+     * Adds the features of the last frame to a payload.
+     */
+    public void addMetrics(Payload payload) {
+        payload.addMetric("duration", SampleClock.samplesToNanos(mSampleCount, mSampleRate) / 1000000L);
+        payload.addMetric("rms", mRms);
+        payload.addMetric("peak", mPeak);
+        payload.addMetric("dbfs", getDbfs());
+        payload.addMetric("zero_crossing_rate", mZeroCrossingRate);
+        payload.addMetric("spectral_centroid", mSpectralCentroid);
+        for (int band = 0; band < mBandCount; band++) {
+            payload.addMetric(OCTAVE_BAND_NAMES[band], mBandLevels[band]);
+        }
+    }
+
+    private void measureLevels(int values) {
+        double sum = 0;
+        float peak = 0;
+        for (int i = 0; i < values; i++) {
+            float value = mSamples[i];
+            sum += value * value;
+            peak = Math.max(peak, Math.abs(value));
+        }
+        mRms = values == 0 ? 0 : Math.sqrt(sum / values);
+        mPeak = peak;
+    }
+
+    /**
+     * Replaces the first {@code samples} values with the mean over the channels.
+     */
+    private void mixDown(int samples, int channels) {
+        if (channels == 1) {
+            return;
+        }
+        for (int i = 0; i < samples; i++) {
+            float sum = 0;
+            for (int channel = 0; channel < channels; channel++) {
+                sum += mSamples[i * channels + channel];
+            }
+            mSamples[i] = sum / channels;
+        }
+    }
+
+    private void measureZeroCrossings(int samples) {
+        int crossings = 0;
+        for (int i = 1; i < samples; i++) {
+            if ((mSamples[i - 1] < 0) != (mSamples[i] < 0)) {
+                crossings++;
+            }
+        }
+        mZeroCrossingRate = samples < 2 ? 0 : (double) crossings / (samples - 1);
+    }
+
+    private void measureSpectrum(int samples) {
+        int bins = FFT_SIZE / 2 + 1;
+        for (int k = 0; k < bins; k++) {
+            mSpectrum[k] = 0;
+        }
+        // A frame shorter than a segment is zero padded, the remainder of a longer
+        // frame after the last full segment is left out
+        int segments = Math.max(1, samples / FFT_SIZE);
+        double windowEnergy = 0;
+        for (int segment = 0; segment < segments; segment++) {
+            int start = segment * FFT_SIZE;
+            int length = Math.min(FFT_SIZE, samples - start);
+            for (int i = 0; i < length; i++) {
+                mSegment[i] = mSamples[start + i] * mWindow[i];
+            }
+            for (int i = length; i < FFT_SIZE; i++) {
+                mSegment[i] = 0;
+            }
+            windowEnergy += length == FFT_SIZE ? mWindowEnergy : partialWindowEnergy(length);
+            mFft.powerSpectrum(mSegment, 0, mPower);
+            for (int k = 0; k < bins; k++) {
+                mSpectrum[k] += mPower[k];
+            }
+        }
+        if (windowEnergy == 0) {
+            mSpectralCentroid = 0;
+            mBandCount = 0;
+            return;
+        }
+        // Mean square per bin, so that the bins add up to the mean square of the samples
+        double scale = 1.0 / (FFT_SIZE * windowEnergy);
+        double binWidth = (double) mSampleRate / FFT_SIZE;
+        double total = 0;
+        double weighted = 0;
+        for (int k = 1; k < bins; k++) {
+            double power = mSpectrum[k] * scale * (k == bins - 1 ? 1 : 2);
+            mSpectrum[k] = power;
+            total += power;
+            weighted += power * k * binWidth;
+        }
+        mSpectralCentroid = total > 0 ? weighted / total : 0;
+
+        double nyquist = mSampleRate / 2.0;
+        mBandCount = 0;
+        for (int band = 0; band < OCTAVE_BAND_CENTERS.length; band++) {
+            double lower = OCTAVE_BAND_CENTERS[band] / Math.sqrt(2);
+            double upper = OCTAVE_BAND_CENTERS[band] * Math.sqrt(2);
+            if (lower >= nyquist) {
+                break;
+            }
+            double power = 0;
+            for (int k = Math.max(1, (int) Math.ceil(lower / binWidth)); k < bins && k * binWidth < upper; k++) {
+                power += mSpectrum[k];
+            }
+            mBandLevels[band] = dbfs(power);
+            mBandCount++;
+        }
+    }
+
+    private double partialWindowEnergy(int length) {
+        double energy = 0;
+        for (int i = 0; i < length; i++) {
+            energy += mWindow[i] * mWindow[i];
+        }
+        return energy;
+    }
+
+    private static double dbfs(double meanSquare) {
+        return meanSquare > 0 ? Math.max(MIN_DBFS, 10 * Math.log10(meanSquare)) : MIN_DBFS;
+    }
+}
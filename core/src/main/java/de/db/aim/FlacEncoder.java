@@ -0,0 +1,865 @@
+package de.db.aim;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Lossless FLAC encoder in pure Java. Samples are written with 16 bits, frames in other
+ * encodings are converted.
+ * <p>
+ * Each channel of a block is stored as whichever of a constant, verbatim, fixed
+ * polynomial (order 0 to 4) or linear predictive (order 1 to 8, from a Tukey windowed
+ * autocorrelation) subframe is smallest. Stereo blocks use the left/side, right/side or
+ * mid/side pair instead of the independent channels when that is estimated to be
+ * smaller. Residuals are Rice coded with the partition order and parameters chosen per
+ * subframe.
+ * <p>
+ * All buffers are allocated when a file is started, encoding a block does not allocate.
+ * The MD5 signature of the stream info block is left unset.
+ */
+public class FlacEncoder implements EncoderBackend {
+
+    public static final String MIME_TYPE = "audio/flac";
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int MAX_CHANNELS = 8;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_LPC_ORDER = 8;
+    private static final int QLP_PRECISION = 12;
+    private static final int MAX_QLP_SHIFT = 15;
+    private static final int MAX_PARTITION_ORDER = 8;
+    private static final int MAX_RICE_PARAMETER = 14;
+    private static final int STREAM_INFO_LENGTH = 34;
+    private static final int STREAM_HEADER_LENGTH = 4 + 4 + STREAM_INFO_LENGTH;
+
+    private static final int SUBFRAME_CONSTANT = 0;
+    private static final int SUBFRAME_VERBATIM = 1;
+    private static final int SUBFRAME_FIXED = 8;
+    private static final int SUBFRAME_LPC = 32;
+
+    private static final int CHANNELS_LEFT_SIDE = 8;
+    private static final int CHANNELS_RIGHT_SIDE = 9;
+    private static final int CHANNELS_MID_SIDE = 10;
+
+    private static final int[] SAMPLE_RATES = {
+            0, 88200, 176400, 192000, 8000, 16000, 22050, 24000, 32000, 44100, 48000, 96000
+    };
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int j = 0; j < 8; j++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xff;
+            CRC16_TABLE[i] = crc16 & 0xffff;
+        }
+    }
+
+    private final int mBlockSize;
+
+    private PcmFormat mFormat;
+    private int mChannelCount;
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private long mPosition;
+    private long mFrameNumber;
+    private long mTotalSamples;
+    private int mMinFrameSize;
+    private int mMaxFrameSize;
+
+    private short[] mInterleaved;
+    private int[][] mSamples;
+    private int mBlockFill;
+    private int[] mMid;
+    private int[] mSide;
+
+    // Analysis of the subframe that is currently the smallest and of the candidate
+    private int[] mResidual;
+    private int[] mBestResidual;
+    private int[] mRiceParameters;
+    private int[] mBestRiceParameters;
+    private final int[] mRiceScratch = new int[1 << MAX_PARTITION_ORDER];
+    private final long[] mPartitionSums = new long[1 << MAX_PARTITION_ORDER];
+    private int mPartitionOrder;
+    private int mBestPartitionOrder;
+    private int[] mQlp = new int[MAX_LPC_ORDER];
+    private int[] mBestQlp = new int[MAX_LPC_ORDER];
+    private int mBestType;
+    private int mBestOrder;
+    private int mBestShift;
+
+    private final long[] mFixedErrors = new long[MAX_FIXED_ORDER + 1];
+    private double[] mWindow;
+    private double[] mWindowed;
+    private int mWindowLength;
+    private final double[] mAutocorrelation = new double[MAX_LPC_ORDER + 1];
+    private final double[][] mLpc = new double[MAX_LPC_ORDER][MAX_LPC_ORDER];
+    private final double[] mLpcError = new double[MAX_LPC_ORDER];
+    private final double[] mLpcScratch = new double[MAX_LPC_ORDER];
+
+    private byte[] mOutput;
+    private ByteBuffer mOutputBuffer;
+    private int mOutputPosition;
+    private long mBits;
+    private int mBitCount;
+
+    public FlacEncoder() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param blockSize number of samples per FLAC frame, from 16 to 65535
+     */
+    public FlacEncoder(int blockSize) {
+        if (blockSize < 16 || blockSize > 65535) {
+            throw new IllegalArgumentException("Invalid block size " + blockSize);
+        }
+        this.mBlockSize = blockSize;
+        this.mResidual = new int[blockSize];
+        this.mBestResidual = new int[blockSize];
+        this.mRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+        this.mBestRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+        this.mMid = new int[blockSize];
+        this.mSide = new int[blockSize];
+        this.mWindow = new double[blockSize];
+        this.mWindowed = new double[blockSize];
+    }
+
+    @Override
+    public String getMimeType() {
+        return MIME_TYPE;
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "flac";
+    }
+
+    @Override
+    public PcmFormat getOutputFormat(PcmFormat format) {
+        return format.withEncoding(PcmFormat.Encoding.PCM_16BIT);
+    }
+
+    @Override
+    public void start(File file, PcmFormat format) throws IOException {
+        if (mFile != null) {
+            throw new IllegalStateException("Previous file has not been finished");
+        }
+        if (format.getChannelCount() > MAX_CHANNELS) {
+            throw new IllegalArgumentException("FLAC supports at most " + MAX_CHANNELS + " channels");
+        }
+        if (mChannelCount != format.getChannelCount()) {
+            mChannelCount = format.getChannelCount();
+            mInterleaved = new short[mBlockSize * mChannelCount];
+            mSamples = new int[mChannelCount][mBlockSize];
+            // Subframes are never larger than verbatim ones, plus frame header and footer
+            mOutput = new byte[mChannelCount * (mBlockSize * (BITS_PER_SAMPLE + 1) / 8 + 2) + 32];
+            mOutputBuffer = ByteBuffer.wrap(mOutput);
+        }
+        mFormat = format;
+        mBlockFill = 0;
+        mFrameNumber = 0;
+        mTotalSamples = 0;
+        mMinFrameSize = Integer.MAX_VALUE;
+        mMaxFrameSize = 0;
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        try {
+            mChannel.truncate(0);
+            writeStreamHeader();
+        } catch (IOException e) {
+            closeQuietly();
+            throw e;
+        }
+        mPosition = STREAM_HEADER_LENGTH;
+    }
+
+    @Override
+    public boolean encode(AudioFrame frame, int offset, int length) throws IOException {
+        checkStarted();
+        int end = offset + length;
+        while (offset < end) {
+            int count = Math.min(end - offset, mBlockSize - mBlockFill);
+            if (!frame.read(offset, mInterleaved, 0, count)) {
+                return false;
+            }
+            addSamples(mInterleaved, 0, count);
+            offset += count;
+        }
+        return true;
+    }
+
+    /**
+     * Encodes {@code length} samples of interleaved 16 bit values, starting at sample
+     * {@code offset}.
+     */
+    public void encode(short[] values, int offset, int length) throws IOException {
+        checkStarted();
+        int end = offset + length;
+        while (offset < end) {
+            int count = Math.min(end - offset, mBlockSize - mBlockFill);
+            addSamples(values, offset * mChannelCount, count);
+            offset += count;
+        }
+    }
+
+    @Override
+    public long getSampleCount() {
+        return mTotalSamples + mBlockFill;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (mFile == null) {
+            return;
+        }
+        try {
+            if (mBlockFill > 0) {
+                encodeBlock(mBlockFill);
+            }
+            writeStreamHeader();
+            mChannel.force(false);
+        } finally {
+            closeQuietly();
+        }
+    }
+
+    private void checkStarted() {
+        if (mFile == null) {
+            throw new IllegalStateException("No file has been started");
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            // Already failing or closing, the first error is the one that matters
+        }
+        mFile = null;
+        mChannel = null;
+    }
+
+    private void addSamples(short[] values, int valueOffset, int count) throws IOException {
+        int channels = mChannelCount;
+        for (int c = 0; c < channels; c++) {
+            int[] samples = mSamples[c];
+            int v = valueOffset + c;
+            for (int i = mBlockFill; i < mBlockFill + count; i++) {
+                samples[i] = values[v];
+                v += channels;
+            }
+        }
+        mBlockFill += count;
+        if (mBlockFill == mBlockSize) {
+            encodeBlock(mBlockSize);
+            mBlockFill = 0;
+        }
+    }
+
+    private void encodeBlock(int n) throws IOException {
+        int channelAssignment = mChannelCount - 1;
+        if (mChannelCount == 2) {
+            channelAssignment = stereoAssignment(n);
+        }
+        mOutputPosition = 0;
+        mBits = 0;
+        mBitCount = 0;
+        writeFrameHeader(n, channelAssignment);
+        int[] left = mSamples[0];
+        switch (channelAssignment) {
+            case CHANNELS_LEFT_SIDE:
+                writeSubframe(left, n, BITS_PER_SAMPLE);
+                writeSubframe(mSide, n, BITS_PER_SAMPLE + 1);
+                break;
+            case CHANNELS_RIGHT_SIDE:
+                writeSubframe(mSide, n, BITS_PER_SAMPLE + 1);
+                writeSubframe(mSamples[1], n, BITS_PER_SAMPLE);
+                break;
+            case CHANNELS_MID_SIDE:
+                writeSubframe(mMid, n, BITS_PER_SAMPLE);
+                writeSubframe(mSide, n, BITS_PER_SAMPLE + 1);
+                break;
+            default:
+                for (int c = 0; c < mChannelCount; c++) {
+                    writeSubframe(mSamples[c], n, BITS_PER_SAMPLE);
+                }
+        }
+        if (mBitCount > 0) {
+            writeBits(0, 8 - mBitCount);
+        }
+        writeBits(crc16(mOutput, mOutputPosition), 16);
+
+        mOutputBuffer.clear().limit(mOutputPosition);
+        while (mOutputBuffer.hasRemaining()) {
+            mPosition += mChannel.write(mOutputBuffer, mPosition);
+        }
+        mMinFrameSize = Math.min(mMinFrameSize, mOutputPosition);
+        mMaxFrameSize = Math.max(mMaxFrameSize, mOutputPosition);
+        mFrameNumber++;
+        mTotalSamples += n;
+    }
+
+    /**
+     * Picks the channel pair with the smallest estimated size, judged by the best fixed
+     * predictor of each signal.
+     */
+    private int stereoAssignment(int n) {
+        int[] left = mSamples[0];
+        int[] right = mSamples[1];
+        for (int i = 0; i < n; i++) {
+            mMid[i] = (left[i] + right[i]) >> 1;
+            mSide[i] = left[i] - right[i];
+        }
+        long leftBits = estimateFixedBits(left, n);
+        long rightBits = estimateFixedBits(right, n);
+        long midBits = estimateFixedBits(mMid, n);
+        long sideBits = estimateFixedBits(mSide, n) + n;
+        int assignment = 1;
+        long bits = leftBits + rightBits;
+        if (leftBits + sideBits < bits) {
+            assignment = CHANNELS_LEFT_SIDE;
+            bits = leftBits + sideBits;
+        }
+        if (rightBits + sideBits < bits) {
+            assignment = CHANNELS_RIGHT_SIDE;
+            bits = rightBits + sideBits;
+        }
+        if (midBits + sideBits < bits) {
+            assignment = CHANNELS_MID_SIDE;
+        }
+        return assignment;
+    }
+
+    private long estimateFixedBits(int[] x, int n) {
+        if (n <= MAX_FIXED_ORDER) {
+            return (long) n * BITS_PER_SAMPLE;
+        }
+        int order = bestFixedOrder(x, n);
+        long sum = 2 * mFixedErrors[order];
+        int count = n - MAX_FIXED_ORDER;
+        int k = riceParameter(sum, count);
+        return (long) count * (k + 1) + (sum >> k);
+    }
+
+    /**
+     * Sums the absolute residuals of all fixed predictors in one pass.
+     *
+     * @return the order with the smallest sum
+     */
+    private int bestFixedOrder(int[] x, int n) {
+        long e0 = 0, e1 = 0, e2 = 0, e3 = 0, e4 = 0;
+        int last0 = x[3];
+        int last1 = x[3] - x[2];
+        int last2 = last1 - (x[2] - x[1]);
+        int last3 = last2 - (x[2] - 2 * x[1] + x[0]);
+        for (int i = 4; i < n; i++) {
+            int r0 = x[i];
+            int r1 = r0 - last0;
+            int r2 = r1 - last1;
+            int r3 = r2 - last2;
+            int r4 = r3 - last3;
+            e0 += Math.abs(r0);
+            e1 += Math.abs(r1);
+            e2 += Math.abs(r2);
+            e3 += Math.abs(r3);
+            e4 += Math.abs(r4);
+            last0 = r0;
+            last1 = r1;
+            last2 = r2;
+            last3 = r3;
+        }
+        mFixedErrors[0] = e0;
+        mFixedErrors[1] = e1;
+        mFixedErrors[2] = e2;
+        mFixedErrors[3] = e3;
+        mFixedErrors[4] = e4;
+        int order = 0;
+        for (int i = 1; i <= MAX_FIXED_ORDER; i++) {
+            if (mFixedErrors[i] < mFixedErrors[order]) {
+                order = i;
+            }
+        }
+        return order;
+    }
+
+    private void writeSubframe(int[] x, int n, int bps) {
+        analyzeSubframe(x, n, bps);
+        // Zero padding bit, type and order, no wasted bits
+        writeBits(0, 1);
+        writeBits(mBestType == SUBFRAME_LPC ? SUBFRAME_LPC + mBestOrder - 1 : mBestType + mBestOrder, 6);
+        writeBits(0, 1);
+        switch (mBestType) {
+            case SUBFRAME_CONSTANT:
+                writeBits(x[0], bps);
+                break;
+            case SUBFRAME_VERBATIM:
+                for (int i = 0; i < n; i++) {
+                    writeBits(x[i], bps);
+                }
+                break;
+            case SUBFRAME_FIXED:
+                for (int i = 0; i < mBestOrder; i++) {
+                    writeBits(x[i], bps);
+                }
+                writeResidual(n);
+                break;
+            default:
+                for (int i = 0; i < mBestOrder; i++) {
+                    writeBits(x[i], bps);
+                }
+                writeBits(QLP_PRECISION - 1, 4);
+                writeBits(mBestShift, 5);
+                for (int i = 0; i < mBestOrder; i++) {
+                    writeBits(mBestQlp[i], QLP_PRECISION);
+                }
+                writeResidual(n);
+        }
+    }
+
+    /**
+     * Finds the smallest encoding of a subframe. The residual and Rice parameters of the
+     * winner end up in the best fields.
+     */
+    private void analyzeSubframe(int[] x, int n, int bps) {
+        boolean constant = true;
+        for (int i = 1; i < n && constant; i++) {
+            constant = x[i] == x[0];
+        }
+        if (constant) {
+            mBestType = SUBFRAME_CONSTANT;
+            mBestOrder = 0;
+            return;
+        }
+        mBestType = SUBFRAME_VERBATIM;
+        mBestOrder = 0;
+        long bestBits = (long) n * bps;
+        if (n <= MAX_FIXED_ORDER) {
+            return;
+        }
+
+        int order = bestFixedOrder(x, n);
+        fixedResidual(x, n, order);
+        long bits = (long) order * bps + residualBits(n, order);
+        if (bits < bestBits) {
+            bestBits = bits;
+            keepCandidate(SUBFRAME_FIXED, order, 0);
+        }
+
+        if (n <= 4 * MAX_LPC_ORDER) {
+            return;
+        }
+        order = computeLpc(x, n, bps);
+        if (order == 0) {
+            return;
+        }
+        int shift = quantizeCoefficients(mLpc[order - 1], order);
+        if (shift < 0) {
+            return;
+        }
+        lpcResidual(x, n, order, shift);
+        bits = (long) order * bps + 4 + 5 + (long) order * QLP_PRECISION + residualBits(n, order);
+        if (bits < bestBits) {
+            keepCandidate(SUBFRAME_LPC, order, shift);
+        }
+    }
+
+    private void keepCandidate(int type, int order, int shift) {
+        mBestType = type;
+        mBestOrder = order;
+        mBestShift = shift;
+        mBestPartitionOrder = mPartitionOrder;
+        int[] swap = mBestResidual;
+        mBestResidual = mResidual;
+        mResidual = swap;
+        swap = mBestRiceParameters;
+        mBestRiceParameters = mRiceParameters;
+        mRiceParameters = swap;
+        swap = mBestQlp;
+        mBestQlp = mQlp;
+        mQlp = swap;
+    }
+
+    private void fixedResidual(int[] x, int n, int order) {
+        int[] r = mResidual;
+        switch (order) {
+            case 0:
+                for (int i = 0; i < n; i++) {
+                    r[i] = x[i];
+                }
+                break;
+            case 1:
+                for (int i = 1; i < n; i++) {
+                    r[i] = x[i] - x[i - 1];
+                }
+                break;
+            case 2:
+                for (int i = 2; i < n; i++) {
+                    r[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+                }
+                break;
+            case 3:
+                for (int i = 3; i < n; i++) {
+                    r[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+                }
+                break;
+            default:
+                for (int i = 4; i < n; i++) {
+                    r[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+                }
+        }
+    }
+
+    /**
+     * Computes predictor coefficients for all orders with the Levinson-Durbin recursion
+     * and picks the order with the smallest expected size.
+     *
+     * @return the order, or 0 if the signal cannot be predicted
+     */
+    private int computeLpc(int[] x, int n, int bps) {
+        if (mWindowLength != n) {
+            tukeyWindow(n);
+        }
+        double[] w = mWindowed;
+        for (int i = 0; i < n; i++) {
+            w[i] = x[i] * mWindow[i];
+        }
+        for (int lag = 0; lag <= MAX_LPC_ORDER; lag++) {
+            double sum = 0;
+            for (int i = lag; i < n; i++) {
+                sum += w[i] * w[i - lag];
+            }
+            mAutocorrelation[lag] = sum;
+        }
+        if (mAutocorrelation[0] == 0) {
+            return 0;
+        }
+
+        double[] lpc = mLpcScratch;
+        double error = mAutocorrelation[0];
+        int maxOrder = MAX_LPC_ORDER;
+        for (int i = 0; i < MAX_LPC_ORDER; i++) {
+            double r = -mAutocorrelation[i + 1];
+            for (int j = 0; j < i; j++) {
+                r -= lpc[j] * mAutocorrelation[i - j];
+            }
+            r /= error;
+            lpc[i] = r;
+            int j;
+            for (j = 0; j < (i >> 1); j++) {
+                double tmp = lpc[j];
+                lpc[j] += r * lpc[i - 1 - j];
+                lpc[i - 1 - j] += r * tmp;
+            }
+            if ((i & 1) != 0) {
+                lpc[j] += lpc[j] * r;
+            }
+            error *= 1.0 - r * r;
+            for (j = 0; j <= i; j++) {
+                mLpc[i][j] = -lpc[j];
+            }
+            mLpcError[i] = error;
+            if (error <= 0) {
+                maxOrder = i + 1;
+                break;
+            }
+        }
+
+        int bestOrder = 0;
+        double bestBits = Double.MAX_VALUE;
+        double errorScale = 0.5 / n;
+        for (int order = 1; order <= maxOrder; order++) {
+            double bitsPerSample = mLpcError[order - 1] > 0
+                    ? Math.max(0, 0.5 * Math.log(errorScale * mLpcError[order - 1]) / Math.log(2)) : 0;
+            double bits = bitsPerSample * (n - order) + order * (bps + QLP_PRECISION);
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestOrder = order;
+            }
+        }
+        return bestOrder;
+    }
+
+    private void tukeyWindow(int n) {
+        for (int i = 0; i < n; i++) {
+            mWindow[i] = 1.0;
+        }
+        int taper = n / 4 - 1;
+        if (taper > 0) {
+            for (int i = 0; i <= taper; i++) {
+                double w = 0.5 - 0.5 * Math.cos(Math.PI * i / taper);
+                mWindow[i] = w;
+                mWindow[n - 1 - i] = w;
+            }
+        }
+        mWindowLength = n;
+    }
+
+    /**
+     * Quantizes coefficients to {@link #QLP_PRECISION} bits, carrying the rounding error
+     * over to the next coefficient.
+     *
+     * @return the shift of the quantized coefficients, or -1 if they cannot be represented
+     */
+    private int quantizeCoefficients(double[] lpc, int order) {
+        double max = 0;
+        for (int i = 0; i < order; i++) {
+            max = Math.max(max, Math.abs(lpc[i]));
+        }
+        if (max <= 0 || Double.isNaN(max) || Double.isInfinite(max)) {
+            return -1;
+        }
+        int qmax = (1 << (QLP_PRECISION - 1)) - 1;
+        int qmin = -(1 << (QLP_PRECISION - 1));
+        int shift = QLP_PRECISION - 2 - Math.getExponent(max);
+        if (shift < 0) {
+            return -1;
+        }
+        shift = Math.min(shift, MAX_QLP_SHIFT);
+        double error = 0;
+        for (int i = 0; i < order; i++) {
+            error += lpc[i] * (1 << shift);
+            long q = Math.round(error);
+            q = Math.max(qmin, Math.min(qmax, q));
+            error -= q;
+            mQlp[i] = (int) q;
+        }
+        return shift;
+    }
+
+    private void lpcResidual(int[] x, int n, int order, int shift) {
+        int[] r = mResidual;
+        int[] q = mQlp;
+        for (int i = order; i < n; i++) {
+            long sum = 0;
+            for (int j = 0; j < order; j++) {
+                sum += (long) q[j] * x[i - j - 1];
+            }
+            r[i] = x[i] - (int) (sum >> shift);
+        }
+    }
+
+    /**
+     * Chooses the Rice partition order and parameters for the candidate residual.
+     *
+     * @return an upper bound of the size of the coded residual in bits
+     */
+    private long residualBits(int n, int predictorOrder) {
+        int maxOrder = 0;
+        while (maxOrder < MAX_PARTITION_ORDER
+                && (n & ((1 << (maxOrder + 1)) - 1)) == 0
+                && (n >> (maxOrder + 1)) > predictorOrder) {
+            maxOrder++;
+        }
+        int[] r = mResidual;
+        int partitionSize = n >> maxOrder;
+        int partitions = 1 << maxOrder;
+        int i = predictorOrder;
+        for (int p = 0; p < partitions; p++) {
+            long sum = 0;
+            int end = (p + 1) * partitionSize;
+            for (; i < end; i++) {
+                sum += ((r[i] << 1) ^ (r[i] >> 31)) & 0xffffffffL;
+            }
+            mPartitionSums[p] = sum;
+        }
+
+        long bestBits = Long.MAX_VALUE;
+        for (int order = maxOrder; order >= 0; order--) {
+            partitions = 1 << order;
+            partitionSize = n >> order;
+            long bits = 0;
+            for (int p = 0; p < partitions; p++) {
+                int count = p == 0 ? partitionSize - predictorOrder : partitionSize;
+                long sum = mPartitionSums[p];
+                int k = riceParameter(sum, count);
+                mRiceScratch[p] = k;
+                bits += 4 + (long) count * (k + 1) + (sum >> k);
+            }
+            if (bits < bestBits) {
+                bestBits = bits;
+                mPartitionOrder = order;
+                System.arraycopy(mRiceScratch, 0, mRiceParameters, 0, partitions);
+            }
+            for (int p = 0; p < partitions / 2; p++) {
+                mPartitionSums[p] = mPartitionSums[2 * p] + mPartitionSums[2 * p + 1];
+            }
+        }
+        return 2 + 4 + bestBits;
+    }
+
+    /**
+     * The Rice parameter that minimizes the size of {@code count} values summing up to
+     * {@code sum}, using {@code sum >> k} as the size of the quotients.
+     */
+    private static int riceParameter(long sum, int count) {
+        if (count == 0 || sum < count) {
+            return 0;
+        }
+        int estimate = 63 - Long.numberOfLeadingZeros(sum / count);
+        int best = 0;
+        long bestBits = Long.MAX_VALUE;
+        for (int k = Math.max(0, estimate - 1); k <= Math.min(MAX_RICE_PARAMETER, estimate + 1); k++) {
+            long bits = (long) count * (k + 1) + (sum >> k);
+            if (bits < bestBits) {
+                bestBits = bits;
+                best = k;
+            }
+        }
+        return best;
+    }
+
+    private void writeResidual(int n) {
+        int order = mBestOrder;
+        int partitionOrder = mBestPartitionOrder;
+        writeBits(0, 2);
+        writeBits(partitionOrder, 4);
+        int partitionSize = n >> partitionOrder;
+        int[] r = mBestResidual;
+        int i = order;
+        for (int p = 0; p < (1 << partitionOrder); p++) {
+            int k = mBestRiceParameters[p];
+            writeBits(k, 4);
+            int end = (p + 1) * partitionSize;
+            for (; i < end; i++) {
+                int u = (r[i] << 1) ^ (r[i] >> 31);
+                int quotient = u >>> k;
+                while (quotient >= 32) {
+                    writeBits(0, 32);
+                    quotient -= 32;
+                }
+                writeBits(1, quotient + 1);
+                if (k > 0) {
+                    writeBits(u, k);
+                }
+            }
+        }
+    }
+
+    private void writeFrameHeader(int n, int channelAssignment) {
+        writeBits(0xfff8, 16);
+        int blockSizeCode = blockSizeCode(n);
+        int sampleRateCode = sampleRateCode(mFormat.getSampleRate());
+        writeBits(blockSizeCode, 4);
+        writeBits(sampleRateCode, 4);
+        writeBits(channelAssignment, 4);
+        writeBits(4, 3); // 16 bits per sample
+        writeBits(0, 1);
+        writeUtf8(mFrameNumber);
+        if (blockSizeCode == 6) {
+            writeBits(n - 1, 8);
+        } else if (blockSizeCode == 7) {
+            writeBits(n - 1, 16);
+        }
+        if (sampleRateCode == 13) {
+            writeBits(mFormat.getSampleRate(), 16);
+        }
+        writeBits(crc8(mOutput, mOutputPosition), 8);
+    }
+
+    private static int blockSizeCode(int n) {
+        if (n == 192) {
+            return 1;
+        }
+        for (int code = 2; code <= 5; code++) {
+            if (n == 576 << (code - 2)) {
+                return code;
+            }
+        }
+        for (int code = 8; code <= 15; code++) {
+            if (n == 256 << (code - 8)) {
+                return code;
+            }
+        }
+        return n <= 256 ? 6 : 7;
+    }
+
+    private static int sampleRateCode(int sampleRate) {
+        for (int code = 1; code < SAMPLE_RATES.length; code++) {
+            if (SAMPLE_RATES[code] == sampleRate) {
+                return code;
+            }
+        }
+        // Otherwise taken from the stream info
+        return sampleRate <= 65535 ? 13 : 0;
+    }
+
+    private void writeUtf8(long value) {
+        if (value < 0x80) {
+            writeBits((int) value, 8);
+            return;
+        }
+        int bytes = value < 0x800 ? 2 : value < 0x10000 ? 3 : value < 0x200000 ? 4 : value < 0x4000000 ? 5 : 6;
+        int shift = 6 * (bytes - 1);
+        writeBits((0xff00 >> bytes) & 0xff | (int) (value >>> shift), 8);
+        while (shift > 0) {
+            shift -= 6;
+            writeBits(0x80 | (int) ((value >>> shift) & 0x3f), 8);
+        }
+    }
+
+    /**
+     * Appends the low {@code count} bits of {@code value}, at most 32.
+     */
+    private void writeBits(int value, int count) {
+        mBits = (mBits << count) | (value & (0xffffffffL >>> (32 - count)));
+        mBitCount += count;
+        while (mBitCount >= 8) {
+            mBitCount -= 8;
+            mOutput[mOutputPosition++] = (byte) (mBits >>> mBitCount);
+        }
+    }
+
+    private void writeStreamHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(STREAM_HEADER_LENGTH);
+        header.put((byte) 'f').put((byte) 'L').put((byte) 'a').put((byte) 'C');
+        // Last metadata block, type 0, length
+        header.putInt(0x80000000 | STREAM_INFO_LENGTH);
+        header.putShort((short) mBlockSize);
+        header.putShort((short) mBlockSize);
+        boolean empty = mMaxFrameSize == 0;
+        putInt24(header, empty ? 0 : mMinFrameSize);
+        putInt24(header, empty ? 0 : mMaxFrameSize);
+        long packed = (long) mFormat.getSampleRate() << 44
+                | (long) (mChannelCount - 1) << 41
+                | (long) (BITS_PER_SAMPLE - 1) << 36
+                | (mTotalSamples & 0xfffffffffL);
+        header.putLong(packed);
+        header.put(new byte[16]);
+        header.flip();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += mChannel.write(header, position);
+        }
+    }
+
+    private static void putInt24(ByteBuffer buffer, int value) {
+        buffer.put((byte) (value >>> 16)).put((byte) (value >>> 8)).put((byte) value);
+    }
+
+    private static int crc8(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = CRC8_TABLE[(crc ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    private static int crc16(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ data[i]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+}
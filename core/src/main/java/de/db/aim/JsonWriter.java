@@ -0,0 +1,227 @@
+package de.db.aim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes JSON tokens as UTF-8 through a fixed-size buffer. Structural characters are
+ * written with {@link #writeByte(int)}; the writer does not check the structure.
+ * <p>
+ * Nothing is allocated while writing, except when formatting a double that is not a
+ * whole number, which goes through a reused {@link StringBuilder}.
+ */
+class JsonWriter {
+
+    private static final byte[] HEX = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+    private static final byte[] LONG_MIN_VALUE = {
+            '-', '9', '2', '2', '3', '3', '7', '2', '0', '3', '6', '8', '5', '4', '7', '7', '5', '8', '0', '8'
+    };
+    // Larger whole doubles are formatted in exponent notation, like Double.toString does
+    private static final double MAX_PLAIN_DOUBLE = 1e15;
+
+    private OutputStream mOut;
+    private final byte[] mBuffer;
+    private int mPosition;
+    private final byte[] mDigits = new byte[20];
+    private final StringBuilder mNumber = new StringBuilder(32);
+
+    JsonWriter(int bufferSize) {
+        this.mBuffer = new byte[Math.max(64, bufferSize)];
+    }
+
+    /**
+     * Discards anything not flushed yet and writes to {@code out} from now on.
+     */
+    void reset(OutputStream out) {
+        this.mOut = out;
+        this.mPosition = 0;
+    }
+
+    /**
+     * Writes the buffered bytes to the stream.
+     */
+    void flush() throws IOException {
+        if (mPosition > 0) {
+            mOut.write(mBuffer, 0, mPosition);
+            mPosition = 0;
+        }
+    }
+
+    void writeByte(int b) throws IOException {
+        ensure(1);
+        mBuffer[mPosition++] = (byte) b;
+    }
+
+    void writeName(String name) throws IOException {
+        writeString(name);
+        writeByte(':');
+    }
+
+    void writeNull() throws IOException {
+        ensure(4);
+        mBuffer[mPosition++] = 'n';
+        mBuffer[mPosition++] = 'u';
+        mBuffer[mPosition++] = 'l';
+        mBuffer[mPosition++] = 'l';
+    }
+
+    void writeBoolean(boolean value) throws IOException {
+        if (value) {
+            ensure(4);
+            mBuffer[mPosition++] = 't';
+            mBuffer[mPosition++] = 'r';
+            mBuffer[mPosition++] = 'u';
+            mBuffer[mPosition++] = 'e';
+        } else {
+            ensure(5);
+            mBuffer[mPosition++] = 'f';
+            mBuffer[mPosition++] = 'a';
+            mBuffer[mPosition++] = 'l';
+            mBuffer[mPosition++] = 's';
+            mBuffer[mPosition++] = 'e';
+        }
+    }
+
+    void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            ensure(LONG_MIN_VALUE.length);
+            System.arraycopy(LONG_MIN_VALUE, 0, mBuffer, mPosition, LONG_MIN_VALUE.length);
+            mPosition += LONG_MIN_VALUE.length;
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            mBuffer[mPosition++] = '-';
+            value = -value;
+        }
+        int count = 0;
+        do {
+            mDigits[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (count > 0) {
+            mBuffer[mPosition++] = mDigits[--count];
+        }
+    }
+
+    /**
+     * Writes a number, or null for NaN and infinities, which JSON cannot represent.
+     */
+    void writeDouble(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            writeNull();
+        } else if (value == Math.rint(value) && Math.abs(value) < MAX_PLAIN_DOUBLE) {
+            writeLong((long) value);
+        } else {
+            mNumber.setLength(0);
+            mNumber.append(value);
+            int length = mNumber.length();
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                mBuffer[mPosition++] = (byte) mNumber.charAt(i);
+            }
+        }
+    }
+
+    /**
+     * Writes a quoted string, escaping quotes, backslashes and control characters.
+     * Unpaired surrogates are replaced with a question mark.
+     */
+    void writeString(String value) throws IOException {
+        writeByte('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    ensure(2);
+                    mBuffer[mPosition++] = '\\';
+                    mBuffer[mPosition++] = (byte) c;
+                } else if (c < 0x20) {
+                    writeControlCharacter(c);
+                } else {
+                    ensure(1);
+                    mBuffer[mPosition++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                ensure(2);
+                mBuffer[mPosition++] = (byte) (0xc0 | c >> 6);
+                mBuffer[mPosition++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    ensure(4);
+                    mBuffer[mPosition++] = (byte) (0xf0 | codePoint >> 18);
+                    mBuffer[mPosition++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                    mBuffer[mPosition++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                    mBuffer[mPosition++] = (byte) (0x80 | codePoint & 0x3f);
+                } else {
+                    ensure(1);
+                    mBuffer[mPosition++] = '?';
+                }
+            } else {
+                ensure(3);
+                mBuffer[mPosition++] = (byte) (0xe0 | c >> 12);
+                mBuffer[mPosition++] = (byte) (0x80 | c >> 6 & 0x3f);
+                mBuffer[mPosition++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        writeByte('"');
+    }
+
+    /**
+     * Writes bytes as a quoted base64 string, encoding as much as fits into the buffer at
+     * a time.
+     */
+    void writeBase64(byte[] data, int offset, int length) throws IOException {
+        writeByte('"');
+        while (length > 0) {
+            int groups = (mBuffer.length - mPosition) / 4;
+            if (groups == 0) {
+                flush();
+                continue;
+            }
+            int count = Math.min(length, groups * 3);
+            mPosition += Base64.encode(data, offset, count, mBuffer, mPosition);
+            offset += count;
+            length -= count;
+        }
+        writeByte('"');
+    }
+
+    private void writeControlCharacter(char c) throws IOException {
+        ensure(6);
+        mBuffer[mPosition++] = '\\';
+        switch (c) {
+            case '\n':
+                mBuffer[mPosition++] = 'n';
+                break;
+            case '\r':
+                mBuffer[mPosition++] = 'r';
+                break;
+            case '\t':
+                mBuffer[mPosition++] = 't';
+                break;
+            case '\b':
+                mBuffer[mPosition++] = 'b';
+                break;
+            case '\f':
+                mBuffer[mPosition++] = 'f';
+                break;
+            default:
+                mBuffer[mPosition++] = 'u';
+                mBuffer[mPosition++] = '0';
+                mBuffer[mPosition++] = '0';
+                mBuffer[mPosition++] = HEX[c >> 4];
+                mBuffer[mPosition++] = HEX[c & 0xf];
+        }
+    }
+
+    private void ensure(int count) throws IOException {
+        if (mPosition + count > mBuffer.length) {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,520 @@
+package de.db.aim;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead spool for outgoing messages on local storage.
+ * <p>
+ * Messages are appended to segment files and numbered consecutively. They are read back
+ * in order with {@link #next()} and stay in the spool until they are {@link #ack(long)
+ * acknowledged}; a segment file is deleted once all of its messages are. The sequence
+ * number below which everything has been acknowledged is kept in a small head file, so
+ * after a restart exactly the unacknowledged messages are read again. {@link #rewind()}
+ * does the same without a restart, e.g. after the connection has been lost with messages
+ * in flight. Delivery is therefore at least once.
+ * <p>
+ * Only the open segment files and the acknowledgements that arrived out of order are
+ * kept in memory, so memory use does not depend on the size of the backlog. If the spool
+ * exceeds its maximum size, the oldest segment is dropped.
+ */
+public class MessageSpool implements Closeable {
+
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String HEAD_FILENAME = "head";
+    private static final int SEGMENT_MAGIC = 0x41494d53; // "AIMS"
+    private static final int SEGMENT_HEADER_LENGTH = 4;
+    private static final int HEAD_LENGTH = 12;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * A message read from the spool.
+     */
+    public static class Message {
+
+        private final long mSequence;
+        private final String mTopic;
+        private final int mQos;
+        private final byte[] mPayload;
+
+        Message(long sequence, String topic, int qos, byte[] payload) {
+            this.mSequence = sequence;
+            this.mTopic = topic;
+            this.mQos = qos;
+            this.mPayload = payload;
+        }
+
+        public long getSequence() {
+            return mSequence;
+        }
+
+        public String getTopic() {
+            return mTopic;
+        }
+
+        public int getQos() {
+            return mQos;
+        }
+
+        public byte[] getPayload() {
+            return mPayload;
+        }
+    }
+
+    private static class Segment {
+
+        final File mFile;
+        final long mFirstSequence;
+        long mLength;
+
+        Segment(File file, long firstSequence, long length) {
+            this.mFile = file;
+            this.mFirstSequence = firstSequence;
+            this.mLength = length;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mSegmentSize;
+    private final long mMaxSize;
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    private long mSize;
+    private RandomAccessFile mWriter;
+    private long mNextSequence;
+    private RandomAccessFile mHeadFile;
+    // All messages below the head have been acknowledged
+    private long mHead;
+    private final TreeSet<Long> mAcknowledged = new TreeSet<Long>();
+    private RandomAccessFile mReader;
+    private int mReadSegment;
+    private long mReadPosition;
+    private long mReadSequence;
+    private long mDroppedMessages;
+    private final ByteBuffer mRecordHeader = ByteBuffer.allocate(4 + 8 + 1 + 2);
+    private final ByteBuffer mIntBuffer = ByteBuffer.allocate(4);
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * Opens the spool in {@code directory}, recovering the messages of a previous run.
+     *
+     * @param segmentSize size at which a new segment file is started
+     * @param maxSize     size of all segment files above which the oldest one is dropped
+     */
+    public MessageSpool(File directory, long segmentSize, long maxSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create spool directory " + directory);
+        }
+        this.mDirectory = directory;
+        this.mSegmentSize = segmentSize;
+        this.mMaxSize = Math.max(maxSize, 2 * segmentSize);
+        mHeadFile = new RandomAccessFile(new File(directory, HEAD_FILENAME), "rw");
+        recover();
+    }
+
+    /**
+     * Appends a message to the spool.
+     *
+     * @return the sequence number of the message
+     */
+    public synchronized long append(String topic, int qos, byte[] payload, int offset, int length) throws IOException {
+        checkOpen();
+        byte[] topicBytes = topic.getBytes(UTF_8);
+        Segment segment = mSegments.get(mSegments.size() - 1);
+        if (segment.mLength >= mSegmentSize) {
+            segment = startSegment();
+        }
+        long sequence = mNextSequence;
+        mRecordHeader.clear();
+        mRecordHeader.putInt(8 + 1 + 2 + topicBytes.length + length);
+        mRecordHeader.putLong(sequence);
+        mRecordHeader.put((byte) qos);
+        mRecordHeader.putShort((short) topicBytes.length);
+        mCrc.reset();
+        mCrc.update(mRecordHeader.array(), 4, mRecordHeader.position() - 4);
+        mCrc.update(topicBytes);
+        mCrc.update(payload, offset, length);
+        mRecordHeader.flip();
+        FileChannel channel = mWriter.getChannel();
+        long position = segment.mLength;
+        position = write(channel, position, mRecordHeader);
+        position = write(channel, position, ByteBuffer.wrap(topicBytes));
+        position = write(channel, position, ByteBuffer.wrap(payload, offset, length));
+        mIntBuffer.clear();
+        mIntBuffer.putInt((int) mCrc.getValue()).flip();
+        position = write(channel, position, mIntBuffer);
+        mSize += position - segment.mLength;
+        segment.mLength = position;
+        mNextSequence++;
+        if (mSize > mMaxSize) {
+            dropOldestSegment();
+        }
+        return sequence;
+    }
+
+    /**
+     * Reads the next message that has not been read since the spool was opened or
+     * rewound, skipping those that have already been acknowledged.
+     *
+     * @return the message, or {@code null} if all messages have been read
+     */
+    public synchronized Message next() throws IOException {
+        checkOpen();
+        while (mReadSequence < mNextSequence) {
+            Segment segment = mSegments.get(mReadSegment);
+            if (mReadPosition >= segment.mLength) {
+                if (!nextReadSegment()) {
+                    return null;
+                }
+                continue;
+            }
+            Message message = readRecord(segment);
+            if (message == null) {
+                // A corrupted record, the rest of the segment cannot be trusted
+                long next = mReadSegment + 1 < mSegments.size()
+                        ? mSegments.get(mReadSegment + 1).mFirstSequence : mNextSequence;
+                mDroppedMessages += next - mReadSequence;
+                mReadSequence = next;
+                mReadPosition = segment.mLength;
+                continue;
+            }
+            mReadSequence = message.getSequence() + 1;
+            if (message.getSequence() >= mHead && !mAcknowledged.contains(message.getSequence())) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Marks a message as delivered. Acknowledging a message more than once has no effect.
+     */
+    public synchronized void ack(long sequence) throws IOException {
+        checkOpen();
+        if (sequence < mHead || sequence >= mNextSequence) {
+            return;
+        }
+        mAcknowledged.add(sequence);
+        long head = mHead;
+        while (!mAcknowledged.isEmpty() && mAcknowledged.first() == head) {
+            mAcknowledged.pollFirst();
+            head++;
+        }
+        if (head != mHead) {
+            advanceHead(head);
+        }
+    }
+
+    /**
+     * Makes {@link #next()} start over at the oldest unacknowledged message.
+     */
+    public synchronized void rewind() throws IOException {
+        checkOpen();
+        seek(mHead);
+    }
+
+    /**
+     * Number of messages that have not been acknowledged yet.
+     */
+    public synchronized long getPendingMessages() {
+        return mNextSequence - mHead - mAcknowledged.size();
+    }
+
+    /**
+     * Size of all segment files in bytes.
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Number of messages lost because the spool was full or corrupted.
+     */
+    public synchronized long getDroppedMessages() {
+        return mDroppedMessages;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.getChannel().force(false);
+            mWriter.close();
+            closeReader();
+        } finally {
+            mHeadFile.close();
+            mWriter = null;
+        }
+    }
+
+    private void checkOpen() {
+        if (mWriter == null) {
+            throw new IllegalStateException("Spool has been closed");
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = mDirectory.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(files, new Comparator<File>() {
+
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.valueOf(firstSequence(f1)).compareTo(firstSequence(f2));
+            }
+        });
+        for (File file : files) {
+            mSegments.add(new Segment(file, firstSequence(file), file.length()));
+            mSize += file.length();
+        }
+        mHead = readHead();
+        if (mSegments.isEmpty()) {
+            mNextSequence = mHead;
+            startSegment();
+        } else {
+            Segment last = mSegments.get(mSegments.size() - 1);
+            mWriter = new RandomAccessFile(last.mFile, "rw");
+            recoverLastSegment(last);
+        }
+        if (mHead < mSegments.get(0).mFirstSequence || mHead > mNextSequence) {
+            mHead = mSegments.get(0).mFirstSequence;
+        }
+        deleteAcknowledgedSegments();
+        seek(mHead);
+    }
+
+    /**
+     * Finds the end of the intact records in the segment that was being written and cuts
+     * off a record that was torn when the process died.
+     */
+    private void recoverLastSegment(Segment segment) throws IOException {
+        mNextSequence = segment.mFirstSequence;
+        long position = SEGMENT_HEADER_LENGTH;
+        mReader = new RandomAccessFile(segment.mFile, "r");
+        try {
+            mReadPosition = position;
+            Message message;
+            while (mReadPosition < segment.mLength && (message = readRecord(segment)) != null) {
+                mNextSequence = message.getSequence() + 1;
+                position = mReadPosition;
+            }
+        } finally {
+            closeReader();
+        }
+        if (position != segment.mLength) {
+            mWriter.setLength(position);
+            mSize -= segment.mLength - position;
+            segment.mLength = position;
+        }
+    }
+
+    private Segment startSegment() throws IOException {
+        if (mWriter != null) {
+            mWriter.getChannel().force(false);
+            mWriter.close();
+        }
+        File file = new File(mDirectory, String.format("%020d", mNextSequence) + SEGMENT_SUFFIX);
+        mWriter = new RandomAccessFile(file, "rw");
+        mWriter.setLength(0);
+        mIntBuffer.clear();
+        mIntBuffer.putInt(SEGMENT_MAGIC).flip();
+        write(mWriter.getChannel(), 0, mIntBuffer);
+        Segment segment = new Segment(file, mNextSequence, SEGMENT_HEADER_LENGTH);
+        mSegments.add(segment);
+        mSize += SEGMENT_HEADER_LENGTH;
+        return segment;
+    }
+
+    private void dropOldestSegment() throws IOException {
+        if (mSegments.size() < 2) {
+            return;
+        }
+        Segment oldest = mSegments.get(0);
+        long next = mSegments.get(1).mFirstSequence;
+        mDroppedMessages += next - Math.max(mHead, oldest.mFirstSequence) - mAcknowledged.headSet(next).size();
+        advanceHead(next);
+    }
+
+    private void advanceHead(long head) throws IOException {
+        mHead = head;
+        mAcknowledged.headSet(head).clear();
+        ByteBuffer buffer = ByteBuffer.allocate(HEAD_LENGTH);
+        buffer.putLong(head);
+        mCrc.reset();
+        mCrc.update(buffer.array(), 0, 8);
+        buffer.putInt((int) mCrc.getValue()).flip();
+        write(mHeadFile.getChannel(), 0, buffer);
+        deleteAcknowledgedSegments();
+    }
+
+    private long readHead() throws IOException {
+        if (mHeadFile.length() < HEAD_LENGTH) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEAD_LENGTH);
+        FileChannel channel = mHeadFile.getChannel();
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+        }
+        mCrc.reset();
+        mCrc.update(buffer.array(), 0, 8);
+        if (buffer.getInt(8) != (int) mCrc.getValue()) {
+            // Torn write, everything from the oldest segment on is read again
+            return 0;
+        }
+        return buffer.getLong(0);
+    }
+
+    private void deleteAcknowledgedSegments() throws IOException {
+        while (mSegments.size() > 1 && mSegments.get(1).mFirstSequence <= mHead) {
+            Segment segment = mSegments.remove(0);
+            if (mReadSegment == 0) {
+                // Nothing left to read in the deleted segment, continue with the next one
+                closeReader();
+                mReadPosition = SEGMENT_HEADER_LENGTH;
+                mReadSequence = Math.max(mReadSequence, mSegments.get(0).mFirstSequence);
+            } else {
+                mReadSegment--;
+            }
+            if (!segment.mFile.delete()) {
+                throw new IOException("Cannot delete " + segment.mFile);
+            }
+            mSize -= segment.mLength;
+        }
+    }
+
+    /**
+     * Positions the reader at the message with the given sequence number.
+     */
+    private void seek(long sequence) throws IOException {
+        closeReader();
+        mReadSegment = 0;
+        while (mReadSegment + 1 < mSegments.size() && mSegments.get(mReadSegment + 1).mFirstSequence <= sequence) {
+            mReadSegment++;
+        }
+        Segment segment = mSegments.get(mReadSegment);
+        mReadPosition = SEGMENT_HEADER_LENGTH;
+        mReadSequence = segment.mFirstSequence;
+        while (mReadSequence < sequence && mReadPosition < segment.mLength) {
+            if (!skipRecord(segment)) {
+                break;
+            }
+            mReadSequence++;
+        }
+    }
+
+    private boolean nextReadSegment() throws IOException {
+        if (mReadSegment + 1 >= mSegments.size()) {
+            return false;
+        }
+        closeReader();
+        mReadSegment++;
+        mReadPosition = SEGMENT_HEADER_LENGTH;
+        mReadSequence = mSegments.get(mReadSegment).mFirstSequence;
+        return true;
+    }
+
+    private boolean skipRecord(Segment segment) throws IOException {
+        int length = readInt(segment, mReadPosition);
+        if (length < 11 || mReadPosition + length + 8 > segment.mLength) {
+            return false;
+        }
+        mReadPosition += length + 8;
+        return true;
+    }
+
+    /**
+     * Reads the record at the read position and moves past it.
+     *
+     * @return the message, or {@code null} if the record is incomplete or corrupted
+     */
+    private Message readRecord(Segment segment) throws IOException {
+        int length = readInt(segment, mReadPosition);
+        if (length < 11 || mReadPosition + length + 8 > segment.mLength) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.allocate(length + 4);
+        FileChannel channel = reader(segment).getChannel();
+        long position = mReadPosition + 4;
+        while (body.hasRemaining()) {
+            int read = channel.read(body, position);
+            if (read < 0) {
+                return null;
+            }
+            position += read;
+        }
+        mCrc.reset();
+        mCrc.update(body.array(), 0, length);
+        if (body.getInt(length) != (int) mCrc.getValue()) {
+            return null;
+        }
+        body.flip();
+        long sequence = body.getLong();
+        int qos = body.get();
+        int topicLength = body.getShort() & 0xffff;
+        String topic = new String(body.array(), body.position(), topicLength, UTF_8);
+        byte[] payload = Arrays.copyOfRange(body.array(), body.position() + topicLength, length);
+        mReadPosition += length + 8;
+        return new Message(sequence, topic, qos, payload);
+    }
+
+    private int readInt(Segment segment, long position) throws IOException {
+        if (position + 4 > segment.mLength) {
+            return -1;
+        }
+        mIntBuffer.clear();
+        FileChannel channel = reader(segment).getChannel();
+        while (mIntBuffer.hasRemaining()) {
+            if (channel.read(mIntBuffer, position + mIntBuffer.position()) < 0) {
+                return -1;
+            }
+        }
+        return mIntBuffer.getInt(0);
+    }
+
+    private RandomAccessFile reader(Segment segment) throws IOException {
+        if (mReader == null) {
+            mReader = new RandomAccessFile(segment.mFile, "r");
+        }
+        return mReader;
+    }
+
+    private void closeReader() throws IOException {
+        if (mReader != null) {
+            mReader.close();
+            mReader = null;
+        }
+    }
+
+    private static long firstSequence(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static long write(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+}
@@ -0,0 +1,381 @@
+package de.db.aim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A timestamp and a set of named metrics, serialized as
+ * {@code {"sentOn":<timestamp>,"metrics":{<name>:<value>,...}}}.
+ * <p>
+ * Metrics are kept in typed slots in the order they were added, and primitive values
+ * are not boxed. A payload is meant to be reused: after {@link #removeAllMetrics()} the
+ * slots are filled again without allocating, and {@link #writeJson(OutputStream)} and
+ * {@link #writeCbor(OutputStream)} reuse their writers, so publishing the same kind of
+ * payload repeatedly produces no garbage. Byte array metrics are referenced, not copied,
+ * until the payload is written or cleared. A payload is not thread safe.
+ */
+public class Payload {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int JSON_BUFFER_SIZE = 8192;
+
+    private static final int TYPE_LONG = 0;
+    private static final int TYPE_DOUBLE = 1;
+    private static final int TYPE_BOOLEAN = 2;
+    private static final int TYPE_STRING = 3;
+    private static final int TYPE_BYTES = 4;
+
+    private static class Metric {
+        String name;
+        int type;
+        long longValue;
+        double doubleValue;
+        Object objectValue;
+        int offset;
+        int length;
+    }
+
+    private long timestamp;
+    private Metric[] metrics;
+    private int metricCount;
+    private JsonWriter jsonWriter;
+    private CborWriter cborWriter;
+
+    public Payload() {
+        this.metrics = new Metric[8];
+    }
+
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public void addMetric(String name, long value) {
+        Metric metric = slot(name, TYPE_LONG);
+        metric.longValue = value;
+    }
+
+    public void addMetric(String name, double value) {
+        Metric metric = slot(name, TYPE_DOUBLE);
+        metric.doubleValue = value;
+    }
+
+    public void addMetric(String name, boolean value) {
+        Metric metric = slot(name, TYPE_BOOLEAN);
+        metric.longValue = value ? 1 : 0;
+    }
+
+    public void addMetric(String name, String value) {
+        Metric metric = slot(name, TYPE_STRING);
+        metric.objectValue = value;
+    }
+
+    public void addMetric(String name, byte[] value) {
+        addMetric(name, value, 0, value.length);
+    }
+
+    /**
+     * Adds a binary metric, which is written as base64 in JSON and as a byte string in
+     * CBOR. The array is not copied and must not change until the payload is written.
+     */
+    public void addMetric(String name, byte[] value, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > value.length - length) {
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " of " + value.length + " bytes");
+        }
+        Metric metric = slot(name, TYPE_BYTES);
+        metric.objectValue = value;
+        metric.offset = offset;
+        metric.length = length;
+    }
+
+    /**
+     * Adds a metric of any of the supported types, boxed or not. Other objects are added
+     * as their string representation.
+     */
+    public void addMetric(String name, Object value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            addMetric(name, ((Number) value).longValue());
+        } else if (value instanceof Number) {
+            addMetric(name, ((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            addMetric(name, ((Boolean) value).booleanValue());
+        } else if (value instanceof byte[]) {
+            addMetric(name, (byte[]) value);
+        } else {
+            addMetric(name, value == null ? null : value.toString());
+        }
+    }
+
+    /**
+     * Returns the value of a metric, boxed, or null if there is no such metric.
+     */
+    public Object getMetric(String name) {
+        int index = indexOf(name);
+        return index < 0 ? null : value(this.metrics[index]);
+    }
+
+    public void removeMetric(String name) {
+        int index = indexOf(name);
+        if (index < 0) {
+            return;
+        }
+        Metric removed = this.metrics[index];
+        removed.objectValue = null;
+        System.arraycopy(this.metrics, index + 1, this.metrics, index, this.metricCount - index - 1);
+        this.metrics[--this.metricCount] = removed;
+    }
+
+    /**
+     * Removes all metrics and keeps their slots for reuse.
+     */
+    public void removeAllMetrics() {
+        for (int i = 0; i < this.metricCount; i++) {
+            this.metrics[i].objectValue = null;
+        }
+        this.metricCount = 0;
+    }
+
+    public int getMetricCount() {
+        return this.metricCount;
+    }
+
+    /**
+     * Returns the names of the metrics in the order they were added. The set is a copy.
+     */
+    public Set<String> metricNames() {
+        return metrics().keySet();
+    }
+
+    /**
+     * Returns the metrics, boxed, in the order they were added. The map is a copy.
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < this.metricCount; i++) {
+            map.put(this.metrics[i].name, value(this.metrics[i]));
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    public String toJson() {
+        return new String(toJsonBytes(), UTF_8);
+    }
+
+    /**
+     * Encodes the payload as UTF-8 encoded JSON, see {@link #writeJson(OutputStream)},
+     * without going through a string.
+     */
+    public byte[] toJsonBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(estimatedJsonLength());
+        try {
+            writeJson(out);
+        } catch (IOException e) {
+            // Not thrown by ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the payload as UTF-8 encoded JSON. Strings are escaped, byte array metrics
+     * are base64 encoded in pieces, and doubles that are not finite are written as null.
+     */
+    public void writeJson(OutputStream out) throws IOException {
+        if (this.jsonWriter == null) {
+            this.jsonWriter = new JsonWriter(JSON_BUFFER_SIZE);
+        }
+        JsonWriter writer = this.jsonWriter;
+        writer.reset(out);
+        writer.writeByte('{');
+        writer.writeName("sentOn");
+        writer.writeLong(this.timestamp);
+        writer.writeByte(',');
+        writer.writeName("metrics");
+        writer.writeByte('{');
+        for (int i = 0; i < this.metricCount; i++) {
+            Metric metric = this.metrics[i];
+            if (i > 0) {
+                writer.writeByte(',');
+            }
+            writer.writeName(metric.name);
+            switch (metric.type) {
+                case TYPE_LONG:
+                    writer.writeLong(metric.longValue);
+                    break;
+                case TYPE_DOUBLE:
+                    writer.writeDouble(metric.doubleValue);
+                    break;
+                case TYPE_BOOLEAN:
+                    writer.writeBoolean(metric.longValue != 0);
+                    break;
+                case TYPE_STRING:
+                    if (metric.objectValue == null) {
+                        writer.writeNull();
+                    } else {
+                        writer.writeString((String) metric.objectValue);
+                    }
+                    break;
+                default:
+                    writer.writeBase64((byte[]) metric.objectValue, metric.offset, metric.length);
+            }
+        }
+        writer.writeByte('}');
+        writer.writeByte('}');
+        writer.flush();
+        writer.reset(null);
+    }
+
+    /**
+     * Encodes the payload as CBOR with the same structure as {@link #toJson()}. The data
+     * starts with the self-describe tag, so it can be told apart from JSON by its first
+     * bytes. Byte array metrics are written as raw byte strings instead of base64.
+     */
+    public byte[] toCbor() {
+        int size = 32;
+        for (int i = 0; i < this.metricCount; i++) {
+            size += 32 + (this.metrics[i].type == TYPE_BYTES ? this.metrics[i].length : 0);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        try {
+            writeCbor(out);
+        } catch (IOException e) {
+            // Not thrown by ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the payload as CBOR, see {@link #toCbor()}. The stream should be buffered.
+     */
+    public void writeCbor(OutputStream out) throws IOException {
+        writeCbor(out, true);
+    }
+
+    /**
+     * Writes the payload as CBOR, without the self-describe tag if it is embedded in
+     * another item.
+     */
+    void writeCbor(OutputStream out, boolean tagged) throws IOException {
+        if (this.cborWriter == null) {
+            this.cborWriter = new CborWriter(out);
+        }
+        CborWriter writer = this.cborWriter;
+        writer.reset(out);
+        if (tagged) {
+            writer.writeTag(CborWriter.TAG_SELF_DESCRIBE);
+        }
+        writer.writeMapStart(2);
+        writer.writeString("sentOn");
+        writer.writeLong(this.timestamp);
+        writer.writeString("metrics");
+        writer.writeMapStart(this.metricCount);
+        for (int i = 0; i < this.metricCount; i++) {
+            Metric metric = this.metrics[i];
+            writer.writeString(metric.name);
+            switch (metric.type) {
+                case TYPE_LONG:
+                    writer.writeLong(metric.longValue);
+                    break;
+                case TYPE_DOUBLE:
+                    writer.writeDouble(metric.doubleValue);
+                    break;
+                case TYPE_BOOLEAN:
+                    writer.writeBoolean(metric.longValue != 0);
+                    break;
+                case TYPE_STRING:
+                    if (metric.objectValue == null) {
+                        writer.writeNull();
+                    } else {
+                        writer.writeString((String) metric.objectValue);
+                    }
+                    break;
+                default:
+                    writer.writeBytes((byte[]) metric.objectValue, metric.offset, metric.length);
+            }
+        }
+        writer.reset(null);
+    }
+
+    /**
+     * Returns the slot of the metric with the given name, which is added if there is none.
+     */
+    private Metric slot(String name, int type) {
+        if (name == null) {
+            throw new IllegalArgumentException("Metric name is null");
+        }
+        int index = indexOf(name);
+        if (index < 0) {
+            if (this.metricCount == this.metrics.length) {
+                this.metrics = Arrays.copyOf(this.metrics, this.metricCount * 2);
+            }
+            index = this.metricCount++;
+            if (this.metrics[index] == null) {
+                this.metrics[index] = new Metric();
+            }
+            this.metrics[index].name = name;
+        }
+        Metric metric = this.metrics[index];
+        metric.type = type;
+        metric.objectValue = null;
+        return metric;
+    }
+
+    private int indexOf(String name) {
+        // Names are usually literals, so the identity check mostly avoids comparing strings
+        for (int i = 0; i < this.metricCount; i++) {
+            if (this.metrics[i].name == name) {
+                return i;
+            }
+        }
+        for (int i = 0; i < this.metricCount; i++) {
+            if (this.metrics[i].name.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int estimatedJsonLength() {
+        int length = 64;
+        for (int i = 0; i < this.metricCount; i++) {
+            Metric metric = this.metrics[i];
+            length += metric.name.length() + 32;
+            if (metric.type == TYPE_STRING && metric.objectValue != null) {
+                length += ((String) metric.objectValue).length();
+            } else if (metric.type == TYPE_BYTES) {
+                length += Base64.encodedLength(metric.length);
+            }
+        }
+        return length;
+    }
+
+    private static Object value(Metric metric) {
+        switch (metric.type) {
+            case TYPE_LONG:
+                return metric.longValue;
+            case TYPE_DOUBLE:
+                return metric.doubleValue;
+            case TYPE_BOOLEAN:
+                return metric.longValue != 0;
+            case TYPE_STRING:
+                return metric.objectValue;
+            default:
+                byte[] bytes = (byte[]) metric.objectValue;
+                if (metric.offset == 0 && metric.length == bytes.length) {
+                    return bytes;
+                }
+                return Arrays.copyOfRange(bytes, metric.offset, metric.offset + metric.length);
+        }
+    }
+}
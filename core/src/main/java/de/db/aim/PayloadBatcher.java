@@ -0,0 +1,170 @@
+package de.db.aim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Collects payloads per topic and publishes them together as one message, to save
+ * round trips for small, frequent payloads. A batch is published when it holds the
+ * maximum number of entries, when the next entry would make it larger than the maximum
+ * message size, or when its oldest entry has waited for the maximum linger time.
+ * <p>
+ * A batch message holds the payloads in the order they were added:
+ * {@code {"entries":[<payload>,...]}} in JSON, and the same structure after the
+ * self-describe tag in CBOR. Each entry keeps its own {@code sentOn} timestamp.
+ * Payloads are serialized when they are added, so the caller may reuse them.
+ * <p>
+ * Linger times are only checked in {@link #flushExpired(long)}, which the caller has to
+ * call in time, see {@link #nextDeadline()}.
+ */
+public class PayloadBatcher {
+
+    private static final byte[] JSON_START = {'{', '"', 'e', 'n', 't', 'r', 'i', 'e', 's', '"', ':', '['};
+    private static final byte[] JSON_END = {']', '}'};
+    // Tag, map head, "entries" and the largest array head
+    private static final int CBOR_OVERHEAD = 3 + 1 + 8 + 5;
+
+    /**
+     * Receives batch messages. The buffer is reused after the call returns.
+     */
+    public interface Sink {
+        void publish(String topic, byte[] message, int offset, int length);
+    }
+
+    private static class Batch {
+        PayloadFormat format;
+        final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        int count;
+        long firstEntryMillis;
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    private final int mMaxEntries;
+    private final int mMaxBytes;
+    private final long mMaxLingerMillis;
+    private final Sink mSink;
+    private final Map<String, Batch> mBatches = new HashMap<>();
+    private final ByteArrayOutputStream mEntry = new ByteArrayOutputStream();
+    private final Buffer mMessage = new Buffer();
+    private final CborWriter mCborWriter = new CborWriter(mMessage);
+
+    /**
+     * @param maxEntries      maximum number of payloads in one message, 1 disables batching
+     * @param maxBytes        maximum size of a message; a single payload may exceed it
+     * @param maxLingerMillis maximum time a payload waits for others
+     */
+    public PayloadBatcher(int maxEntries, int maxBytes, long maxLingerMillis, Sink sink) {
+        if (maxEntries < 1 || maxBytes < 1 || maxLingerMillis < 0) {
+            throw new IllegalArgumentException("Invalid batch limits");
+        }
+        this.mMaxEntries = maxEntries;
+        this.mMaxBytes = maxBytes;
+        this.mMaxLingerMillis = maxLingerMillis;
+        this.mSink = sink;
+    }
+
+    /**
+     * Adds a payload to the batch of a topic, publishing batches whose limits are reached.
+     * A batch whose format differs from {@code format} is published first.
+     */
+    public synchronized void add(String topic, PayloadFormat format, Payload payload, long nowMillis) throws IOException {
+        mEntry.reset();
+        if (format == PayloadFormat.CBOR) {
+            payload.writeCbor(mEntry, false);
+        } else {
+            payload.writeJson(mEntry);
+        }
+        Batch batch = mBatches.get(topic);
+        if (batch == null) {
+            batch = new Batch();
+            mBatches.put(topic, batch);
+        }
+        if (batch.count > 0 && (batch.format != format || messageSize(batch) + 1 + mEntry.size() > mMaxBytes)) {
+            flush(topic, batch);
+        }
+        if (batch.count == 0) {
+            batch.format = format;
+            batch.firstEntryMillis = nowMillis;
+        } else if (format == PayloadFormat.JSON) {
+            batch.entries.write(',');
+        }
+        mEntry.writeTo(batch.entries);
+        batch.count++;
+        if (batch.count >= mMaxEntries || messageSize(batch) >= mMaxBytes) {
+            flush(topic, batch);
+        }
+    }
+
+    /**
+     * Publishes the batches whose oldest entry has waited for the maximum linger time.
+     */
+    public synchronized void flushExpired(long nowMillis) {
+        for (Map.Entry<String, Batch> entry : mBatches.entrySet()) {
+            Batch batch = entry.getValue();
+            if (batch.count > 0 && nowMillis - batch.firstEntryMillis >= mMaxLingerMillis) {
+                flush(entry.getKey(), batch);
+            }
+        }
+    }
+
+    /**
+     * Publishes all batches.
+     */
+    public synchronized void flushAll() {
+        for (Map.Entry<String, Batch> entry : mBatches.entrySet()) {
+            if (entry.getValue().count > 0) {
+                flush(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the time in milliseconds at which the next batch expires, or -1 if all
+     * batches are empty.
+     */
+    public synchronized long nextDeadline() {
+        long deadline = -1;
+        for (Batch batch : mBatches.values()) {
+            if (batch.count > 0 && (deadline < 0 || batch.firstEntryMillis + mMaxLingerMillis < deadline)) {
+                deadline = batch.firstEntryMillis + mMaxLingerMillis;
+            }
+        }
+        return deadline;
+    }
+
+    private int messageSize(Batch batch) {
+        int overhead = batch.format == PayloadFormat.CBOR ? CBOR_OVERHEAD : JSON_START.length + JSON_END.length;
+        return overhead + batch.entries.size();
+    }
+
+    private void flush(String topic, Batch batch) {
+        mMessage.reset();
+        try {
+            if (batch.format == PayloadFormat.CBOR) {
+                mCborWriter.writeTag(CborWriter.TAG_SELF_DESCRIBE);
+                mCborWriter.writeMapStart(1);
+                mCborWriter.writeString("entries");
+                mCborWriter.writeArrayStart(batch.count);
+                batch.entries.writeTo(mMessage);
+            } else {
+                mMessage.write(JSON_START);
+                batch.entries.writeTo(mMessage);
+                mMessage.write(JSON_END);
+            }
+        } catch (IOException e) {
+            // Not thrown by ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        batch.entries.reset();
+        batch.count = 0;
+        mSink.publish(topic, mMessage.buffer(), 0, mMessage.size());
+    }
+}
@@ -0,0 +1,64 @@
+package de.db.aim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Wire formats of a {@link Payload}. MQTT 3.1.1 has no content type property, so the
+ * formats are told apart by their first bytes: JSON starts with an opening brace, CBOR
+ * with the self-describe tag D9 D9 F7.
+ */
+public enum PayloadFormat {
+    JSON("application/json") {
+        @Override
+        public byte[] encode(Payload payload) {
+            return payload.toJsonBytes();
+        }
+
+        @Override
+        public void write(Payload payload, OutputStream out) throws IOException {
+            payload.writeJson(out);
+        }
+    },
+    CBOR("application/cbor") {
+        @Override
+        public byte[] encode(Payload payload) {
+            return payload.toCbor();
+        }
+
+        @Override
+        public void write(Payload payload, OutputStream out) throws IOException {
+            payload.writeCbor(out);
+        }
+    };
+
+    private final String mContentType;
+
+    PayloadFormat(String contentType) {
+        this.mContentType = contentType;
+    }
+
+    public String getContentType() {
+        return mContentType;
+    }
+
+    public abstract byte[] encode(Payload payload);
+
+    /**
+     * Writes an encoded payload without building it in memory first.
+     */
+    public abstract void write(Payload payload, OutputStream out) throws IOException;
+
+    /**
+     * Returns the format of an encoded payload, or null if it is neither.
+     */
+    public static PayloadFormat detect(byte[] data, int offset, int length) {
+        if (length >= 3 && (data[offset] & 0xff) == 0xd9 && (data[offset + 1] & 0xff) == 0xd9 && (data[offset + 2] & 0xff) == 0xf7) {
+            return CBOR;
+        }
+        if (length >= 1 && data[offset] == '{') {
+            return JSON;
+        }
+        return null;
+    }
+}
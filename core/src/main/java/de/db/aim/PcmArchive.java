@@ -0,0 +1,287 @@
+package de.db.aim;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fixed-size archive of raw PCM in a single memory-mapped file. Samples are written
+ * sequentially into a circular data region, so the oldest audio is overwritten implicitly
+ * and the file never grows. A small index in the header records where each contiguous
+ * segment of audio starts, which allows reading any time range back by timestamp.
+ * <p>
+ * Layout: a 64 byte header with the format and the write position, followed by a ring of
+ * segment slots and the data region. Positions in the data region are logical byte
+ * positions that only ever grow; the physical offset is the position modulo the capacity.
+ * <p>
+ * Appending and reading are synchronized with each other; there is one writer, usually
+ * a collector listener on its own thread.
+ */
+public class PcmArchive implements Closeable {
+
+    private static final int MAGIC = 0x41494d41; // "AIMA"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 32;
+    private static final int PAGE_SIZE = 4096;
+    private static final int DEFAULT_SLOT_COUNT = 4096;
+    // Long segments are split so the index stays fine-grained enough to evict and seek
+    private static final int MAX_SEGMENT_SECONDS = 60;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_SAMPLE_RATE = 8;
+    private static final int OFFSET_CHANNEL_COUNT = 12;
+    private static final int OFFSET_BITS_PER_SAMPLE = 16;
+    private static final int OFFSET_BIG_ENDIAN = 20;
+    private static final int OFFSET_DATA_CAPACITY = 24;
+    private static final int OFFSET_SLOT_COUNT = 32;
+    private static final int OFFSET_WRITE_POSITION = 40;
+    private static final int OFFSET_SEGMENT_COUNT = 48;
+
+    private static final int SLOT_START_NANOS = 0;
+    private static final int SLOT_START_MILLIS = 8;
+    private static final int SLOT_DATA_START = 16;
+    private static final int SLOT_DATA_LENGTH = 24;
+
+    /**
+     * Receives the samples of a time range, in as many pieces as there are segments and
+     * wrap-arounds in that range. The buffer is only valid during the call.
+     */
+    public interface SampleConsumer {
+        void onSamples(long timestampMillis, ByteBuffer samples) throws IOException;
+    }
+
+    private final PcmFormat mFormat;
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mMapping;
+    private final ByteBuffer mData;
+    private final int mSlotCount;
+    private final long mCapacity;
+    private final int mBytesPerFrame;
+    private final long mMaxSegmentBytes;
+    private long mWritePosition;
+    private long mSegmentCount;
+    private boolean mClosed;
+
+    /**
+     * Opens the archive in {@code file}, keeping its contents if it has been written with
+     * the same format and size, and starting empty otherwise.
+     *
+     * @param sizeInBytes size of the file including header and index
+     */
+    public PcmArchive(File file, PcmFormat format, long sizeInBytes) throws IOException {
+        this(file, format, sizeInBytes, DEFAULT_SLOT_COUNT);
+    }
+
+    PcmArchive(File file, PcmFormat format, long sizeInBytes, int slotCount) throws IOException {
+        this.mFormat = format;
+        this.mSlotCount = slotCount;
+        this.mBytesPerFrame = format.getBytesPerFrame();
+        long dataOffset = (HEADER_SIZE + (long) slotCount * SLOT_SIZE + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+        if (sizeInBytes > Integer.MAX_VALUE || sizeInBytes - dataOffset < mBytesPerFrame) {
+            throw new IllegalArgumentException("Archive size " + sizeInBytes + " is out of range");
+        }
+        this.mCapacity = (sizeInBytes - dataOffset) / mBytesPerFrame * mBytesPerFrame;
+        this.mMaxSegmentBytes = (long) MAX_SEGMENT_SECONDS * format.getByteRate();
+        this.mFile = new RandomAccessFile(file, "rw");
+        try {
+            mFile.setLength(sizeInBytes);
+            mMapping = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, sizeInBytes);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mMapping.order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer data = mMapping.duplicate();
+        data.position((int) dataOffset).limit((int) (dataOffset + mCapacity));
+        mData = data.slice().order(ByteOrder.nativeOrder());
+        if (hasMatchingHeader()) {
+            mWritePosition = mMapping.getLong(OFFSET_WRITE_POSITION);
+            mSegmentCount = mMapping.getLong(OFFSET_SEGMENT_COUNT);
+        } else {
+            initializeHeader();
+        }
+    }
+
+    public PcmFormat getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Bytes of sample data the archive can hold.
+     */
+    public long getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Appends the samples of a frame that have not been archived yet. A frame that follows
+     * the previous one seamlessly, or overlaps it, extends the current segment; anything else
+     * starts a new segment.
+     *
+     * @return false if the samples of the frame had already been overwritten in the ring
+     * buffer, in which case the archive is unchanged
+     */
+    public synchronized boolean append(AudioFrame frame) {
+        checkOpen();
+        if (!mFormat.equals(frame.getFormat())) {
+            throw new IllegalArgumentException("Frame format " + frame.getFormat() + " does not match " + mFormat);
+        }
+        int offset = 0;
+        boolean extend = false;
+        if (mSegmentCount > 0) {
+            int slot = slotOffset(mSegmentCount - 1);
+            long segmentSamples = mMapping.getLong(slot + SLOT_DATA_LENGTH) / mBytesPerFrame;
+            long segmentEndNanos = mMapping.getLong(slot + SLOT_START_NANOS) + SampleClock.samplesToNanos(segmentSamples, mFormat.getSampleRate());
+            long overlapNanos = segmentEndNanos - frame.getTimestampNanos();
+            long samplesOverlapping = Math.round((double) overlapNanos * mFormat.getSampleRate() / 1000000000L);
+            long mismatchNanos = overlapNanos - SampleClock.samplesToNanos(samplesOverlapping, mFormat.getSampleRate());
+            if (samplesOverlapping >= 0 && Math.abs(mismatchNanos) < SampleClock.samplesToNanos(1, mFormat.getSampleRate())) {
+                if (samplesOverlapping >= frame.getSampleCount()) {
+                    return true;
+                }
+                offset = (int) samplesOverlapping;
+                extend = mMapping.getLong(slot + SLOT_DATA_LENGTH) < mMaxSegmentBytes;
+            }
+        }
+        int samples = frame.getSampleCount() - offset;
+        long start = mWritePosition;
+        int written = 0;
+        while (written < samples) {
+            int physical = (int) ((start + (long) written * mBytesPerFrame) % mCapacity);
+            int count = (int) Math.min(samples - written, (mCapacity - physical) / mBytesPerFrame);
+            mData.limit(physical + count * mBytesPerFrame).position(physical);
+            if (!frame.copyTo(offset + written, mData, count)) {
+                mData.clear();
+                return false;
+            }
+            written += count;
+        }
+        mData.clear();
+        long length = (long) samples * mBytesPerFrame;
+        if (extend) {
+            int slot = slotOffset(mSegmentCount - 1);
+            mMapping.putLong(slot + SLOT_DATA_LENGTH, mMapping.getLong(slot + SLOT_DATA_LENGTH) + length);
+        } else {
+            long startNanos = frame.getTimestampNanos() + SampleClock.samplesToNanos(offset, mFormat.getSampleRate());
+            int slot = slotOffset(mSegmentCount);
+            mMapping.putLong(slot + SLOT_START_NANOS, startNanos);
+            mMapping.putLong(slot + SLOT_START_MILLIS, frame.getTimestamp() + SampleClock.samplesToNanos(offset, mFormat.getSampleRate()) / 1000000L);
+            mMapping.putLong(slot + SLOT_DATA_START, start);
+            mMapping.putLong(slot + SLOT_DATA_LENGTH, length);
+            mSegmentCount++;
+            mMapping.putLong(OFFSET_SEGMENT_COUNT, mSegmentCount);
+        }
+        mWritePosition = start + length;
+        mMapping.putLong(OFFSET_WRITE_POSITION, mWritePosition);
+        return true;
+    }
+
+    /**
+     * Hands the archived samples between {@code fromMillis} (inclusive) and {@code toMillis}
+     * (exclusive) to the consumer, oldest first. Ranges without audio are skipped.
+     *
+     * @return the number of bytes passed to the consumer
+     */
+    public synchronized long read(long fromMillis, long toMillis, SampleConsumer consumer) throws IOException {
+        checkOpen();
+        long oldestPosition = Math.max(0, mWritePosition - mCapacity);
+        long bytes = 0;
+        for (long segment = Math.max(0, mSegmentCount - mSlotCount); segment < mSegmentCount; segment++) {
+            int slot = slotOffset(segment);
+            long startMillis = mMapping.getLong(slot + SLOT_START_MILLIS);
+            long dataStart = mMapping.getLong(slot + SLOT_DATA_START);
+            long dataEnd = dataStart + mMapping.getLong(slot + SLOT_DATA_LENGTH);
+            long firstSample = Math.max(0, (Math.max(oldestPosition, dataStart) - dataStart + mBytesPerFrame - 1) / mBytesPerFrame);
+            firstSample = Math.max(firstSample, millisToSamples(fromMillis - startMillis));
+            long endSample = Math.min((dataEnd - dataStart) / mBytesPerFrame, millisToSamples(toMillis - startMillis));
+            if (endSample <= firstSample) {
+                continue;
+            }
+            long position = dataStart + firstSample * mBytesPerFrame;
+            long end = dataStart + endSample * mBytesPerFrame;
+            while (position < end) {
+                int physical = (int) (position % mCapacity);
+                int length = (int) Math.min(end - position, mCapacity - physical);
+                ByteBuffer samples = mData.duplicate();
+                samples.limit(physical + length).position(physical);
+                long sample = (position - dataStart) / mBytesPerFrame;
+                consumer.onSamples(startMillis + SampleClock.samplesToNanos(sample, mFormat.getSampleRate()) / 1000000L, samples.slice().order(ByteOrder.nativeOrder()));
+                position += length;
+                bytes += length;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Flushes the mapping to disk and closes the file. The mapping itself is released by
+     * the garbage collector.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mMapping.force();
+        mFile.close();
+    }
+
+    /**
+     * Index of the first sample at or after the given time relative to a segment start.
+     */
+    private long millisToSamples(long millis) {
+        if (millis <= 0) {
+            return 0;
+        }
+        if (millis > Long.MAX_VALUE / mFormat.getSampleRate() - 1000) {
+            return Long.MAX_VALUE;
+        }
+        return (millis * mFormat.getSampleRate() + 999) / 1000;
+    }
+
+    private int slotOffset(long segment) {
+        return HEADER_SIZE + (int) (segment % mSlotCount) * SLOT_SIZE;
+    }
+
+    private void checkOpen() {
+        if (mClosed) {
+            throw new IllegalStateException("Archive has been closed");
+        }
+    }
+
+    private boolean hasMatchingHeader() {
+        return mMapping.getInt(OFFSET_MAGIC) == MAGIC
+                && mMapping.getInt(OFFSET_VERSION) == VERSION
+                && mMapping.getInt(OFFSET_SAMPLE_RATE) == mFormat.getSampleRate()
+                && mMapping.getInt(OFFSET_CHANNEL_COUNT) == mFormat.getChannelCount()
+                && mMapping.getInt(OFFSET_BITS_PER_SAMPLE) == mFormat.getBitsPerSample()
+                && mMapping.getInt(OFFSET_BIG_ENDIAN) == (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0)
+                && mMapping.getLong(OFFSET_DATA_CAPACITY) == mCapacity
+                && mMapping.getInt(OFFSET_SLOT_COUNT) == mSlotCount;
+    }
+
+    private void initializeHeader() {
+        mMapping.putInt(OFFSET_MAGIC, 0);
+        mMapping.putInt(OFFSET_VERSION, VERSION);
+        mMapping.putInt(OFFSET_SAMPLE_RATE, mFormat.getSampleRate());
+        mMapping.putInt(OFFSET_CHANNEL_COUNT, mFormat.getChannelCount());
+        mMapping.putInt(OFFSET_BITS_PER_SAMPLE, mFormat.getBitsPerSample());
+        mMapping.putInt(OFFSET_BIG_ENDIAN, ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? 1 : 0);
+        mMapping.putLong(OFFSET_DATA_CAPACITY, mCapacity);
+        mMapping.putInt(OFFSET_SLOT_COUNT, mSlotCount);
+        mMapping.putLong(OFFSET_WRITE_POSITION, 0);
+        mMapping.putLong(OFFSET_SEGMENT_COUNT, 0);
+        // Written last, so a header that was only partially initialized is not trusted
+        mMapping.putInt(OFFSET_MAGIC, MAGIC);
+        mWritePosition = 0;
+        mSegmentCount = 0;
+    }
+}
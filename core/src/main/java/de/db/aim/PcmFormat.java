@@ -0,0 +1,100 @@
+package de.db.aim;
+
+/**
+ * Describes the PCM stream produced by the collector: sample rate, channel count and
+ * sample encoding. Samples of all channels are interleaved; a "frame" in the sense of
+ * {@link #getBytesPerFrame()} is one sample of every channel.
+ */
+public class PcmFormat {
+
+    public enum Encoding {
+        PCM_16BIT(16),
+        PCM_FLOAT(32);
+
+        private final int mBitsPerSample;
+
+        Encoding(int bitsPerSample) {
+            this.mBitsPerSample = bitsPerSample;
+        }
+
+        public int getBitsPerSample() {
+            return mBitsPerSample;
+        }
+    }
+
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final Encoding mEncoding;
+
+    public PcmFormat(int sampleRate, int channelCount, Encoding encoding) {
+        if (sampleRate <= 0 || channelCount <= 0 || encoding == null) {
+            throw new IllegalArgumentException("Invalid PCM format: " + sampleRate + " Hz, " + channelCount + " channels, " + encoding);
+        }
+        this.mSampleRate = sampleRate;
+        this.mChannelCount = channelCount;
+        this.mEncoding = encoding;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public Encoding getEncoding() {
+        return mEncoding;
+    }
+
+    public int getBitsPerSample() {
+        return mEncoding.getBitsPerSample();
+    }
+
+    public int getBytesPerSample() {
+        return mEncoding.getBitsPerSample() / 8;
+    }
+
+    public int getBytesPerFrame() {
+        return mChannelCount * getBytesPerSample();
+    }
+
+    public int getByteRate() {
+        return mSampleRate * getBytesPerFrame();
+    }
+
+    /**
+     * The same sample rate and channel count with another sample encoding.
+     */
+    public PcmFormat withEncoding(Encoding encoding) {
+        return encoding == mEncoding ? this : new PcmFormat(mSampleRate, mChannelCount, encoding);
+    }
+
+    public int millisecondsToFrames(int milliseconds) {
+        return (int) ((long) mSampleRate * milliseconds / 1000);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PcmFormat)) {
+            return false;
+        }
+        PcmFormat other = (PcmFormat) o;
+        return mSampleRate == other.mSampleRate
+                && mChannelCount == other.mChannelCount
+                && mEncoding == other.mEncoding;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * mSampleRate + mChannelCount) + mEncoding.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mSampleRate + " Hz, " + mChannelCount + " channel(s), " + mEncoding;
+    }
+}
@@ -0,0 +1,158 @@
+package de.db.aim;
+
+/**
+ * Adapts the audio publish period and the encoder bit rate to the uplink.
+ * <p>
+ * The controller is fed with the size and latency of every completed delivery and, once
+ * per control interval, with the size of the backlog of unsent messages. The link is
+ * considered congested when the backlog keeps growing beyond what the measured
+ * throughput drains in {@link #TARGET_DRAIN_MILLIS}, or when deliveries take longer than
+ * {@link #HIGH_LATENCY_MILLIS}. It then backs off: the publish period is doubled, and
+ * once it is at its maximum, the bit rate is reduced by a quarter. When the backlog is
+ * empty and deliveries are fast, it probes for more: the bit rate is raised by a quarter
+ * up to its maximum first, then the publish period is shortened by a quarter.
+ */
+public class RateController {
+
+    public enum Decision {
+        /** The link keeps up, nothing changes */
+        HOLD,
+        /** The link is congested, less is uploaded */
+        BACK_OFF,
+        /** The link is idle, more is uploaded */
+        PROBE
+    }
+
+    static final long TARGET_DRAIN_MILLIS = 60000;
+    static final long HIGH_LATENCY_MILLIS = 10000;
+    static final long LOW_LATENCY_MILLIS = 2000;
+    // Weight of a new sample in the moving averages
+    private static final double SMOOTHING = 0.3;
+
+    private final int mMinPeriodSeconds;
+    private final int mMaxPeriodSeconds;
+    private final int mMinBitRate;
+    private final int mMaxBitRate;
+
+    private int mPeriodSeconds;
+    private int mBitRate;
+    private Decision mDecision = Decision.HOLD;
+    private long mLastUpdateMillis = -1;
+    private long mIntervalBytes;
+    private long mIntervalDeliveries;
+    private double mThroughput = -1;
+    private double mLatencyMillis = -1;
+    private long mBacklogMessages;
+    private long mBacklogBytes;
+
+    /**
+     * Starts with the given publish period, clamped to its bounds, and the maximum bit
+     * rate.
+     */
+    public RateController(int periodSeconds, int minPeriodSeconds, int maxPeriodSeconds, int minBitRate, int maxBitRate) {
+        if (minPeriodSeconds <= 0 || maxPeriodSeconds < minPeriodSeconds || minBitRate <= 0 || maxBitRate < minBitRate) {
+            throw new IllegalArgumentException("Invalid rate control bounds");
+        }
+        this.mMinPeriodSeconds = minPeriodSeconds;
+        this.mMaxPeriodSeconds = maxPeriodSeconds;
+        this.mMinBitRate = minBitRate;
+        this.mMaxBitRate = maxBitRate;
+        this.mPeriodSeconds = Math.max(minPeriodSeconds, Math.min(maxPeriodSeconds, periodSeconds));
+        this.mBitRate = maxBitRate;
+    }
+
+    /**
+     * Records a completed delivery.
+     */
+    public synchronized void onDelivered(int bytes, long latencyMillis) {
+        mIntervalBytes += bytes;
+        mIntervalDeliveries++;
+        mLatencyMillis = mLatencyMillis < 0 ? latencyMillis : mLatencyMillis + SMOOTHING * (latencyMillis - mLatencyMillis);
+    }
+
+    /**
+     * Runs a control step.
+     *
+     * @return the decision of this step
+     */
+    public synchronized Decision update(long nowMillis, long backlogMessages, long backlogBytes) {
+        long previousBacklogBytes = mBacklogBytes;
+        mBacklogMessages = backlogMessages;
+        mBacklogBytes = backlogBytes;
+        if (mLastUpdateMillis < 0 || nowMillis <= mLastUpdateMillis) {
+            mLastUpdateMillis = nowMillis;
+            mDecision = Decision.HOLD;
+            return mDecision;
+        }
+        long interval = nowMillis - mLastUpdateMillis;
+        mLastUpdateMillis = nowMillis;
+        // Without deliveries and without a backlog there was nothing to send, which says
+        // nothing about the link
+        if (mIntervalDeliveries > 0 || backlogMessages > 0) {
+            double throughput = mIntervalBytes * 1000.0 / interval;
+            mThroughput = mThroughput < 0 ? throughput : mThroughput + SMOOTHING * (throughput - mThroughput);
+        }
+        mIntervalBytes = 0;
+        mIntervalDeliveries = 0;
+
+        boolean backlogGrowing = backlogBytes > previousBacklogBytes
+                && backlogBytes > Math.max(0, mThroughput) * TARGET_DRAIN_MILLIS / 1000;
+        if (backlogGrowing || mLatencyMillis > HIGH_LATENCY_MILLIS) {
+            mDecision = backOff() ? Decision.BACK_OFF : Decision.HOLD;
+        } else if (backlogMessages == 0 && mLatencyMillis >= 0 && mLatencyMillis < LOW_LATENCY_MILLIS) {
+            mDecision = probe() ? Decision.PROBE : Decision.HOLD;
+        } else {
+            mDecision = Decision.HOLD;
+        }
+        return mDecision;
+    }
+
+    public synchronized int getPublishPeriodSeconds() {
+        return mPeriodSeconds;
+    }
+
+    public synchronized int getBitRate() {
+        return mBitRate;
+    }
+
+    public synchronized Decision getDecision() {
+        return mDecision;
+    }
+
+    /**
+     * Adds the state and the last decision of the controller to a payload.
+     */
+    public synchronized void addMetrics(Payload payload) {
+        payload.addMetric("decision", mDecision.name());
+        payload.addMetric("publish_period", mPeriodSeconds);
+        payload.addMetric("bit_rate", mBitRate);
+        payload.addMetric("throughput", Math.max(0, mThroughput));
+        payload.addMetric("latency", Math.max(0, mLatencyMillis));
+        payload.addMetric("backlog_messages", mBacklogMessages);
+        payload.addMetric("backlog_bytes", mBacklogBytes);
+    }
+
+    private boolean backOff() {
+        if (mPeriodSeconds < mMaxPeriodSeconds) {
+            mPeriodSeconds = Math.min(mMaxPeriodSeconds, mPeriodSeconds * 2);
+            return true;
+        }
+        if (mBitRate > mMinBitRate) {
+            mBitRate = Math.max(mMinBitRate, mBitRate - mBitRate / 4);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean probe() {
+        if (mBitRate < mMaxBitRate) {
+            mBitRate = Math.min(mMaxBitRate, mBitRate + Math.max(1, mBitRate / 4));
+            return true;
+        }
+        if (mPeriodSeconds > mMinPeriodSeconds) {
+            mPeriodSeconds = Math.max(mMinPeriodSeconds, mPeriodSeconds - Math.max(1, mPeriodSeconds / 4));
+            return true;
+        }
+        return false;
+    }
+}
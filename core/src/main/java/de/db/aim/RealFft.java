@@ -0,0 +1,113 @@
+package de.db.aim;
+
+/**
+ * Power spectrum of real input by a radix-2 FFT. The {@code n} real values are packed
+ * into {@code n / 2} complex values, transformed in place and separated afterwards, which
+ * takes about half the work of a complex transform of the same size.
+ * <p>
+ * Twiddle factors and the bit reversal permutation are computed once in the constructor,
+ * a transform does not allocate. An instance is not thread safe.
+ */
+class RealFft {
+
+    private final int mSize;
+    private final int mHalfSize;
+    private final float[] mBuffer;
+    // cos and sin of 2 pi k / n, for k < n / 2
+    private final float[] mCos;
+    private final float[] mSin;
+    private final int[] mBitReversed;
+
+    RealFft(int size) {
+        if (size < 4 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Size has to be a power of two of at least 4: " + size);
+        }
+        this.mSize = size;
+        this.mHalfSize = size / 2;
+        this.mBuffer = new float[size];
+        this.mCos = new float[mHalfSize];
+        this.mSin = new float[mHalfSize];
+        for (int k = 0; k < mHalfSize; k++) {
+            double angle = 2 * Math.PI * k / size;
+            mCos[k] = (float) Math.cos(angle);
+            mSin[k] = (float) Math.sin(angle);
+        }
+        this.mBitReversed = new int[mHalfSize];
+        int bits = Integer.numberOfTrailingZeros(mHalfSize);
+        for (int k = 0; k < mHalfSize; k++) {
+            mBitReversed[k] = bits == 0 ? 0 : Integer.reverse(k) >>> (32 - bits);
+        }
+    }
+
+    int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Computes the squared magnitudes of the first {@code n / 2 + 1} bins of the transform
+     * of {@code n} values.
+     */
+    void powerSpectrum(float[] input, int offset, float[] power) {
+        if (power.length < mHalfSize + 1) {
+            throw new IllegalArgumentException("Power spectrum needs " + (mHalfSize + 1) + " bins");
+        }
+        float[] z = mBuffer;
+        // Even values become the real parts, odd values the imaginary parts, in bit
+        // reversed order for the decimation in time
+        for (int k = 0; k < mHalfSize; k++) {
+            int j = 2 * mBitReversed[k];
+            z[j] = input[offset + 2 * k];
+            z[j + 1] = input[offset + 2 * k + 1];
+        }
+        transform(z);
+
+        float r0 = z[0];
+        float i0 = z[1];
+        power[0] = (r0 + i0) * (r0 + i0);
+        power[mHalfSize] = (r0 - i0) * (r0 - i0);
+        for (int k = 1; k < mHalfSize; k++) {
+            int j = mHalfSize - k;
+            float ar = z[2 * k];
+            float ai = z[2 * k + 1];
+            float br = z[2 * j];
+            float bi = -z[2 * j + 1];
+            // Transform of the even values, E = (a + b) / 2, and of the odd values,
+            // O = (a - b) / 2i, with b the conjugate of the mirrored bin
+            float er = (ar + br) / 2;
+            float ei = (ai + bi) / 2;
+            float or = (ai - bi) / 2;
+            float oi = -(ar - br) / 2;
+            // X = E + e^(-2 pi i k / n) O
+            float c = mCos[k];
+            float s = mSin[k];
+            float xr = er + c * or + s * oi;
+            float xi = ei + c * oi - s * or;
+            power[k] = xr * xr + xi * xi;
+        }
+    }
+
+    /**
+     * Complex transform of {@code n / 2} interleaved values in bit reversed order.
+     */
+    private void transform(float[] z) {
+        for (int length = 2; length <= mHalfSize; length <<= 1) {
+            int half = length / 2;
+            // The twiddle factors of this stage are every stride-th of the size n table
+            int stride = 2 * mHalfSize / length;
+            for (int start = 0; start < mHalfSize; start += length) {
+                for (int k = 0; k < half; k++) {
+                    float c = mCos[k * stride];
+                    float s = mSin[k * stride];
+                    int p = 2 * (start + k);
+                    int q = 2 * (start + k + half);
+                    float tr = c * z[q] + s * z[q + 1];
+                    float ti = c * z[q + 1] - s * z[q];
+                    z[q] = z[p] - tr;
+                    z[q + 1] = z[p + 1] - ti;
+                    z[p] += tr;
+                    z[p + 1] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package de.db.aim;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Hands tasks that are prepared in parallel to an executor in the order their sequence
+ * numbers were reserved, whatever order they are completed in.
+ * <p>
+ * A producer reserves a sequence number with {@link #reserve()} before it starts its
+ * work, and passes the result to {@link #complete(long, Runnable)} when it is done, or
+ * {@code null} if there is nothing to hand off. Every reserved number has to be
+ * completed, or later tasks are held back for good. A task that completes more than
+ * {@code window} numbers ahead of the oldest open one waits, so a slow task does not let
+ * finished tasks pile up behind it.
+ */
+public class ReorderBuffer {
+
+    private static final Runnable NOTHING = new Runnable() {
+
+        @Override
+        public void run() {
+        }
+    };
+
+    private final Executor mExecutor;
+    private final int mWindow;
+    private final Map<Long, Runnable> mCompleted = new HashMap<>();
+    private long mReserved;
+    private long mNext;
+
+    /**
+     * @param executor receives the tasks in order, from the thread that completes the
+     *                 oldest open number
+     * @param window   how far completed tasks may run ahead of the oldest open one
+     */
+    public ReorderBuffer(Executor executor, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be positive");
+        }
+        this.mExecutor = executor;
+        this.mWindow = window;
+    }
+
+    public synchronized long reserve() {
+        return mReserved++;
+    }
+
+    /**
+     * Hands {@code task} and all tasks queued up behind it to the executor once every
+     * lower number has been completed. If the executor rejects a task, the task is lost,
+     * the following ones are still offered, and the first exception is thrown afterwards.
+     *
+     * @param task the task for {@code sequence}, or null to just release the number
+     * @throws InterruptedException if interrupted while waiting for the window
+     */
+    public synchronized void complete(long sequence, Runnable task) throws InterruptedException {
+        if (sequence < mNext || sequence >= mReserved || mCompleted.containsKey(sequence)) {
+            throw new IllegalStateException("Sequence number " + sequence + " is not open");
+        }
+        while (sequence - mNext >= mWindow) {
+            wait();
+        }
+        mCompleted.put(sequence, task == null ? NOTHING : task);
+        Runnable next;
+        RuntimeException failure = null;
+        while ((next = mCompleted.remove(mNext)) != null) {
+            mNext++;
+            notifyAll();
+            if (next == NOTHING) {
+                continue;
+            }
+            try {
+                mExecutor.execute(next);
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
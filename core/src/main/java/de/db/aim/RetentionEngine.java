@@ -0,0 +1,138 @@
+package de.db.aim;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Deletes the oldest audio files of a {@link SegmentIndex} until the archive is within
+ * its limits: a maximum number of files, a byte quota, a maximum age and a minimum amount
+ * of free space on the volume. A limit of zero or less is not enforced, except for the
+ * number of files, where zero keeps no files at all.
+ * <p>
+ * As the index is ordered by start time, each run only looks at the files it deletes
+ * plus one, instead of listing and sorting the whole archive. A file that cannot be
+ * deleted is dropped from the index, so it does not block the files after it; it is no
+ * longer counted against the limits.
+ */
+public class RetentionEngine {
+
+    private final SegmentIndex mIndex;
+    private final File mBaseDirectory;
+    private volatile int mMaxFiles = -1;
+    private volatile long mMaxBytes;
+    private volatile long mMaxAgeMillis;
+    private volatile long mMinFreeBytes;
+    private volatile int mFailedDeletions;
+
+    /**
+     * @param baseDirectory directory the audio files are written to; empty directories
+     *                      below it are deleted along with the last file they contained
+     */
+    public RetentionEngine(SegmentIndex index, File baseDirectory) {
+        this.mIndex = index;
+        this.mBaseDirectory = baseDirectory;
+    }
+
+    public void setMaxFiles(int maxFiles) {
+        this.mMaxFiles = maxFiles;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.mMaxBytes = maxBytes;
+    }
+
+    public void setMaxAgeMillis(long maxAgeMillis) {
+        this.mMaxAgeMillis = maxAgeMillis;
+    }
+
+    public void setMinFreeBytes(long minFreeBytes) {
+        this.mMinFreeBytes = minFreeBytes;
+    }
+
+    /**
+     * Deletes files until all limits are met or the index is empty.
+     *
+     * @return the number of files deleted
+     */
+    public int enforce(long nowMillis) throws IOException {
+        // Querying the volume once is enough, every deletion frees the size of its file
+        long freeBytes = mMinFreeBytes > 0 ? mBaseDirectory.getUsableSpace() : 0;
+        int deleted = 0;
+        int failed = 0;
+        AudioSegment segment;
+        while ((segment = mIndex.oldest()) != null && exceedsLimits(segment, nowMillis, freeBytes)) {
+            File file = new File(segment.getPath());
+            mIndex.remove(segment.getPath());
+            if (!file.delete() && file.exists()) {
+                failed++;
+                continue;
+            }
+            deleteEmptyParents(file);
+            freeBytes += segment.getSize();
+            deleted++;
+        }
+        mFailedDeletions = failed;
+        return deleted;
+    }
+
+    /**
+     * The number of files the last run of {@link #enforce(long)} could not delete and
+     * dropped from the index.
+     */
+    public int getFailedDeletions() {
+        return mFailedDeletions;
+    }
+
+    /**
+     * Adds files below the base directory that are not indexed yet, such as files written
+     * before the index existed. Their start time is taken from the modification time.
+     *
+     * @return the number of files added
+     */
+    public int adopt() throws IOException {
+        return adopt(mBaseDirectory);
+    }
+
+    private int adopt(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int added = 0;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                added += adopt(file);
+            } else if (mIndex.get(file.getAbsolutePath()) == null) {
+                mIndex.add(new AudioSegment(file.lastModified(), 0, file.getAbsolutePath(), file.length(), ""));
+                added++;
+            }
+        }
+        return added;
+    }
+
+    private boolean exceedsLimits(AudioSegment oldest, long nowMillis, long freeBytes) {
+        int maxFiles = mMaxFiles;
+        long maxBytes = mMaxBytes;
+        long maxAgeMillis = mMaxAgeMillis;
+        long minFreeBytes = mMinFreeBytes;
+        return (maxFiles >= 0 && mIndex.size() > maxFiles)
+                || (maxBytes > 0 && mIndex.getTotalBytes() > maxBytes)
+                || (maxAgeMillis > 0 && oldest.getEndMillis() < nowMillis - maxAgeMillis)
+                || (minFreeBytes > 0 && freeBytes < minFreeBytes);
+    }
+
+    private void deleteEmptyParents(File file) {
+        File directory = file.getParentFile();
+        while (directory != null && !directory.equals(mBaseDirectory) && isBelowBase(directory)) {
+            String[] children = directory.list();
+            if (children == null || children.length > 0 || !directory.delete()) {
+                return;
+            }
+            directory = directory.getParentFile();
+        }
+    }
+
+    private boolean isBelowBase(File directory) {
+        return directory.getPath().startsWith(mBaseDirectory.getPath() + File.separator);
+    }
+}
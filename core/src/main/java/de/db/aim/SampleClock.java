@@ -0,0 +1,52 @@
+package de.db.aim;
+
+/**
+ * Maps sample indices of a capture session to time. The clock is anchored once at the
+ * start of the session; after that every timestamp is derived from the running sample
+ * count only, so frame times are exact relative to each other and do not drift or jitter.
+ */
+class SampleClock {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final int mSampleRate;
+    private final long mAnchorNanos;
+    private final long mAnchorWallClockMillis;
+
+    /**
+     * @param sampleRate            sample rate of the session in Hz
+     * @param anchorNanos           {@code SystemClock.elapsedRealtimeNanos()} time of sample 0
+     * @param anchorWallClockMillis wall clock time of sample 0 in milliseconds since the epoch
+     */
+    SampleClock(int sampleRate, long anchorNanos, long anchorWallClockMillis) {
+        this.mSampleRate = sampleRate;
+        this.mAnchorNanos = anchorNanos;
+        this.mAnchorWallClockMillis = anchorWallClockMillis;
+    }
+
+    int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * Duration of the given number of samples in nanoseconds, without overflowing for
+     * sessions that run for years.
+     */
+    static long samplesToNanos(long samples, int sampleRate) {
+        long seconds = samples / sampleRate;
+        long remainder = samples % sampleRate;
+        return seconds * NANOS_PER_SECOND + remainder * NANOS_PER_SECOND / sampleRate;
+    }
+
+    long samplesToNanos(long samples) {
+        return samplesToNanos(samples, mSampleRate);
+    }
+
+    long nanosAt(long sampleIndex) {
+        return mAnchorNanos + samplesToNanos(sampleIndex);
+    }
+
+    long wallClockMillisAt(long sampleIndex) {
+        return mAnchorWallClockMillis + samplesToNanos(sampleIndex) / 1000000L;
+    }
+}
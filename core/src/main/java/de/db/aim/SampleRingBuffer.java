@@ -0,0 +1,266 @@
+package de.db.aim;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Circular buffer of captured samples, written by the capture thread and read through
+ * {@link AudioFrame} views without copying whole frames.
+ * <p>
+ * Samples are stored interleaved in native byte order as described by the buffer's
+ * {@link PcmFormat}; one sample comprises a value for every channel. Positions are
+ * absolute sample indices of the capture session. The writer claims a region before
+ * filling it and commits it afterwards; readers copy a region and then check that the
+ * writer has not claimed it again in the meantime. A reader that falls behind by more
+ * than the capacity gets {@code false} instead of corrupted samples.
+ * <p>
+ * A direct buffer can be filled in place with {@code AudioRecord.read(ByteBuffer, int)}
+ * through {@link #writeBuffer()}. Write positions are expected to advance in multiples of
+ * the granularity given at construction, so the slices handed to the writer are created
+ * once and reused.
+ */
+class SampleRingBuffer {
+
+    private final PcmFormat mFormat;
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+    private final int mBytesPerSample;
+    private final int mGranularity;
+    private final ByteBuffer[] mWriteSlices;
+    private final ThreadLocal<ByteBuffer> mReadViews = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return mBuffer.duplicate();
+        }
+    };
+    private volatile long mWritePosition;
+    private volatile long mClaimPosition;
+    // Position after the last committed sample that was not digital silence, writer only
+    private long mSoundEndPosition;
+
+    /**
+     * @param capacity    capacity in samples, rounded up to a multiple of the granularity
+     * @param granularity number of samples the write position usually advances by
+     * @param direct      whether to allocate a direct buffer
+     */
+    SampleRingBuffer(PcmFormat format, int capacity, int granularity, boolean direct) {
+        this.mFormat = format;
+        this.mGranularity = granularity;
+        this.mCapacity = (capacity + granularity - 1) / granularity * granularity;
+        this.mBytesPerSample = format.getBytesPerFrame();
+        if (direct) {
+            this.mBuffer = ByteBuffer.allocateDirect(mCapacity * mBytesPerSample).order(ByteOrder.nativeOrder());
+            this.mWriteSlices = new ByteBuffer[mCapacity / granularity];
+        } else {
+            this.mBuffer = ByteBuffer.allocate(mCapacity * mBytesPerSample).order(ByteOrder.nativeOrder());
+            this.mWriteSlices = null;
+        }
+    }
+
+    boolean isDirect() {
+        return mBuffer.isDirect();
+    }
+
+    PcmFormat getFormat() {
+        return mFormat;
+    }
+
+    int capacity() {
+        return mCapacity;
+    }
+
+    long getWritePosition() {
+        return mWritePosition;
+    }
+
+    /**
+     * Array to be filled by the writer, starting at {@link #writeByteOffset()}.
+     */
+    byte[] array() {
+        return mBuffer.array();
+    }
+
+    /**
+     * Buffer starting at the write offset and ending at the end of the ring, to be filled
+     * by the writer. Only available for direct buffers.
+     */
+    ByteBuffer writeBuffer() {
+        int offset = writeOffset();
+        if (offset % mGranularity != 0) {
+            return slice(offset);
+        }
+        int index = offset / mGranularity;
+        if (mWriteSlices[index] == null) {
+            mWriteSlices[index] = slice(offset);
+        }
+        return mWriteSlices[index];
+    }
+
+    private ByteBuffer slice(int offset) {
+        ByteBuffer duplicate = mBuffer.duplicate();
+        duplicate.position(offset * mBytesPerSample);
+        return duplicate.slice().order(ByteOrder.nativeOrder());
+    }
+
+    int writeOffset() {
+        return (int) (mWritePosition % mCapacity);
+    }
+
+    int writeByteOffset() {
+        return mBuffer.arrayOffset() + writeOffset() * mBytesPerSample;
+    }
+
+    /**
+     * Number of samples that can be written without wrapping around.
+     */
+    int contiguousWritableSamples() {
+        return mCapacity - writeOffset();
+    }
+
+    void claim(int samples) {
+        mClaimPosition = mWritePosition + samples;
+    }
+
+    /**
+     * Stores interleaved float values at the write offset; the samples still have to be
+     * committed.
+     */
+    void put(float[] source, int samples) {
+        int byteIndex = writeOffset() * mBytesPerSample;
+        int values = samples * mFormat.getChannelCount();
+        for (int i = 0; i < values; i++) {
+            mBuffer.putFloat(byteIndex, source[i]);
+            byteIndex += 4;
+        }
+    }
+
+    void commit(int samples) {
+        long position = mWritePosition;
+        int lastSound = lastNonZeroSample(writeOffset(), samples);
+        if (lastSound >= 0) {
+            mSoundEndPosition = position + lastSound + 1;
+        }
+        mWritePosition = position + samples;
+    }
+
+    /**
+     * Whether every sample committed from {@code position} on is digital silence, all
+     * bits zero. Only meaningful on the writer's thread.
+     */
+    boolean isSilentFrom(long position) {
+        return mSoundEndPosition <= position;
+    }
+
+    /**
+     * Index of the last sample of a region that has a non-zero byte, or -1. Scans
+     * backwards, so regions with sound near their end are checked quickly.
+     */
+    private int lastNonZeroSample(int offset, int samples) {
+        int start = offset * mBytesPerSample;
+        int end = start + samples * mBytesPerSample;
+        if (mBuffer.hasArray()) {
+            byte[] array = mBuffer.array();
+            int arrayOffset = mBuffer.arrayOffset();
+            for (int i = end - 1; i >= start; i--) {
+                if (array[arrayOffset + i] != 0) {
+                    return (i - start) / mBytesPerSample;
+                }
+            }
+        } else {
+            for (int i = end - 1; i >= start; i--) {
+                if (mBuffer.get(i) != 0) {
+                    return (i - start) / mBytesPerSample;
+                }
+            }
+        }
+        return -1;
+    }
+
+    boolean read(long position, short[] destination, int destinationOffset, int length) {
+        if (!isReadable(position, length)) {
+            return false;
+        }
+        int byteIndex = (int) (position % mCapacity) * mBytesPerSample;
+        int values = length * mFormat.getChannelCount();
+        int bufferSize = mBuffer.capacity();
+        if (mFormat.getEncoding() == PcmFormat.Encoding.PCM_16BIT) {
+            for (int i = 0; i < values; i++) {
+                destination[destinationOffset + i] = mBuffer.getShort(byteIndex);
+                byteIndex += 2;
+                if (byteIndex == bufferSize) {
+                    byteIndex = 0;
+                }
+            }
+        } else {
+            for (int i = 0; i < values; i++) {
+                destination[destinationOffset + i] = toShort(mBuffer.getFloat(byteIndex));
+                byteIndex += 4;
+                if (byteIndex == bufferSize) {
+                    byteIndex = 0;
+                }
+            }
+        }
+        return isIntact(position);
+    }
+
+    boolean read(long position, float[] destination, int destinationOffset, int length) {
+        if (!isReadable(position, length)) {
+            return false;
+        }
+        int byteIndex = (int) (position % mCapacity) * mBytesPerSample;
+        int values = length * mFormat.getChannelCount();
+        int bufferSize = mBuffer.capacity();
+        if (mFormat.getEncoding() == PcmFormat.Encoding.PCM_16BIT) {
+            for (int i = 0; i < values; i++) {
+                destination[destinationOffset + i] = mBuffer.getShort(byteIndex) / 32768f;
+                byteIndex += 2;
+                if (byteIndex == bufferSize) {
+                    byteIndex = 0;
+                }
+            }
+        } else {
+            for (int i = 0; i < values; i++) {
+                destination[destinationOffset + i] = mBuffer.getFloat(byteIndex);
+                byteIndex += 4;
+                if (byteIndex == bufferSize) {
+                    byteIndex = 0;
+                }
+            }
+        }
+        return isIntact(position);
+    }
+
+    /**
+     * Copies the samples in their stored encoding and native byte order.
+     */
+    boolean read(long position, ByteBuffer destination, int length) {
+        if (!isReadable(position, length)) {
+            return false;
+        }
+        int offset = (int) (position % mCapacity);
+        int firstPart = Math.min(length, mCapacity - offset);
+        ByteBuffer view = mReadViews.get();
+        view.limit((offset + firstPart) * mBytesPerSample).position(offset * mBytesPerSample);
+        destination.put(view);
+        view.limit((length - firstPart) * mBytesPerSample).position(0);
+        destination.put(view);
+        return isIntact(position);
+    }
+
+    private boolean isReadable(long position, int length) {
+        return position + length <= mWritePosition && isIntact(position);
+    }
+
+    private boolean isIntact(long position) {
+        return mClaimPosition - position <= mCapacity;
+    }
+
+    static short toShort(float value) {
+        if (value >= 1f) {
+            return Short.MAX_VALUE;
+        } else if (value <= -1f) {
+            return Short.MIN_VALUE;
+        }
+        return (short) (value * 32768f);
+    }
+}
@@ -0,0 +1,393 @@
+package de.db.aim;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent index of finished audio files, ordered by start time.
+ * <p>
+ * On disk the index is an append-only log of checksummed records that add or remove a
+ * segment. The log is replayed into memory on startup; a record that was only partially
+ * written when the process died is detected by its checksum and cut off. Once removals
+ * outnumber the live segments, the log is compacted by rewriting the live segments into
+ * a new file that replaces the old one.
+ * <p>
+ * In memory the segments are kept in a list sorted by start time. Lookups by time are
+ * binary searches; removing the oldest segment, the common case for retention, is O(1).
+ */
+public class SegmentIndex implements Closeable {
+
+    private static final int MAGIC = 0x41494d58; // "AIMX"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private long mLength;
+    private final ArrayList<AudioSegment> mSegments = new ArrayList<AudioSegment>();
+    // Entries before this index have been removed
+    private int mFirst;
+    private int mRemovedEntries;
+    private final HashMap<String, AudioSegment> mByPath = new HashMap<String, AudioSegment>();
+    private long mMaxDurationMillis;
+    private long mTotalBytes;
+    private int mRemoveRecords;
+    private ByteBuffer mRecordBuffer = ByteBuffer.allocate(512);
+    private final CRC32 mCrc = new CRC32();
+    private final boolean mIncomplete;
+
+    /**
+     * Opens the index in {@code file}, replaying and repairing an existing log.
+     */
+    public SegmentIndex(File file) throws IOException {
+        this.mFile = file;
+        long validLength = file.exists() ? replay(file) : 0;
+        this.mIncomplete = validLength < Math.max(HEADER_LENGTH, file.length());
+        openLog(validLength);
+    }
+
+    /**
+     * Whether files may be missing from the index because the log did not exist, had an
+     * invalid header or was cut off when the index was opened.
+     */
+    public boolean isIncomplete() {
+        return mIncomplete;
+    }
+
+    public synchronized void add(AudioSegment segment) throws IOException {
+        checkOpen();
+        writeRecord(encodeAdd(segment));
+        insert(segment);
+    }
+
+    /**
+     * Removes the segment with the given path from the index. The file itself is not touched.
+     *
+     * @return false if there is no such segment
+     */
+    public synchronized boolean remove(String path) throws IOException {
+        checkOpen();
+        if (!mByPath.containsKey(path)) {
+            return false;
+        }
+        writeRecord(encodeRemove(path));
+        delete(path);
+        mRemoveRecords++;
+        if (mRemoveRecords >= MIN_COMPACTION_RECORDS && mRemoveRecords > mByPath.size()) {
+            compact();
+        }
+        return true;
+    }
+
+    /**
+     * Segments that overlap the range from {@code fromMillis} (inclusive) to
+     * {@code toMillis} (exclusive), ordered by start time.
+     */
+    public synchronized List<AudioSegment> find(long fromMillis, long toMillis) {
+        List<AudioSegment> result = new ArrayList<AudioSegment>();
+        int index = lowerBound(fromMillis - mMaxDurationMillis);
+        for (int i = index; i < mSegments.size(); i++) {
+            AudioSegment segment = mSegments.get(i);
+            if (segment.getStartMillis() >= toMillis) {
+                break;
+            }
+            if (!segment.mRemoved && segment.getEndMillis() > fromMillis) {
+                result.add(segment);
+            }
+        }
+        return result;
+    }
+
+    public synchronized AudioSegment get(String path) {
+        return mByPath.get(path);
+    }
+
+    /**
+     * The segment with the earliest start time, or {@code null} if the index is empty.
+     */
+    public synchronized AudioSegment oldest() {
+        return mFirst < mSegments.size() ? mSegments.get(mFirst) : null;
+    }
+
+    public synchronized int size() {
+        return mByPath.size();
+    }
+
+    /**
+     * Sum of the sizes of all indexed files.
+     */
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Rewrites the log with the live segments only.
+     */
+    public synchronized void compact() throws IOException {
+        checkOpen();
+        File compacted = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile file = new RandomAccessFile(compacted, "rw");
+        long length;
+        try {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            length = write(channel, 0, header());
+            for (int i = mFirst; i < mSegments.size(); i++) {
+                AudioSegment segment = mSegments.get(i);
+                if (!segment.mRemoved) {
+                    length = write(channel, length, encodeAdd(segment));
+                }
+            }
+            channel.force(true);
+        } finally {
+            file.close();
+        }
+        mRandomAccessFile.close();
+        if (!compacted.renameTo(mFile)) {
+            compacted.delete();
+            openLog(mLength);
+            throw new IOException("Cannot replace " + mFile + " with compacted index");
+        }
+        openLog(length);
+        mRemoveRecords = 0;
+        rebuildList();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mRandomAccessFile == null) {
+            return;
+        }
+        try {
+            mChannel.force(true);
+        } finally {
+            mRandomAccessFile.close();
+            mRandomAccessFile = null;
+        }
+    }
+
+    private void checkOpen() {
+        if (mRandomAccessFile == null) {
+            throw new IllegalStateException("Index has been closed");
+        }
+    }
+
+    private void openLog(long validLength) throws IOException {
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+        if (validLength < HEADER_LENGTH) {
+            mRandomAccessFile.setLength(0);
+            mLength = write(mChannel, 0, header());
+        } else {
+            // Cuts off a record that was torn when the process died
+            mRandomAccessFile.setLength(validLength);
+            mLength = validLength;
+        }
+    }
+
+    /**
+     * Applies all intact records of the log to the in-memory index.
+     *
+     * @return the length of the intact part of the log
+     */
+    private long replay(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        long validLength = 0;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return 0;
+            }
+            validLength = HEADER_LENGTH;
+            byte[] body = new byte[512];
+            while (true) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                    return validLength;
+                }
+                if (body.length < length) {
+                    body = new byte[length];
+                }
+                in.readFully(body, 0, length);
+                mCrc.reset();
+                mCrc.update(body, 0, length);
+                if (in.readInt() != (int) mCrc.getValue()) {
+                    return validLength;
+                }
+                apply(ByteBuffer.wrap(body, 0, length));
+                validLength += 4 + length + 4;
+            }
+        } catch (EOFException e) {
+            return validLength;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void apply(ByteBuffer body) {
+        byte type = body.get();
+        if (type == RECORD_ADD) {
+            long start = body.getLong();
+            long duration = body.getLong();
+            long size = body.getLong();
+            String codec = getString(body);
+            String path = getString(body);
+            insert(new AudioSegment(start, duration, path, size, codec));
+        } else if (type == RECORD_REMOVE) {
+            delete(getString(body));
+            mRemoveRecords++;
+        }
+    }
+
+    private void insert(AudioSegment segment) {
+        delete(segment.getPath());
+        int size = mSegments.size();
+        if (size == mFirst || mSegments.get(size - 1).getStartMillis() <= segment.getStartMillis()) {
+            mSegments.add(segment);
+        } else {
+            int index = lowerBound(segment.getStartMillis() + 1);
+            if (index == mFirst && mFirst > 0) {
+                mSegments.set(--mFirst, segment);
+            } else {
+                mSegments.add(index, segment);
+            }
+        }
+        mByPath.put(segment.getPath(), segment);
+        mMaxDurationMillis = Math.max(mMaxDurationMillis, segment.getDurationMillis());
+        mTotalBytes += segment.getSize();
+    }
+
+    private void delete(String path) {
+        AudioSegment segment = mByPath.remove(path);
+        if (segment == null) {
+            return;
+        }
+        segment.mRemoved = true;
+        mTotalBytes -= segment.getSize();
+        mRemovedEntries++;
+        while (mFirst < mSegments.size() && mSegments.get(mFirst).mRemoved) {
+            mSegments.set(mFirst++, null);
+            mRemovedEntries--;
+        }
+        if (mFirst > MIN_COMPACTION_RECORDS && mFirst > mSegments.size() / 2) {
+            mSegments.subList(0, mFirst).clear();
+            mFirst = 0;
+        }
+        if (mRemovedEntries > MIN_COMPACTION_RECORDS && mRemovedEntries > mByPath.size()) {
+            rebuildList();
+        }
+    }
+
+    private void rebuildList() {
+        ArrayList<AudioSegment> live = new ArrayList<AudioSegment>(mByPath.size());
+        for (int i = mFirst; i < mSegments.size(); i++) {
+            if (!mSegments.get(i).mRemoved) {
+                live.add(mSegments.get(i));
+            }
+        }
+        mSegments.clear();
+        mSegments.addAll(live);
+        mFirst = 0;
+        mRemovedEntries = 0;
+    }
+
+    /**
+     * Index of the first entry starting at or after {@code startMillis}.
+     */
+    private int lowerBound(long startMillis) {
+        int low = mFirst;
+        int high = mSegments.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mSegments.get(middle).getStartMillis() < startMillis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        return header;
+    }
+
+    private ByteBuffer encodeAdd(AudioSegment segment) {
+        byte[] codec = segment.getCodec().getBytes(UTF_8);
+        byte[] path = segment.getPath().getBytes(UTF_8);
+        ByteBuffer body = startRecord(1 + 3 * 8 + 2 + codec.length + 2 + path.length);
+        body.put(RECORD_ADD);
+        body.putLong(segment.getStartMillis());
+        body.putLong(segment.getDurationMillis());
+        body.putLong(segment.getSize());
+        body.putShort((short) codec.length).put(codec);
+        body.putShort((short) path.length).put(path);
+        return finishRecord(body);
+    }
+
+    private ByteBuffer encodeRemove(String path) {
+        byte[] bytes = path.getBytes(UTF_8);
+        ByteBuffer body = startRecord(1 + 2 + bytes.length);
+        body.put(RECORD_REMOVE);
+        body.putShort((short) bytes.length).put(bytes);
+        return finishRecord(body);
+    }
+
+    private ByteBuffer startRecord(int bodyLength) {
+        if (bodyLength > MAX_RECORD_LENGTH) {
+            throw new IllegalArgumentException("Record of " + bodyLength + " bytes is too long");
+        }
+        if (mRecordBuffer.capacity() < bodyLength + 8) {
+            mRecordBuffer = ByteBuffer.allocate(bodyLength + 8);
+        }
+        mRecordBuffer.clear();
+        mRecordBuffer.putInt(bodyLength);
+        return mRecordBuffer;
+    }
+
+    private ByteBuffer finishRecord(ByteBuffer record) {
+        mCrc.reset();
+        mCrc.update(record.array(), 4, record.position() - 4);
+        record.putInt((int) mCrc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private void writeRecord(ByteBuffer record) throws IOException {
+        mLength = write(mChannel, mLength, record);
+    }
+
+    private static long write(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return position;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xffff;
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
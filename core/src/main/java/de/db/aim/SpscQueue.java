@@ -0,0 +1,53 @@
+package de.db.aim;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread.
+ * Neither side ever blocks: {@link #offer(Object)} fails when the queue is full and
+ * {@link #poll()} returns {@code null} when it is empty.
+ */
+class SpscQueue<E> {
+
+    private final Object[] mBuffer;
+    private final int mMask;
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+
+    SpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mBuffer = new Object[size];
+        mMask = size - 1;
+    }
+
+    boolean offer(E element) {
+        long tail = mTail.get();
+        if (tail - mHead.get() >= mBuffer.length) {
+            return false;
+        }
+        mBuffer[(int) (tail & mMask)] = element;
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long head = mHead.get();
+        if (head >= mTail.get()) {
+            return null;
+        }
+        int index = (int) (head & mMask);
+        E element = (E) mBuffer[index];
+        mBuffer[index] = null;
+        mHead.lazySet(head + 1);
+        return element;
+    }
+
+    int size() {
+        return (int) Math.max(0, mTail.get() - mHead.get());
+    }
+
+    int capacity() {
+        return mBuffer.length;
+    }
+}
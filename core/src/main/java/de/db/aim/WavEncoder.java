@@ -0,0 +1,62 @@
+package de.db.aim;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes uncompressed WAV files through a {@link WavWriter}.
+ */
+public class WavEncoder implements EncoderBackend {
+
+    public static final String MIME_TYPE = "audio/wav";
+
+    private WavWriter mWriter;
+
+    @Override
+    public String getMimeType() {
+        return MIME_TYPE;
+    }
+
+    @Override
+    public String getFileExtension() {
+        return "wav";
+    }
+
+    @Override
+    public PcmFormat getOutputFormat(PcmFormat format) {
+        return format;
+    }
+
+    @Override
+    public void start(File file, PcmFormat format) throws IOException {
+        if (mWriter != null) {
+            throw new IllegalStateException("Previous file has not been finished");
+        }
+        mWriter = new WavWriter(file, format);
+    }
+
+    @Override
+    public boolean encode(AudioFrame frame, int offset, int length) throws IOException {
+        if (mWriter == null) {
+            throw new IllegalStateException("No file has been started");
+        }
+        return mWriter.write(frame, offset, length);
+    }
+
+    @Override
+    public long getSampleCount() {
+        return mWriter == null ? 0 : mWriter.getSampleCount();
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.close();
+        } finally {
+            mWriter = null;
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package de.db.aim;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Appends PCM samples to a WAV file through a {@link FileChannel}. The sizes in the
+ * header are written when the writer is closed, so recordings of any length can be
+ * written with constant memory.
+ * <p>
+ * The header reserves a {@code JUNK} chunk right after the RIFF header. If the file grows
+ * beyond 4 GB it is turned into the {@code ds64} chunk of an RF64 file (EBU Tech 3306)
+ * on close; smaller files stay plain RIFF WAVE files.
+ */
+public class WavWriter implements Closeable {
+
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_IEEE_FLOAT = 3;
+    private static final int DS64_OFFSET = 12;
+    private static final int DS64_SIZE = 28;
+    private static final int FMT_OFFSET = DS64_OFFSET + 8 + DS64_SIZE;
+    private static final int DATA_OFFSET = FMT_OFFSET + 8 + 16;
+    private static final int HEADER_LENGTH = DATA_OFFSET + 8;
+    private static final long MAX_RIFF_SIZE = 0xffffffffL;
+
+    private static final int CONVERSION_BUFFER_SIZE = 64 * 1024;
+    private static final int CONVERSION_BUFFER_POOL_SIZE = 4;
+    private static final ArrayBlockingQueue<ByteBuffer> sConversionBuffers =
+            new ArrayBlockingQueue<ByteBuffer>(CONVERSION_BUFFER_POOL_SIZE);
+
+    private final PcmFormat mFormat;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final ShortBuffer mShortView;
+    private final FloatBuffer mFloatView;
+    private long mDataSize;
+    private boolean mClosed;
+
+    public WavWriter(File file, PcmFormat format) throws IOException {
+        this.mFormat = format;
+        this.mFile = new RandomAccessFile(file, "rw");
+        this.mChannel = mFile.getChannel();
+        ByteBuffer buffer = sConversionBuffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(CONVERSION_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.clear();
+        this.mBuffer = buffer;
+        this.mShortView = buffer.asShortBuffer();
+        this.mFloatView = buffer.asFloatBuffer();
+        try {
+            mChannel.truncate(0);
+            writeHeader(false);
+        } catch (IOException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    public PcmFormat getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Number of bytes of sample data written so far.
+     */
+    public long getDataSize() {
+        return mDataSize;
+    }
+
+    public long getSampleCount() {
+        return mDataSize / mFormat.getBytesPerFrame();
+    }
+
+    /**
+     * Appends interleaved 16 bit values. Only valid for {@link PcmFormat.Encoding#PCM_16BIT}.
+     */
+    public void write(short[] values, int offset, int length) throws IOException {
+        checkWritable(PcmFormat.Encoding.PCM_16BIT);
+        int end = offset + length;
+        while (offset < end) {
+            int count = Math.min(end - offset, mShortView.capacity());
+            mShortView.clear();
+            mShortView.put(values, offset, count);
+            writeBuffer(2 * count);
+            offset += count;
+        }
+    }
+
+    /**
+     * Appends interleaved float values. Only valid for {@link PcmFormat.Encoding#PCM_FLOAT}.
+     */
+    public void write(float[] values, int offset, int length) throws IOException {
+        checkWritable(PcmFormat.Encoding.PCM_FLOAT);
+        int end = offset + length;
+        while (offset < end) {
+            int count = Math.min(end - offset, mFloatView.capacity());
+            mFloatView.clear();
+            mFloatView.put(values, offset, count);
+            writeBuffer(4 * count);
+            offset += count;
+        }
+    }
+
+    /**
+     * Appends the samples of a frame, which has to be in the format of this writer.
+     *
+     * @return false if the samples of the frame had already been overwritten, in which
+     * case nothing has been written
+     */
+    public boolean write(AudioFrame frame) throws IOException {
+        return write(frame, 0, frame.getSampleCount());
+    }
+
+    /**
+     * Appends {@code length} samples of a frame, starting at sample {@code offset}.
+     *
+     * @see #write(AudioFrame)
+     */
+    public boolean write(AudioFrame frame, int offset, int length) throws IOException {
+        checkWritable(frame.getFormat().getEncoding());
+        if (!mFormat.equals(frame.getFormat())) {
+            throw new IllegalArgumentException("Frame format " + frame.getFormat() + " does not match " + mFormat);
+        }
+        int samplesPerChunk = mBuffer.capacity() / mFormat.getBytesPerFrame();
+        long start = mDataSize;
+        int end = offset + length;
+        for (; offset < end; offset += samplesPerChunk) {
+            int samples = Math.min(end - offset, samplesPerChunk);
+            mBuffer.clear();
+            if (!frame.copyTo(offset, mBuffer, samples)) {
+                truncateTo(start);
+                return false;
+            }
+            if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+                swapByteOrder(mBuffer, mFormat.getBytesPerSample());
+            }
+            writeBuffer(samples * mFormat.getBytesPerFrame());
+        }
+        return true;
+    }
+
+    /**
+     * Writes the final sizes into the header and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        try {
+            writeHeader(HEADER_LENGTH - 8 + mDataSize > MAX_RIFF_SIZE);
+            mChannel.force(false);
+        } finally {
+            closeQuietly();
+        }
+    }
+
+    private void checkWritable(PcmFormat.Encoding encoding) {
+        if (mClosed) {
+            throw new IllegalStateException("Writer has been closed");
+        }
+        if (encoding != mFormat.getEncoding()) {
+            throw new IllegalArgumentException("Cannot write " + encoding + " samples to a " + mFormat.getEncoding() + " file");
+        }
+    }
+
+    private void writeBuffer(int length) throws IOException {
+        mBuffer.clear().limit(length);
+        long position = HEADER_LENGTH + mDataSize;
+        while (mBuffer.hasRemaining()) {
+            position += mChannel.write(mBuffer, position);
+        }
+        mDataSize += length;
+    }
+
+    private void truncateTo(long dataSize) throws IOException {
+        mChannel.truncate(HEADER_LENGTH + dataSize);
+        mDataSize = dataSize;
+    }
+
+    private static void swapByteOrder(ByteBuffer buffer, int bytesPerSample) {
+        for (int i = 0; i + bytesPerSample <= buffer.position(); i += bytesPerSample) {
+            for (int j = 0; j < bytesPerSample / 2; j++) {
+                byte b = buffer.get(i + j);
+                buffer.put(i + j, buffer.get(i + bytesPerSample - 1 - j));
+                buffer.put(i + bytesPerSample - 1 - j, b);
+            }
+        }
+    }
+
+    private void writeHeader(boolean rf64) throws IOException {
+        long riffSize = HEADER_LENGTH - 8 + mDataSize;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        putTag(header, rf64 ? "RF64" : "RIFF");
+        header.putInt((int) (rf64 ? MAX_RIFF_SIZE : riffSize));
+        putTag(header, "WAVE");
+        putTag(header, rf64 ? "ds64" : "JUNK");
+        header.putInt(DS64_SIZE);
+        if (rf64) {
+            header.putLong(riffSize);
+            header.putLong(mDataSize);
+            header.putLong(getSampleCount());
+            header.putInt(0); // no table entries
+        } else {
+            header.position(header.position() + DS64_SIZE);
+        }
+        putTag(header, "fmt ");
+        header.putInt(16);
+        header.putShort((short) (mFormat.getEncoding() == PcmFormat.Encoding.PCM_FLOAT ? FORMAT_IEEE_FLOAT : FORMAT_PCM));
+        header.putShort((short) mFormat.getChannelCount());
+        header.putInt(mFormat.getSampleRate());
+        header.putInt(mFormat.getByteRate());
+        header.putShort((short) mFormat.getBytesPerFrame());
+        header.putShort((short) mFormat.getBitsPerSample());
+        putTag(header, "data");
+        header.putInt((int) (rf64 ? MAX_RIFF_SIZE : mDataSize));
+        header.flip();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += mChannel.write(header, position);
+        }
+    }
+
+    private static void putTag(ByteBuffer buffer, String tag) {
+        for (int i = 0; i < 4; i++) {
+            buffer.put((byte) tag.charAt(i));
+        }
+    }
+
+    private void closeQuietly() {
+        mClosed = true;
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            // Already failing or closing, the first error is the one that matters
+        }
+        sConversionBuffers.offer(mBuffer);
+    }
+}
@@ -0,0 +1,229 @@
+package de.db.aim;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes samples with {@link FlacEncoder} and decodes them again with {@link FlacReader},
+ * which checks the frame CRCs on the way.
+ */
+public class FlacEncoderTest {
+
+    private static final int CHANNELS_INDEPENDENT_STEREO = 1;
+    private static final int CHANNELS_LEFT_SIDE = 8;
+    private static final int CHANNELS_RIGHT_SIDE = 9;
+    private static final int CHANNELS_MID_SIDE = 10;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(42);
+
+    @Test
+    public void monoNoise() throws IOException {
+        short[] samples = noise(1, 3 * FlacEncoder.DEFAULT_BLOCK_SIZE, 32767);
+        roundTrip(44100, 1, FlacEncoder.DEFAULT_BLOCK_SIZE, samples);
+    }
+
+    @Test
+    public void monoTonePredicted() throws IOException {
+        short[] samples = new short[4 * FlacEncoder.DEFAULT_BLOCK_SIZE];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) (12000 * Math.sin(2 * Math.PI * 440 * i / 48000.0)
+                    + 3000 * Math.sin(2 * Math.PI * 3100 * i / 48000.0)
+                    + mRandom.nextInt(9) - 4);
+        }
+        FlacReader reader = roundTrip(48000, 1, FlacEncoder.DEFAULT_BLOCK_SIZE, samples);
+        assertTrue(reader.subframeTypes.contains(32));
+    }
+
+    @Test
+    public void stereoNoise() throws IOException {
+        short[] samples = noise(2, 2 * FlacEncoder.DEFAULT_BLOCK_SIZE, 20000);
+        FlacReader reader = roundTrip(48000, 2, FlacEncoder.DEFAULT_BLOCK_SIZE, samples);
+        assertTrue(reader.channelAssignments.contains(CHANNELS_INDEPENDENT_STEREO));
+    }
+
+    @Test
+    public void threeChannels() throws IOException {
+        short[] samples = noise(3, 2 * FlacEncoder.DEFAULT_BLOCK_SIZE + 500, 10000);
+        FlacReader reader = roundTrip(16000, 3, FlacEncoder.DEFAULT_BLOCK_SIZE, samples);
+        assertEquals(1, reader.channelAssignments.size());
+        assertTrue(reader.channelAssignments.contains(2));
+    }
+
+    @Test
+    public void silence() throws IOException {
+        FlacReader reader = roundTrip(44100, 2, FlacEncoder.DEFAULT_BLOCK_SIZE, new short[2 * 10000]);
+        assertEquals(1, reader.subframeTypes.size());
+        assertTrue(reader.subframeTypes.contains(0));
+    }
+
+    @Test
+    public void constant() throws IOException {
+        short[] samples = new short[2 * 5000];
+        for (int i = 0; i < samples.length; i += 2) {
+            samples[i] = -1234;
+            samples[i + 1] = 32767;
+        }
+        FlacReader reader = roundTrip(44100, 2, FlacEncoder.DEFAULT_BLOCK_SIZE, samples);
+        assertTrue(reader.subframeTypes.contains(0));
+    }
+
+    @Test
+    public void fullScaleSide() throws IOException {
+        // The side channel of opposite full scale values needs 17 bits
+        short[] samples = new short[2 * 3000];
+        for (int i = 0; i < samples.length; i += 2) {
+            boolean high = (i / 2) % 7 < 3;
+            samples[i] = high ? Short.MAX_VALUE : Short.MIN_VALUE;
+            samples[i + 1] = high ? Short.MIN_VALUE : Short.MAX_VALUE;
+        }
+        roundTrip(44100, 2, 1024, samples);
+    }
+
+    @Test
+    public void leftSide() throws IOException {
+        short[] samples = correlatedStereo(false);
+        FlacReader reader = roundTrip(48000, 2, FlacEncoder.DEFAULT_BLOCK_SIZE, samples);
+        assertTrue(reader.channelAssignments.contains(CHANNELS_LEFT_SIDE));
+    }
+
+    @Test
+    public void rightSide() throws IOException {
+        short[] samples = correlatedStereo(true);
+        FlacReader reader = roundTrip(48000, 2, FlacEncoder.DEFAULT_BLOCK_SIZE, samples);
+        assertTrue(reader.channelAssignments.contains(CHANNELS_RIGHT_SIDE));
+    }
+
+    @Test
+    public void midSide() throws IOException {
+        // Smooth sum of the channels, noisy difference
+        int n = 3 * FlacEncoder.DEFAULT_BLOCK_SIZE;
+        short[] samples = new short[2 * n];
+        for (int i = 0; i < n; i++) {
+            int mid = (int) (10000 * Math.sin(2 * Math.PI * 200 * i / 48000.0));
+            int difference = mRandom.nextInt(2001) - 1000;
+            samples[2 * i] = (short) (mid + difference);
+            samples[2 * i + 1] = (short) (mid - difference);
+        }
+        FlacReader reader = roundTrip(48000, 2, FlacEncoder.DEFAULT_BLOCK_SIZE, samples);
+        assertTrue(reader.channelAssignments.contains(CHANNELS_MID_SIDE));
+    }
+
+    @Test
+    public void shortFinalBlock() throws IOException {
+        roundTrip(44100, 2, FlacEncoder.DEFAULT_BLOCK_SIZE, noise(2, 2 * FlacEncoder.DEFAULT_BLOCK_SIZE + 100, 5000));
+        roundTrip(44100, 2, FlacEncoder.DEFAULT_BLOCK_SIZE, noise(2, FlacEncoder.DEFAULT_BLOCK_SIZE + 3000, 5000));
+        // Too short for any predictor
+        roundTrip(44100, 1, FlacEncoder.DEFAULT_BLOCK_SIZE, noise(1, FlacEncoder.DEFAULT_BLOCK_SIZE + 3, 5000));
+        roundTrip(44100, 2, FlacEncoder.DEFAULT_BLOCK_SIZE, noise(2, 1, 5000));
+    }
+
+    @Test
+    public void blockSizesWithoutCode() throws IOException {
+        roundTrip(44100, 1, 1000, noise(1, 4500, 3000));
+        roundTrip(44100, 2, 192, noise(2, 1000, 3000));
+        roundTrip(44100, 2, 65535, noise(2, 70000, 3000));
+    }
+
+    @Test
+    public void multiByteFrameNumbers() throws IOException {
+        FlacReader reader = roundTrip(8000, 1, 16, noise(1, 16 * 3000 + 5, 1000));
+        assertEquals(3001, reader.frames);
+    }
+
+    @Test
+    public void sampleRatesWithoutCode() throws IOException {
+        // In the frame header in Hz
+        roundTrip(11025, 1, FlacEncoder.DEFAULT_BLOCK_SIZE, noise(1, 6000, 3000));
+        roundTrip(37800, 2, FlacEncoder.DEFAULT_BLOCK_SIZE, noise(2, 6000, 3000));
+        // Only in the stream info
+        roundTrip(100000, 1, FlacEncoder.DEFAULT_BLOCK_SIZE, noise(1, 6000, 3000));
+    }
+
+    @Test
+    public void encoderIsReusable() throws IOException {
+        FlacEncoder encoder = new FlacEncoder(FlacEncoder.DEFAULT_BLOCK_SIZE);
+        roundTrip(encoder, 44100, 2, FlacEncoder.DEFAULT_BLOCK_SIZE, noise(2, 9000, 3000));
+        roundTrip(encoder, 16000, 1, FlacEncoder.DEFAULT_BLOCK_SIZE, noise(1, 5000, 3000));
+        roundTrip(encoder, 48000, 2, FlacEncoder.DEFAULT_BLOCK_SIZE, new short[2 * 100]);
+    }
+
+    @Test
+    public void emptyFile() throws IOException {
+        FlacReader reader = roundTrip(44100, 2, FlacEncoder.DEFAULT_BLOCK_SIZE, new short[0]);
+        assertEquals(0, reader.frames);
+    }
+
+    private FlacReader roundTrip(int sampleRate, int channels, int blockSize, short[] samples) throws IOException {
+        return roundTrip(new FlacEncoder(blockSize), sampleRate, channels, blockSize, samples);
+    }
+
+    private FlacReader roundTrip(FlacEncoder encoder, int sampleRate, int channels, int blockSize, short[] samples) throws IOException {
+        File file = mFolder.newFile();
+        encoder.start(file, new PcmFormat(sampleRate, channels, PcmFormat.Encoding.PCM_16BIT));
+        // Uneven pieces, so blocks are filled from more than one call
+        int length = samples.length / channels;
+        int offset = 0;
+        while (offset < length) {
+            int count = Math.min(length - offset, 1 + mRandom.nextInt(3 * blockSize));
+            encoder.encode(samples, offset, count);
+            offset += count;
+        }
+        assertEquals(length, encoder.getSampleCount());
+        encoder.finish();
+
+        FlacReader reader = new FlacReader(file);
+        short[] decoded = reader.decode();
+        assertEquals(sampleRate, reader.sampleRate);
+        assertEquals(channels, reader.channels);
+        assertEquals(16, reader.bitsPerSample);
+        assertEquals(length, reader.totalSamples);
+        assertEquals(blockSize, reader.minBlockSize);
+        assertEquals(blockSize, reader.maxBlockSize);
+        if (reader.frames > 0) {
+            assertEquals(reader.smallestFrame, reader.minFrameSize);
+            assertEquals(reader.largestFrame, reader.maxFrameSize);
+        }
+        assertEquals((length + blockSize - 1) / blockSize, reader.frames);
+        assertArrayEquals(samples, decoded);
+        return reader;
+    }
+
+    private short[] noise(int channels, int samples, int amplitude) {
+        short[] values = new short[channels * samples];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (short) (mRandom.nextInt(2 * amplitude + 1) - amplitude);
+        }
+        return values;
+    }
+
+    /**
+     * A random walk in one channel and the same walk plus a little noise in the other, so
+     * the side channel is cheap and the channel without the noise is the cheapest of the
+     * others.
+     */
+    private short[] correlatedStereo(boolean noisyLeft) {
+        int n = 3 * FlacEncoder.DEFAULT_BLOCK_SIZE;
+        short[] samples = new short[2 * n];
+        int walk = 0;
+        for (int i = 0; i < n; i++) {
+            walk += mRandom.nextInt(201) - 100;
+            walk = Math.max(-20000, Math.min(20000, walk));
+            int noisy = walk + mRandom.nextInt(101) - 50;
+            samples[2 * i] = (short) (noisyLeft ? noisy : walk);
+            samples[2 * i + 1] = (short) (noisyLeft ? walk : noisy);
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,395 @@
+package de.db.aim;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Minimal FLAC decoder for the tests, written from the format specification and
+ * independent of {@link FlacEncoder}. Checks the CRC-8 of every frame header and the
+ * CRC-16 of every frame while decoding, and fails on anything it does not expect.
+ */
+class FlacReader {
+
+    private static final int[] SAMPLE_RATES = {
+            0, 88200, 176400, 192000, 8000, 16000, 22050, 24000, 32000, 44100, 48000, 96000
+    };
+
+    private final byte[] mData;
+    private int mBitPosition;
+
+    int minBlockSize;
+    int maxBlockSize;
+    int minFrameSize;
+    int maxFrameSize;
+    int sampleRate;
+    int channels;
+    int bitsPerSample;
+    long totalSamples;
+    final byte[] md5 = new byte[16];
+    int frames;
+    int smallestFrame = Integer.MAX_VALUE;
+    int largestFrame;
+    final Set<Integer> channelAssignments = new HashSet<Integer>();
+    final Set<Integer> subframeTypes = new HashSet<Integer>();
+
+    FlacReader(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            mData = new byte[(int) in.length()];
+            in.readFully(mData);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Decodes the whole stream.
+     *
+     * @return the interleaved samples
+     */
+    short[] decode() throws IOException {
+        if (readBits(32) != 0x664c6143) {
+            throw new IOException("No fLaC marker");
+        }
+        boolean last;
+        do {
+            last = readBits(1) == 1;
+            int type = readBits(7);
+            int length = readBits(24);
+            if (type == 0) {
+                readStreamInfo(length);
+            } else {
+                mBitPosition += 8 * length;
+            }
+        } while (!last);
+
+        short[] samples = new short[(int) (totalSamples * channels)];
+        int decoded = 0;
+        while (mBitPosition < 8 * mData.length) {
+            int frameStart = mBitPosition / 8;
+            decoded += readFrame(samples, decoded);
+            smallestFrame = Math.min(smallestFrame, mBitPosition / 8 - frameStart);
+            largestFrame = Math.max(largestFrame, mBitPosition / 8 - frameStart);
+            frames++;
+        }
+        if (decoded != totalSamples) {
+            throw new IOException("Stream info announces " + totalSamples + " samples, frames hold " + decoded);
+        }
+        return samples;
+    }
+
+    private void readStreamInfo(int length) throws IOException {
+        if (length != 34) {
+            throw new IOException("Stream info of " + length + " bytes");
+        }
+        minBlockSize = readBits(16);
+        maxBlockSize = readBits(16);
+        minFrameSize = readBits(24);
+        maxFrameSize = readBits(24);
+        sampleRate = readBits(20);
+        channels = readBits(3) + 1;
+        bitsPerSample = readBits(5) + 1;
+        totalSamples = ((long) readBits(4) << 32) | (readBits(32) & 0xffffffffL);
+        for (int i = 0; i < md5.length; i++) {
+            md5[i] = (byte) readBits(8);
+        }
+    }
+
+    /**
+     * @return the number of samples in the frame
+     */
+    private int readFrame(short[] samples, int offset) throws IOException {
+        int frameStart = mBitPosition / 8;
+        if (readBits(15) != 0x7ffc) {
+            throw new IOException("Lost frame sync at byte " + frameStart);
+        }
+        if (readBits(1) != 0) {
+            throw new IOException("Variable block size stream");
+        }
+        int blockSizeCode = readBits(4);
+        int sampleRateCode = readBits(4);
+        int channelAssignment = readBits(4);
+        int sampleSizeCode = readBits(3);
+        if (readBits(1) != 0 || sampleSizeCode != 4) {
+            throw new IOException("Unexpected sample size code " + sampleSizeCode);
+        }
+        long frameNumber = readUtf8();
+        if (frameNumber != frames) {
+            throw new IOException("Frame number " + frameNumber + " instead of " + frames);
+        }
+        int n;
+        if (blockSizeCode == 1) {
+            n = 192;
+        } else if (blockSizeCode >= 2 && blockSizeCode <= 5) {
+            n = 576 << (blockSizeCode - 2);
+        } else if (blockSizeCode == 6) {
+            n = readBits(8) + 1;
+        } else if (blockSizeCode == 7) {
+            n = readBits(16) + 1;
+        } else if (blockSizeCode >= 8) {
+            n = 256 << (blockSizeCode - 8);
+        } else {
+            throw new IOException("Reserved block size code");
+        }
+        int rate;
+        if (sampleRateCode == 0) {
+            rate = sampleRate;
+        } else if (sampleRateCode < SAMPLE_RATES.length) {
+            rate = SAMPLE_RATES[sampleRateCode];
+        } else if (sampleRateCode == 12) {
+            rate = readBits(8) * 1000;
+        } else if (sampleRateCode == 13) {
+            rate = readBits(16);
+        } else if (sampleRateCode == 14) {
+            rate = readBits(16) * 10;
+        } else {
+            throw new IOException("Invalid sample rate code");
+        }
+        if (rate != sampleRate) {
+            throw new IOException("Frame sample rate " + rate + " differs from stream info " + sampleRate);
+        }
+        int headerEnd = mBitPosition / 8;
+        if (readBits(8) != crc8(frameStart, headerEnd)) {
+            throw new IOException("CRC-8 mismatch in frame " + frameNumber);
+        }
+
+        int[][] channelSamples = new int[channels][];
+        channelAssignments.add(channelAssignment);
+        if (channelAssignment < 8) {
+            if (channelAssignment + 1 != channels) {
+                throw new IOException("Frame has " + (channelAssignment + 1) + " channels");
+            }
+            for (int c = 0; c < channels; c++) {
+                channelSamples[c] = readSubframe(n, bitsPerSample);
+            }
+        } else {
+            if (channels != 2 || channelAssignment > 10) {
+                throw new IOException("Invalid channel assignment " + channelAssignment);
+            }
+            int[] first = readSubframe(n, channelAssignment == 9 ? bitsPerSample + 1 : bitsPerSample);
+            int[] second = readSubframe(n, channelAssignment == 9 ? bitsPerSample : bitsPerSample + 1);
+            int[] left = new int[n];
+            int[] right = new int[n];
+            for (int i = 0; i < n; i++) {
+                if (channelAssignment == 8) {
+                    left[i] = first[i];
+                    right[i] = first[i] - second[i];
+                } else if (channelAssignment == 9) {
+                    right[i] = second[i];
+                    left[i] = first[i] + second[i];
+                } else {
+                    int mid = (first[i] << 1) | (second[i] & 1);
+                    left[i] = (mid + second[i]) >> 1;
+                    right[i] = (mid - second[i]) >> 1;
+                }
+            }
+            channelSamples[0] = left;
+            channelSamples[1] = right;
+        }
+        // Zero padding to the byte boundary
+        while (mBitPosition % 8 != 0) {
+            if (readBits(1) != 0) {
+                throw new IOException("Non-zero frame padding");
+            }
+        }
+        int frameEnd = mBitPosition / 8;
+        if (readBits(16) != crc16(frameStart, frameEnd)) {
+            throw new IOException("CRC-16 mismatch in frame " + frameNumber);
+        }
+        if (offset + n > totalSamples) {
+            throw new IOException("Frames hold more samples than the stream info announces");
+        }
+        for (int c = 0; c < channels; c++) {
+            for (int i = 0; i < n; i++) {
+                int value = channelSamples[c][i];
+                if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
+                    throw new IOException("Sample out of range: " + value);
+                }
+                samples[(offset + i) * channels + c] = (short) value;
+            }
+        }
+        return n;
+    }
+
+    private int[] readSubframe(int n, int bps) throws IOException {
+        if (readBits(1) != 0) {
+            throw new IOException("Non-zero subframe padding");
+        }
+        int type = readBits(6);
+        if (readBits(1) != 0) {
+            throw new IOException("Unexpected wasted bits");
+        }
+        int[] x = new int[n];
+        if (type == 0) {
+            subframeTypes.add(0);
+            int value = readSigned(bps);
+            for (int i = 0; i < n; i++) {
+                x[i] = value;
+            }
+        } else if (type == 1) {
+            subframeTypes.add(1);
+            for (int i = 0; i < n; i++) {
+                x[i] = readSigned(bps);
+            }
+        } else if (type >= 8 && type <= 12) {
+            subframeTypes.add(8);
+            int order = type - 8;
+            for (int i = 0; i < order; i++) {
+                x[i] = readSigned(bps);
+            }
+            readResidual(x, n, order);
+            for (int i = order; i < n; i++) {
+                switch (order) {
+                    case 1:
+                        x[i] += x[i - 1];
+                        break;
+                    case 2:
+                        x[i] += 2 * x[i - 1] - x[i - 2];
+                        break;
+                    case 3:
+                        x[i] += 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+                        break;
+                    case 4:
+                        x[i] += 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+                        break;
+                    default:
+                }
+            }
+        } else if (type >= 32) {
+            subframeTypes.add(32);
+            int order = type - 31;
+            for (int i = 0; i < order; i++) {
+                x[i] = readSigned(bps);
+            }
+            int precision = readBits(4) + 1;
+            if (precision == 16) {
+                throw new IOException("Invalid coefficient precision");
+            }
+            int shift = readSigned(5);
+            if (shift < 0) {
+                throw new IOException("Negative predictor shift");
+            }
+            int[] coefficients = new int[order];
+            for (int i = 0; i < order; i++) {
+                coefficients[i] = readSigned(precision);
+            }
+            readResidual(x, n, order);
+            for (int i = order; i < n; i++) {
+                long sum = 0;
+                for (int j = 0; j < order; j++) {
+                    sum += (long) coefficients[j] * x[i - j - 1];
+                }
+                x[i] += (int) (sum >> shift);
+            }
+        } else {
+            throw new IOException("Reserved subframe type " + type);
+        }
+        return x;
+    }
+
+    /**
+     * Reads the Rice coded residual into {@code x}, after the warm-up samples.
+     */
+    private void readResidual(int[] x, int n, int order) throws IOException {
+        int method = readBits(2);
+        if (method > 1) {
+            throw new IOException("Reserved residual coding method");
+        }
+        int parameterBits = method == 0 ? 4 : 5;
+        int escape = (1 << parameterBits) - 1;
+        int partitionOrder = readBits(4);
+        int partitions = 1 << partitionOrder;
+        if ((n & (partitions - 1)) != 0 || (n >> partitionOrder) < order) {
+            throw new IOException("Invalid partition order " + partitionOrder + " for " + n + " samples");
+        }
+        int i = order;
+        for (int p = 0; p < partitions; p++) {
+            int end = (p + 1) * (n >> partitionOrder);
+            int k = readBits(parameterBits);
+            if (k == escape) {
+                int bits = readBits(5);
+                for (; i < end; i++) {
+                    x[i] = bits == 0 ? 0 : readSigned(bits);
+                }
+                continue;
+            }
+            for (; i < end; i++) {
+                int quotient = 0;
+                while (readBits(1) == 0) {
+                    quotient++;
+                }
+                int u = (quotient << k) | (k > 0 ? readBits(k) : 0);
+                x[i] = (u >>> 1) ^ -(u & 1);
+            }
+        }
+    }
+
+    private long readUtf8() throws IOException {
+        int first = readBits(8);
+        if ((first & 0x80) == 0) {
+            return first;
+        }
+        int bytes = Integer.numberOfLeadingZeros(~first << 24);
+        if (bytes < 2 || bytes > 7) {
+            throw new IOException("Invalid frame number coding");
+        }
+        long value = first & (0x7f >> bytes);
+        for (int i = 1; i < bytes; i++) {
+            int next = readBits(8);
+            if ((next & 0xc0) != 0x80) {
+                throw new IOException("Invalid frame number coding");
+            }
+            value = (value << 6) | (next & 0x3f);
+        }
+        return value;
+    }
+
+    private int readSigned(int count) throws IOException {
+        int value = readBits(count);
+        return count == 32 ? value : (value << (32 - count)) >> (32 - count);
+    }
+
+    private int readBits(int count) throws IOException {
+        if (mBitPosition + count > 8 * mData.length) {
+            throw new IOException("Unexpected end of stream");
+        }
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            int bit = (mData[mBitPosition >> 3] >> (7 - (mBitPosition & 7))) & 1;
+            value = (value << 1) | bit;
+            mBitPosition++;
+        }
+        return value;
+    }
+
+    /**
+     * CRC-8 with polynomial x^8 + x^2 + x + 1, computed bit by bit.
+     */
+    private int crc8(int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc ^= mData[i] & 0xff;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xff : (crc << 1) & 0xff;
+            }
+        }
+        return crc;
+    }
+
+    /**
+     * CRC-16 with polynomial x^16 + x^15 + x^2 + 1, computed bit by bit.
+     */
+    private int crc16(int from, int to) {
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc ^= (mData[i] & 0xff) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? ((crc << 1) ^ 0x8005) & 0xffff : (crc << 1) & 0xffff;
+            }
+        }
+        return crc;
+    }
+}
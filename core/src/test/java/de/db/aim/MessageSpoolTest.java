@@ -0,0 +1,127 @@
+package de.db.aim;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageSpoolTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void readsMessagesInOrder() throws IOException {
+        MessageSpool spool = new MessageSpool(mFolder.getRoot(), 1024, 1024 * 1024);
+        byte[] payload = {1, 2, 3, 4, 5};
+        assertEquals(0, spool.append("a", 0, payload, 0, 5));
+        assertEquals(1, spool.append("b", 1, payload, 1, 3));
+        assertEquals(2, spool.append("c", 2, payload, 0, 0));
+
+        MessageSpool.Message message = spool.next();
+        assertEquals(0, message.getSequence());
+        assertEquals("a", message.getTopic());
+        assertEquals(0, message.getQos());
+        assertArrayEquals(payload, message.getPayload());
+        message = spool.next();
+        assertEquals("b", message.getTopic());
+        assertEquals(1, message.getQos());
+        assertArrayEquals(new byte[]{2, 3, 4}, message.getPayload());
+        message = spool.next();
+        assertEquals("c", message.getTopic());
+        assertEquals(0, message.getPayload().length);
+        assertNull(spool.next());
+        assertEquals(3, spool.getPendingMessages());
+        spool.close();
+    }
+
+    @Test
+    public void rewindSkipsAcknowledged() throws IOException {
+        MessageSpool spool = new MessageSpool(mFolder.getRoot(), 1024, 1024 * 1024);
+        for (int i = 0; i < 4; i++) {
+            spool.append("topic", 1, new byte[]{(byte) i}, 0, 1);
+        }
+        while (spool.next() != null) {
+            // Read everything once
+        }
+        spool.ack(0);
+        spool.ack(2);
+        spool.ack(2);
+        assertEquals(2, spool.getPendingMessages());
+
+        spool.rewind();
+        assertEquals(1, spool.next().getSequence());
+        assertEquals(3, spool.next().getSequence());
+        assertNull(spool.next());
+        spool.close();
+    }
+
+    @Test
+    public void recoversUnacknowledgedMessages() throws IOException {
+        MessageSpool spool = new MessageSpool(mFolder.getRoot(), 64, 1024 * 1024);
+        for (int i = 0; i < 20; i++) {
+            spool.append("topic", 1, new byte[]{(byte) i}, 0, 1);
+        }
+        for (int i = 0; i < 10; i++) {
+            spool.ack(i);
+        }
+        spool.ack(15);
+        spool.close();
+
+        // Only the head is persisted, a message acknowledged out of order is sent again
+        spool = new MessageSpool(mFolder.getRoot(), 64, 1024 * 1024);
+        assertEquals(10, spool.getPendingMessages());
+        for (int i = 10; i < 20; i++) {
+            MessageSpool.Message message = spool.next();
+            assertEquals(i, message.getSequence());
+            assertArrayEquals(new byte[]{(byte) i}, message.getPayload());
+        }
+        assertNull(spool.next());
+        // Numbering continues after the recovered messages
+        assertEquals(20, spool.append("topic", 1, new byte[1], 0, 1));
+        spool.close();
+    }
+
+    @Test
+    public void dropsOldestSegmentWhenFull() throws IOException {
+        MessageSpool spool = new MessageSpool(mFolder.getRoot(), 256, 512);
+        byte[] payload = new byte[50];
+        for (int i = 0; i < 100; i++) {
+            spool.append("topic", 0, payload, 0, payload.length);
+        }
+        assertTrue(spool.getDroppedMessages() > 0);
+        assertTrue(spool.getSize() <= 512 + 256);
+        assertEquals(100 - spool.getDroppedMessages(), spool.getPendingMessages());
+
+        long expected = spool.getDroppedMessages();
+        MessageSpool.Message message;
+        while ((message = spool.next()) != null) {
+            assertEquals(expected++, message.getSequence());
+        }
+        assertEquals(100, expected);
+        spool.close();
+    }
+
+    @Test
+    public void reopensAfterEverythingWasAcknowledged() throws IOException {
+        File directory = new File(mFolder.getRoot(), "spool");
+        MessageSpool spool = new MessageSpool(directory, 64, 1024);
+        for (int i = 0; i < 10; i++) {
+            spool.ack(spool.append("topic", 0, new byte[8], 0, 8));
+        }
+        spool.close();
+
+        spool = new MessageSpool(directory, 64, 1024);
+        assertEquals(0, spool.getPendingMessages());
+        assertNull(spool.next());
+        assertEquals(10, spool.append("topic", 0, new byte[8], 0, 8));
+        spool.close();
+    }
+}
@@ -0,0 +1,119 @@
+package de.db.aim;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReorderBufferTest {
+
+    private final List<Integer> mRun = Collections.synchronizedList(new ArrayList<Integer>());
+    private final Executor mDirect = new Executor() {
+
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    @Test
+    public void handsOffInReservedOrder() throws InterruptedException {
+        ReorderBuffer buffer = new ReorderBuffer(mDirect, 10);
+        long first = buffer.reserve();
+        long second = buffer.reserve();
+        long third = buffer.reserve();
+        buffer.complete(third, record(3));
+        buffer.complete(second, record(2));
+        assertTrue(mRun.isEmpty());
+        buffer.complete(first, record(1));
+        assertEquals(Arrays.asList(1, 2, 3), mRun);
+    }
+
+    @Test
+    public void nullOnlyReleasesNumber() throws InterruptedException {
+        ReorderBuffer buffer = new ReorderBuffer(mDirect, 10);
+        long first = buffer.reserve();
+        long second = buffer.reserve();
+        buffer.complete(second, record(2));
+        buffer.complete(first, null);
+        assertEquals(Collections.singletonList(2), mRun);
+    }
+
+    @Test
+    public void waitsWhenTooFarAhead() throws Exception {
+        final ReorderBuffer buffer = new ReorderBuffer(mDirect, 2);
+        long first = buffer.reserve();
+        long second = buffer.reserve();
+        final long third = buffer.reserve();
+        Thread ahead = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    buffer.complete(third, record(3));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        ahead.start();
+        ahead.join(200);
+        assertTrue(ahead.isAlive());
+        buffer.complete(first, record(1));
+        ahead.join(5000);
+        assertEquals(Collections.singletonList(1), mRun);
+        buffer.complete(second, record(2));
+        assertEquals(Arrays.asList(1, 2, 3), mRun);
+    }
+
+    @Test
+    public void rejectedTaskDoesNotHoldBackLaterOnes() throws InterruptedException {
+        ReorderBuffer buffer = new ReorderBuffer(new Executor() {
+
+            @Override
+            public void execute(Runnable task) {
+                if (mRun.isEmpty()) {
+                    mRun.add(0);
+                    throw new RejectedExecutionException();
+                }
+                task.run();
+            }
+        }, 10);
+        long first = buffer.reserve();
+        long second = buffer.reserve();
+        buffer.complete(second, record(2));
+        try {
+            buffer.complete(first, record(1));
+            fail();
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+        assertEquals(Arrays.asList(0, 2), mRun);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsNumberCompletedTwice() throws InterruptedException {
+        ReorderBuffer buffer = new ReorderBuffer(mDirect, 10);
+        long first = buffer.reserve();
+        buffer.complete(first, null);
+        buffer.complete(first, null);
+    }
+
+    private Runnable record(final int value) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                mRun.add(value);
+            }
+        };
+    }
+}
@@ -0,0 +1,136 @@
+package de.db.aim;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentIndexTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void keepsSegmentsOrderedByStartTime() throws IOException {
+        SegmentIndex index = new SegmentIndex(new File(mFolder.getRoot(), "index"));
+        index.add(segment("b", 2000, 1000));
+        index.add(segment("c", 3000, 1000));
+        index.add(segment("a", 1000, 1000));
+        assertEquals("a", index.oldest().getPath());
+        assertEquals(3, index.size());
+        assertEquals(300, index.getTotalBytes());
+
+        List<AudioSegment> found = index.find(1500, 3000);
+        assertEquals(2, found.size());
+        assertEquals("a", found.get(0).getPath());
+        assertEquals("b", found.get(1).getPath());
+
+        assertTrue(index.remove("a"));
+        assertFalse(index.remove("a"));
+        assertEquals("b", index.oldest().getPath());
+        assertEquals(200, index.getTotalBytes());
+        index.close();
+    }
+
+    @Test
+    public void replaysLog() throws IOException {
+        File file = new File(mFolder.getRoot(), "index");
+        SegmentIndex index = new SegmentIndex(file);
+        assertTrue(index.isIncomplete());
+        index.add(segment("a", 1000, 1000));
+        index.add(segment("b", 2000, 1000));
+        index.remove("a");
+        index.close();
+
+        index = new SegmentIndex(file);
+        assertFalse(index.isIncomplete());
+        assertEquals(1, index.size());
+        assertNull(index.get("a"));
+        assertEquals(2000, index.get("b").getStartMillis());
+        assertEquals(1000, index.get("b").getDurationMillis());
+        assertEquals(100, index.get("b").getSize());
+        assertEquals("flac", index.get("b").getCodec());
+        index.close();
+    }
+
+    @Test
+    public void cutsOffTornRecord() throws IOException {
+        File file = new File(mFolder.getRoot(), "index");
+        SegmentIndex index = new SegmentIndex(file);
+        index.add(segment("a", 1000, 1000));
+        index.add(segment("b", 2000, 1000));
+        index.close();
+        truncate(file, file.length() - 3);
+
+        index = new SegmentIndex(file);
+        assertTrue(index.isIncomplete());
+        assertEquals(1, index.size());
+        assertEquals("a", index.oldest().getPath());
+        // The log continues after the intact records
+        index.add(segment("c", 3000, 1000));
+        index.close();
+
+        index = new SegmentIndex(file);
+        assertFalse(index.isIncomplete());
+        assertEquals(2, index.size());
+        assertEquals("c", index.find(3000, 4000).get(0).getPath());
+        index.close();
+    }
+
+    @Test
+    public void resetsInvalidHeader() throws IOException {
+        File file = new File(mFolder.getRoot(), "index");
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.writeInt(0x12345678);
+        out.writeInt(1);
+        out.close();
+
+        SegmentIndex index = new SegmentIndex(file);
+        assertTrue(index.isIncomplete());
+        assertEquals(0, index.size());
+        index.close();
+    }
+
+    @Test
+    public void compactsLog() throws IOException {
+        File file = new File(mFolder.getRoot(), "index");
+        SegmentIndex index = new SegmentIndex(file);
+        for (int i = 0; i < 3000; i++) {
+            index.add(segment("file" + i, i * 1000L, 1000));
+        }
+        long length = file.length();
+        for (int i = 0; i < 2900; i++) {
+            index.remove("file" + i);
+        }
+        assertTrue(file.length() < length);
+        index.close();
+
+        index = new SegmentIndex(file);
+        assertEquals(100, index.size());
+        assertEquals("file2900", index.oldest().getPath());
+        assertEquals(100 * 100, index.getTotalBytes());
+        index.close();
+    }
+
+    private static AudioSegment segment(String path, long startMillis, long durationMillis) {
+        return new AudioSegment(startMillis, durationMillis, path, 100, "flac");
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(length);
+        } finally {
+            out.close();
+        }
+    }
+}
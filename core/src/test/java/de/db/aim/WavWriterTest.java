@@ -0,0 +1,132 @@
+package de.db.aim;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class WavWriterTest {
+
+    // RIFF header, JUNK chunk reserved for ds64, fmt chunk and data chunk header
+    private static final int HEADER_LENGTH = 12 + 8 + 28 + 8 + 16 + 8;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void writes16BitSamples() throws IOException {
+        File file = mFolder.newFile();
+        PcmFormat format = new PcmFormat(44100, 2, PcmFormat.Encoding.PCM_16BIT);
+        // More than fits into one conversion buffer
+        short[] values = new short[2 * 50000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (short) (i * 31);
+        }
+        WavWriter writer = new WavWriter(file, format);
+        writer.write(values, 0, 1000);
+        writer.write(values, 1000, values.length - 1000);
+        assertEquals(50000, writer.getSampleCount());
+        writer.close();
+
+        ByteBuffer wav = read(file);
+        assertHeader(wav, 1, 2, 44100, 16, 2 * values.length);
+        for (short value : values) {
+            assertEquals(value, wav.getShort());
+        }
+        assertEquals(0, wav.remaining());
+    }
+
+    @Test
+    public void writesFloatSamples() throws IOException {
+        File file = mFolder.newFile();
+        PcmFormat format = new PcmFormat(48000, 1, PcmFormat.Encoding.PCM_FLOAT);
+        float[] values = {0f, 0.5f, -0.25f, 1f, -1f};
+        WavWriter writer = new WavWriter(file, format);
+        writer.write(values, 0, values.length);
+        writer.close();
+
+        ByteBuffer wav = read(file);
+        assertHeader(wav, 3, 1, 48000, 32, 4 * values.length);
+        for (float value : values) {
+            assertEquals(value, wav.getFloat(), 0);
+        }
+    }
+
+    @Test
+    public void emptyFileHasValidHeader() throws IOException {
+        File file = mFolder.newFile();
+        new WavWriter(file, new PcmFormat(16000, 1, PcmFormat.Encoding.PCM_16BIT)).close();
+        assertHeader(read(file), 1, 1, 16000, 16, 0);
+    }
+
+    @Test
+    public void rejectsOtherEncoding() throws IOException {
+        WavWriter writer = new WavWriter(mFolder.newFile(), new PcmFormat(16000, 1, PcmFormat.Encoding.PCM_16BIT));
+        try {
+            writer.write(new float[10], 0, 10);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void rejectsWriteAfterClose() throws IOException {
+        WavWriter writer = new WavWriter(mFolder.newFile(), new PcmFormat(16000, 1, PcmFormat.Encoding.PCM_16BIT));
+        writer.close();
+        writer.close();
+        try {
+            writer.write(new short[10], 0, 10);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    private static void assertHeader(ByteBuffer wav, int formatTag, int channels, int sampleRate, int bits, int dataSize) {
+        assertEquals(HEADER_LENGTH + dataSize, wav.limit());
+        assertEquals("RIFF", tag(wav));
+        assertEquals(HEADER_LENGTH - 8 + dataSize, wav.getInt());
+        assertEquals("WAVE", tag(wav));
+        assertEquals("JUNK", tag(wav));
+        assertEquals(28, wav.getInt());
+        wav.position(wav.position() + 28);
+        assertEquals("fmt ", tag(wav));
+        assertEquals(16, wav.getInt());
+        assertEquals(formatTag, wav.getShort());
+        assertEquals(channels, wav.getShort());
+        assertEquals(sampleRate, wav.getInt());
+        assertEquals(sampleRate * channels * bits / 8, wav.getInt());
+        assertEquals(channels * bits / 8, wav.getShort());
+        assertEquals(bits, wav.getShort());
+        assertEquals("data", tag(wav));
+        assertEquals(dataSize, wav.getInt());
+    }
+
+    private static String tag(ByteBuffer buffer) {
+        byte[] tag = new byte[4];
+        buffer.get(tag);
+        return new String(tag);
+    }
+
+    private static ByteBuffer read(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            in.close();
+        }
+    }
+}